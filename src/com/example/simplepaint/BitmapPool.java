@@ -0,0 +1,179 @@
+package com.example.simplepaint;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * 使い終わった {@link Bitmap} を大きさごとに保持し、同じ大きさの {@link Bitmap} が必要になったときに再利用するプールです。
+ *
+ * <p>
+ * 保持する {@link Bitmap} の合計バイト数には上限があり、超えた場合は最も古く返されたものから
+ * {@link Bitmap#recycle()} します。保存やギャラリーのスクロールのたびに大きな {@link Bitmap}
+ * を確保しなおすのを避けるために使います。
+ * </p>
+ */
+final class BitmapPool {
+
+    private static final BitmapPool INSTANCE = new BitmapPool(
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE));
+
+    private final int mMaxBytes;
+
+    private int mCurrentBytes = 0;
+
+    /**
+     * 大きさごとの {@link Bitmap} のリスト。
+     */
+    private final Map<Key, LinkedList<Bitmap>> mBuckets = new HashMap<Key, LinkedList<Bitmap>>();
+
+    /**
+     * プール内のすべての {@link Bitmap}。古く返されたものから順に並んでいます。
+     */
+    private final LinkedList<Bitmap> mLru = new LinkedList<Bitmap>();
+
+    BitmapPool(int maxBytes) {
+        super();
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * アプリ全体で共有するプールを返します。
+     *
+     * @return プール。
+     */
+    public static BitmapPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 指定された大きさの {@link Bitmap} を返します。プールに無ければ新しく作成します。
+     *
+     * @param width 幅。
+     * @param height 高さ。
+     * @param config 画素の形式。
+     * @return 全画素が透明に初期化された mutable な {@link Bitmap}。
+     */
+    public Bitmap get(int width, int height, Config config) {
+        final Bitmap bitmap = take(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * {@link android.graphics.BitmapFactory.Options#inBitmap} に使える {@link Bitmap}
+     * をプールから取り出します。
+     *
+     * @param width 幅。
+     * @param height 高さ。
+     * @param config 画素の形式。
+     * @return 同じ大きさの {@link Bitmap}。プールに無ければ {@code null} を返します。
+     */
+    public Bitmap getForDecoding(int width, int height, Config config) {
+        return take(width, height, config);
+    }
+
+    /**
+     * 使い終わった {@link Bitmap} をプールに返します。返したあとは {@code bitmap} を使わないでください。
+     *
+     * @param bitmap 使い終わった {@link Bitmap}。 {@code null} の場合は何もしません。
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        final int bytes = byteCount(bitmap);
+        if (!bitmap.isMutable() || mMaxBytes < bytes) {
+            bitmap.recycle();
+            return;
+        }
+        final Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mLru.add(bitmap);
+        mCurrentBytes += bytes;
+
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * プール内の {@link Bitmap} をすべて {@link Bitmap#recycle()} します。
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private synchronized Bitmap take(int width, int height, Config config) {
+        final LinkedList<Bitmap> bucket = mBuckets.get(new Key(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        final Bitmap bitmap = bucket.removeLast();
+        mLru.remove(bitmap);
+        mCurrentBytes -= byteCount(bitmap);
+        return bitmap;
+    }
+
+    private void trimToSize(int maxBytes) {
+        for (Iterator<Bitmap> it = mLru.iterator(); maxBytes < mCurrentBytes && it.hasNext();) {
+            final Bitmap bitmap = it.next();
+            it.remove();
+            mBuckets.get(new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()))
+                    .remove(bitmap);
+            mCurrentBytes -= byteCount(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    private static int byteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * プールのバケットを区別するためのキーです。
+     */
+    private static final class Key {
+        private final int mWidth;
+        private final int mHeight;
+        private final Config mConfig;
+
+        Key(int width, int height, Config config) {
+            super();
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mWidth;
+            result = 31 * result + mHeight;
+            result = 31 * result + (mConfig == null ? 0 : mConfig.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return mWidth == other.mWidth && mHeight == other.mHeight
+                    && mConfig == other.mConfig;
+        }
+    }
+}
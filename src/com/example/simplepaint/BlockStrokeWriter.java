@@ -0,0 +1,174 @@
+package com.example.simplepaint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * ストロークをブロックごとに圧縮したストロークファイルに書き出すクラスです。
+ *
+ * <p>
+ * {@link StrokeWriter} と同じ形式のストロークの並びを、ストロークの途中で切れないように約 {@link #BLOCK_SIZE}
+ * バイトずつのブロックに分け、ブロックごとに独立して Deflate で圧縮します。ファイルの末尾には各ブロックの位置を
+ * 記録した索引を置くので、読み込むときは複数のブロックを並列に展開できます({@link StrokeBlockIndex})。
+ * </p>
+ *
+ * <pre>
+ * ヘッダ  : マジックナンバー(4バイト) バージョン(1バイト) 背景色(int) 概要({@link DrawingMetadata#SIZE} バイト)
+ * ブロック: 圧縮後の長さ(int) 展開後の長さ(int) 圧縮したストロークの並び
+ * 終端    : 0(int)
+ * 索引    : ブロック数(int) [ブロックのデータの位置(int) 圧縮後の長さ(int) 展開後の長さ(int)]...
+ * 末尾    : 索引の位置(int)
+ * </pre>
+ *
+ * <p>
+ * 背景色は {@link StrokeWriter} と同じ位置に置くので、 {@link StrokeWriter#writeBgColor(java.io.File, int)}
+ * で書き換えられます。概要を持つファイルでは、更新日時もいっしょに書き換える
+ * {@link DrawingMetadata#writeBgColor(java.io.File, int, long)} を使ってください。索引がなくても先頭から順に読み込めます({@link StrokeReader})。
+ * 概要は {@link #METADATA_OFFSET} バイト目から固定長で置くので、ストロークを読まずに読み込めます({@link DrawingMetadata#read(java.io.File)})。
+ * バージョン 1 のファイルには概要がありません。
+ * </p>
+ */
+final class BlockStrokeWriter implements Closeable {
+
+    /**
+     * ブロックに圧縮したファイルのマジックナンバー。
+     */
+    static final byte[] MAGIC = {
+            (byte) 0x89, 'S', 'P', 'Z'
+    };
+
+    /**
+     * バージョン 3 から曲線のストローク({@link StrokeWriter#FLAG_CURVES})を含みます。
+     */
+    static final int VERSION = 3;
+
+    /**
+     * 概要を持つ最初のバージョン。
+     */
+    static final int VERSION_METADATA = 2;
+
+    /**
+     * ファイルの先頭から概要までのバイト数。
+     */
+    static final int METADATA_OFFSET = StrokeWriter.BG_COLOR_OFFSET + 4;
+
+    /**
+     * 圧縮前のブロックの大きさの目安(バイト)。
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private final DataOutputStream mOut;
+
+    /**
+     * 圧縮前のブロック。
+     */
+    private final ByteArrayOutputStream mBlock = new ByteArrayOutputStream(BLOCK_SIZE + 4096);
+
+    private final StrokeWriter mBlockWriter = new StrokeWriter(mBlock);
+
+    private final Deflater mDeflater = new Deflater();
+
+    private final byte[] mDeflateBuffer = new byte[8192];
+
+    /**
+     * 書き出したブロックの位置、圧縮後の長さ、展開後の長さ。
+     */
+    private final List<int[]> mIndex = new ArrayList<int[]>();
+
+    /**
+     * @param out 書き出し先。バッファリングは呼び出し側で行ってください。
+     */
+    BlockStrokeWriter(OutputStream out) {
+        super();
+        mOut = new DataOutputStream(out);
+    }
+
+    /**
+     * 空の概要とともにヘッダを書き出します。ファイルの先頭で一度だけ呼び出してください。
+     *
+     * @param bgColor 背景色。
+     */
+    public void writeHeader(int bgColor) throws IOException {
+        final DrawingMetadata metadata = new DrawingMetadata(0, 0, 0L, 0L);
+        metadata.finish();
+        writeHeader(bgColor, metadata);
+    }
+
+    /**
+     * ヘッダを書き出します。ファイルの先頭で一度だけ呼び出してください。
+     *
+     * @param bgColor 背景色。
+     * @param metadata 書き出すストロークをすべて集計した概要。
+     */
+    public void writeHeader(int bgColor, DrawingMetadata metadata) throws IOException {
+        mOut.write(MAGIC);
+        mOut.writeByte(VERSION);
+        mOut.writeInt(bgColor);
+        metadata.write(mOut);
+    }
+
+    /**
+     * ストロークを1つ書き出します。
+     *
+     * @param stroke ストローク。
+     */
+    public void write(Stroke stroke) throws IOException {
+        mBlockWriter.write(stroke);
+        if (BLOCK_SIZE <= mBlock.size()) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * 残りのブロックと索引を書き出して閉じます。
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBlock();
+            mOut.writeInt(0);
+
+            final int indexOffset = mOut.size();
+            mOut.writeInt(mIndex.size());
+            for (int[] entry : mIndex) {
+                mOut.writeInt(entry[0]);
+                mOut.writeInt(entry[1]);
+                mOut.writeInt(entry[2]);
+            }
+            mOut.writeInt(indexOffset);
+        } finally {
+            mDeflater.end();
+            mOut.close();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (mBlock.size() == 0) {
+            return;
+        }
+        final byte[] block = mBlock.toByteArray();
+        mBlock.reset();
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.length / 2);
+        mDeflater.reset();
+        mDeflater.setInput(block);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            final int length = mDeflater.deflate(mDeflateBuffer);
+            compressed.write(mDeflateBuffer, 0, length);
+        }
+
+        mOut.writeInt(compressed.size());
+        mOut.writeInt(block.length);
+        mIndex.add(new int[] {
+                mOut.size(), compressed.size(), block.length
+        });
+        compressed.writeTo(mOut);
+    }
+}
@@ -0,0 +1,357 @@
+package com.example.simplepaint;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * タッチイベントの座標列を、誤差の範囲内でなるべく少ない3次ベジェ曲線の列で近似するクラスです。
+ *
+ * <p>
+ * Schneider の方法(Graphics Gems, "An Algorithm for Automatically Fitting Digitized Curves")を使います。
+ * 座標列の両端の接線を決め、弦の長さで媒介変数を割り当てて最小二乗法で1本の曲線を求めます。
+ * 座標から曲線までの距離が許容誤差を超えていれば、ニュートン法で媒介変数を改善してやり直し、
+ * それでも収まらなければ誤差が最も大きい座標で2つに分けて、それぞれを近似します。
+ * 分けた点では両側の接線をそろえるので、曲線はなめらかにつながります。
+ * </p>
+ */
+final class CurveFitter {
+
+    /**
+     * 座標から曲線までの距離の許容値の既定値(ピクセル)。 {@link PaintView} は 2 ピクセル以上動いたときだけ座標を記録するので、
+     * その半分にしています。
+     */
+    static final float DEFAULT_TOLERANCE = 1.0F;
+
+    /**
+     * 媒介変数の改善を試みる誤差の上限。許容誤差(の2乗)に対する倍率です。
+     */
+    private static final float ITERATION_FACTOR = 4.0F;
+
+    private static final int MAX_ITERATIONS = 4;
+
+    private CurveFitter() {
+        // not instantiable
+    }
+
+    /**
+     * 座標列を3次ベジェ曲線の列で近似します。
+     *
+     * @param coordinates x座標値, y座標値が交互に並んだ座標列。
+     * @param nCoordinates 有効な座標の数。
+     * @param tolerance 座標から曲線までの距離の許容値(ピクセル)。
+     * @return 始点の x座標値, y座標値に続いて、曲線ごとに2つの制御点と終点の x座標値, y座標値を並べた配列。
+     *         座標の数は 1 + 3 × 曲線の数です。同じ座標しかなければ始点だけを返します。
+     */
+    static float[] fit(float[] coordinates, int nCoordinates, float tolerance) {
+        final float[] points = removeDuplicates(coordinates, nCoordinates);
+        final int n = points.length / 2;
+        final Output out = new Output(n * 2);
+        if (n == 0) {
+            return out.toArray();
+        }
+        out.add(points[0], points[1]);
+        if (n == 1) {
+            return out.toArray();
+        }
+
+        final float errorSq = tolerance * tolerance;
+        final float[] tangents = new float[4];
+        // 再帰のかわりに、近似する区間を左から順に取り出せるように積む
+        final Deque<float[]> pending = new ArrayDeque<float[]>();
+        setTangent(points, 0, 1, tangents, 0);
+        setTangent(points, n - 1, n - 2, tangents, 2);
+        pending.push(new float[] {
+                0, n - 1, tangents[0], tangents[1], tangents[2], tangents[3]
+        });
+        final float[] bezier = new float[8];
+        while (!pending.isEmpty()) {
+            final float[] range = pending.pop();
+            final int first = (int) range[0];
+            final int last = (int) range[1];
+            final int split = fitCubic(points, first, last, range[2], range[3], range[4],
+                    range[5], errorSq, bezier);
+            if (split < 0) {
+                out.add(bezier[2], bezier[3]);
+                out.add(bezier[4], bezier[5]);
+                out.add(bezier[6], bezier[7]);
+                continue;
+            }
+            // 分けた点での接線は前後の座標を結ぶ向き。前後が同じ座標なら直前の座標からの向き
+            if (!setTangent(points, split - 1, split + 1, tangents, 0)) {
+                setTangent(points, split - 1, split, tangents, 0);
+            }
+            pending.push(new float[] {
+                    split, last, tangents[0], tangents[1], range[4], range[5]
+            });
+            pending.push(new float[] {
+                    first, split, range[2], range[3], -tangents[0], -tangents[1]
+            });
+        }
+        return out.toArray();
+    }
+
+    /**
+     * 区間を1本の曲線で近似します。
+     *
+     * @return 許容誤差に収まった場合は -1 で、 {@code bezier} に曲線の4つの点を格納します。
+     *         収まらなかった場合は区間を分ける位置。
+     */
+    private static int fitCubic(float[] points, int first, int last, float t1x, float t1y,
+            float t2x, float t2y, float errorSq, float[] bezier) {
+        final float x0 = points[first * 2];
+        final float y0 = points[first * 2 + 1];
+        final float x3 = points[last * 2];
+        final float y3 = points[last * 2 + 1];
+        if (last - first == 1) {
+            // 2点だけなら直線
+            final float alpha = distance(x0, y0, x3, y3) / 3;
+            setBezier(bezier, x0, y0, t1x, t1y, alpha, x3, y3, t2x, t2y, alpha);
+            return -1;
+        }
+
+        final float[] u = chordLengthParameterize(points, first, last);
+        generateBezier(points, first, last, u, t1x, t1y, t2x, t2y, bezier);
+        final int[] split = new int[1];
+        float maxError = computeMaxError(points, first, last, bezier, u, split);
+        if (maxError < errorSq) {
+            return -1;
+        }
+        if (maxError < errorSq * ITERATION_FACTOR) {
+            for (int i = 0; i < MAX_ITERATIONS; i++) {
+                reparameterize(points, first, last, u, bezier);
+                generateBezier(points, first, last, u, t1x, t1y, t2x, t2y, bezier);
+                maxError = computeMaxError(points, first, last, bezier, u, split);
+                if (maxError < errorSq) {
+                    return -1;
+                }
+            }
+        }
+        return split[0];
+    }
+
+    /**
+     * 両端の点と接線を固定し、媒介変数 {@code u} のもとで最小二乗法により制御点を求めます。
+     */
+    private static void generateBezier(float[] points, int first, int last, float[] u,
+            float t1x, float t1y, float t2x, float t2y, float[] bezier) {
+        final float x0 = points[first * 2];
+        final float y0 = points[first * 2 + 1];
+        final float x3 = points[last * 2];
+        final float y3 = points[last * 2 + 1];
+        double c00 = 0.0;
+        double c01 = 0.0;
+        double c11 = 0.0;
+        double x0Sum = 0.0;
+        double x1Sum = 0.0;
+        for (int i = 0; i < u.length; i++) {
+            final double t = u[i];
+            final double mt = 1.0 - t;
+            final double b0 = mt * mt * mt;
+            final double b1 = 3 * t * mt * mt;
+            final double b2 = 3 * t * t * mt;
+            final double b3 = t * t * t;
+            final double a1x = t1x * b1;
+            final double a1y = t1y * b1;
+            final double a2x = t2x * b2;
+            final double a2y = t2y * b2;
+            c00 += a1x * a1x + a1y * a1y;
+            c01 += a1x * a2x + a1y * a2y;
+            c11 += a2x * a2x + a2y * a2y;
+            final int p = (first + i) * 2;
+            final double dx = points[p] - (x0 * (b0 + b1) + x3 * (b2 + b3));
+            final double dy = points[p + 1] - (y0 * (b0 + b1) + y3 * (b2 + b3));
+            x0Sum += a1x * dx + a1y * dy;
+            x1Sum += a2x * dx + a2y * dy;
+        }
+        final double det = c00 * c11 - c01 * c01;
+        float alpha1 = 0.0F;
+        float alpha2 = 0.0F;
+        if (det != 0.0) {
+            alpha1 = (float) ((x0Sum * c11 - x1Sum * c01) / det);
+            alpha2 = (float) ((c00 * x1Sum - c01 * x0Sum) / det);
+        }
+        final float segmentLength = distance(x0, y0, x3, y3);
+        final float epsilon = 1.0e-6F * segmentLength;
+        // 制御点を弦に射影したときに弦からはみ出す場合も、曲線がループして座標の間で大きく外れるので使わない
+        final float chordX = x3 - x0;
+        final float chordY = y3 - y0;
+        final float overshoot = alpha1 * (t1x * chordX + t1y * chordY) - alpha2
+                * (t2x * chordX + t2y * chordY);
+        if (alpha1 < epsilon || alpha2 < epsilon
+                || segmentLength * segmentLength < overshoot) {
+            // 解が不安定なので、弦の長さの 1/3 を使う
+            alpha1 = segmentLength / 3;
+            alpha2 = alpha1;
+        }
+        setBezier(bezier, x0, y0, t1x, t1y, alpha1, x3, y3, t2x, t2y, alpha2);
+    }
+
+    private static void setBezier(float[] bezier, float x0, float y0, float t1x, float t1y,
+            float alpha1, float x3, float y3, float t2x, float t2y, float alpha2) {
+        bezier[0] = x0;
+        bezier[1] = y0;
+        bezier[2] = x0 + t1x * alpha1;
+        bezier[3] = y0 + t1y * alpha1;
+        bezier[4] = x3 + t2x * alpha2;
+        bezier[5] = y3 + t2y * alpha2;
+        bezier[6] = x3;
+        bezier[7] = y3;
+    }
+
+    /**
+     * 座標と曲線上の対応する点との距離の2乗の最大値を求めます。
+     *
+     * @param split 距離が最大になった座標の位置を格納する配列。
+     */
+    private static float computeMaxError(float[] points, int first, int last, float[] bezier,
+            float[] u, int[] split) {
+        float maxDistSq = 0.0F;
+        split[0] = (first + last) / 2;
+        final float[] q = new float[2];
+        for (int i = 1; i < u.length - 1; i++) {
+            evaluate(bezier, u[i], q);
+            final int p = (first + i) * 2;
+            final float dx = q[0] - points[p];
+            final float dy = q[1] - points[p + 1];
+            final float distSq = dx * dx + dy * dy;
+            if (maxDistSq <= distSq) {
+                maxDistSq = distSq;
+                split[0] = first + i;
+            }
+        }
+        return maxDistSq;
+    }
+
+    /**
+     * ニュートン法で、各座標に最も近い曲線上の点の媒介変数に近づけます。
+     */
+    private static void reparameterize(float[] points, int first, int last, float[] u,
+            float[] bezier) {
+        final float[] q = new float[2];
+        final float[] q1 = new float[2];
+        final float[] q2 = new float[2];
+        for (int i = 0; i < u.length; i++) {
+            final float t = u[i];
+            evaluate(bezier, t, q);
+            evaluateDerivative(bezier, t, q1);
+            evaluateSecondDerivative(bezier, t, q2);
+            final int p = (first + i) * 2;
+            final float dx = q[0] - points[p];
+            final float dy = q[1] - points[p + 1];
+            final float numerator = dx * q1[0] + dy * q1[1];
+            final float denominator = q1[0] * q1[0] + q1[1] * q1[1] + dx * q2[0] + dy * q2[1];
+            if (denominator != 0.0F) {
+                u[i] = Math.max(0.0F, Math.min(1.0F, t - numerator / denominator));
+            }
+        }
+    }
+
+    private static void evaluate(float[] b, float t, float[] out) {
+        final float mt = 1.0F - t;
+        final float b0 = mt * mt * mt;
+        final float b1 = 3 * t * mt * mt;
+        final float b2 = 3 * t * t * mt;
+        final float b3 = t * t * t;
+        out[0] = b[0] * b0 + b[2] * b1 + b[4] * b2 + b[6] * b3;
+        out[1] = b[1] * b0 + b[3] * b1 + b[5] * b2 + b[7] * b3;
+    }
+
+    private static void evaluateDerivative(float[] b, float t, float[] out) {
+        final float mt = 1.0F - t;
+        final float d0 = 3 * mt * mt;
+        final float d1 = 6 * t * mt;
+        final float d2 = 3 * t * t;
+        out[0] = (b[2] - b[0]) * d0 + (b[4] - b[2]) * d1 + (b[6] - b[4]) * d2;
+        out[1] = (b[3] - b[1]) * d0 + (b[5] - b[3]) * d1 + (b[7] - b[5]) * d2;
+    }
+
+    private static void evaluateSecondDerivative(float[] b, float t, float[] out) {
+        final float mt = 1.0F - t;
+        out[0] = 6 * (mt * (b[4] - 2 * b[2] + b[0]) + t * (b[6] - 2 * b[4] + b[2]));
+        out[1] = 6 * (mt * (b[5] - 2 * b[3] + b[1]) + t * (b[7] - 2 * b[5] + b[3]));
+    }
+
+    /**
+     * 始点からの弦の長さの割合を媒介変数として割り当てます。
+     */
+    private static float[] chordLengthParameterize(float[] points, int first, int last) {
+        final float[] u = new float[last - first + 1];
+        for (int i = 1; i < u.length; i++) {
+            final int p = (first + i) * 2;
+            u[i] = u[i - 1] + distance(points[p - 2], points[p - 1], points[p], points[p + 1]);
+        }
+        final float total = u[u.length - 1];
+        for (int i = 1; i < u.length; i++) {
+            u[i] /= total;
+        }
+        return u;
+    }
+
+    /**
+     * {@code from} 番目の座標から {@code to} 番目の座標へ向かう単位ベクトルを求めます。
+     *
+     * @return 2つの座標が同じで向きが決まらない場合は {@code false}。
+     */
+    private static boolean setTangent(float[] points, int from, int to, float[] out,
+            int offset) {
+        final float dx = points[to * 2] - points[from * 2];
+        final float dy = points[to * 2 + 1] - points[from * 2 + 1];
+        final float length = (float) Math.sqrt(dx * dx + dy * dy);
+        if (length == 0.0F) {
+            return false;
+        }
+        out[offset] = dx / length;
+        out[offset + 1] = dy / length;
+        return true;
+    }
+
+    private static float distance(float x0, float y0, float x1, float y1) {
+        final float dx = x1 - x0;
+        final float dy = y1 - y0;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * 直前と同じ座標を取り除きます。接線や弦の長さが 0 にならないようにするためです。
+     */
+    private static float[] removeDuplicates(float[] coordinates, int nCoordinates) {
+        final float[] points = new float[nCoordinates * 2];
+        int length = 0;
+        for (int i = 0; i < nCoordinates; i++) {
+            final float x = coordinates[i * 2];
+            final float y = coordinates[i * 2 + 1];
+            if (0 < length && points[length - 2] == x && points[length - 1] == y) {
+                continue;
+            }
+            points[length++] = x;
+            points[length++] = y;
+        }
+        return Arrays.copyOf(points, length);
+    }
+
+    /**
+     * 近似した曲線の点を溜める配列です。
+     */
+    private static final class Output {
+        private float[] mValues;
+        private int mLength = 0;
+
+        Output(int capacity) {
+            super();
+            mValues = new float[Math.max(2, capacity)];
+        }
+
+        void add(float x, float y) {
+            if (mValues.length < mLength + 2) {
+                mValues = Arrays.copyOf(mValues, mValues.length * 2);
+            }
+            mValues[mLength++] = x;
+            mValues[mLength++] = y;
+        }
+
+        float[] toArray() {
+            return Arrays.copyOf(mValues, mLength);
+        }
+    }
+}
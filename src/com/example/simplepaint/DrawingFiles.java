@@ -0,0 +1,126 @@
+package com.example.simplepaint;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 画を保存するときのファイルの処理のうち、 Android に依存しないものをまとめたクラスです。
+ *
+ * <p>
+ * {@link PaintView#save()} と、保存にかかる時間を計測する tools/src の SaveBenchmark が同じ処理を使います。
+ * 失敗は {@link IOException} で知らせるので、ログへの出力は呼び出し側で行ってください。
+ * </p>
+ */
+final class DrawingFiles {
+
+    /**
+     * ストロークファイルの拡張子。サムネイルのファイル名の後ろに付けます。
+     */
+    static final String STROKE_SUFFIX = ".stroke";
+
+    private DrawingFiles() {
+        // not instantiable
+    }
+
+    /**
+     * ストロークを集計した概要を、ストロークの内容のハッシュ値とともに作ります。
+     *
+     * @param strokes 確定したストローク。
+     * @param width キャンバスの幅。
+     * @param height キャンバスの高さ。
+     * @param createdMillis 描き始めた日時。
+     * @return 概要。
+     */
+    static DrawingMetadata createMetadata(List<Stroke> strokes, int width, int height,
+            long createdMillis) {
+        final DrawingMetadata metadata = new DrawingMetadata(width, height, createdMillis,
+                System.currentTimeMillis());
+        metadata.computeContentHash();
+        for (Stroke stroke : strokes) {
+            metadata.add(stroke);
+        }
+        metadata.finish();
+        return metadata;
+    }
+
+    /**
+     * ストロークファイルの概要を読み、ストロークの内容が同じであればその概要を返します。
+     *
+     * @param strokeFile ストロークファイル。
+     * @param metadata 今描かれているものの概要。
+     * @return ストロークが同じであればファイルの概要。違っていれば {@code null}。
+     */
+    static DrawingMetadata readIfSameContent(File strokeFile, DrawingMetadata metadata)
+            throws IOException {
+        final DrawingMetadata saved = DrawingMetadata.read(strokeFile);
+        if (saved == null || !saved.hasSameContent(metadata)) {
+            return null;
+        }
+        return saved;
+    }
+
+    /**
+     * ストロークの内容のハッシュ値と背景色が同じで、サムネイルもあるストロークファイルを索引から探します。
+     * 索引が古くなっていることがあるので、見つかったファイルの先頭の概要を読んで確かめます。
+     *
+     * @param index 保存済みの画の索引。
+     * @param metadata 今描かれているものの概要。
+     * @param bgColor 今の背景色。
+     * @return 見つかったストロークファイル。なければ {@code null}。
+     */
+    static File findSavedCopy(SavedDrawingIndex index, DrawingMetadata metadata, int bgColor)
+            throws IOException {
+        final File strokeFile = index.find(metadata.getContentHashString());
+        if (strokeFile == null) {
+            return null;
+        }
+        final DrawingMetadata saved = readIfSameContent(strokeFile, metadata);
+        if (saved == null || saved.getBgColor() != bgColor
+                || !toThumbnailFile(strokeFile).isFile()) {
+            return null;
+        }
+        return strokeFile;
+    }
+
+    /**
+     * ストロークファイルを書き出します。概要はストロークより前に書き出すので、先に集計しておいてください。
+     *
+     * @param strokeFile 書き出すファイル。
+     * @param bgColor 背景色。
+     * @param metadata ストロークの概要。
+     * @param strokes 確定したストローク。
+     */
+    static void writeStrokeFile(File strokeFile, int bgColor, DrawingMetadata metadata,
+            List<Stroke> strokes) throws IOException {
+        final BlockStrokeWriter writer = new BlockStrokeWriter(new BufferedOutputStream(
+                new FileOutputStream(strokeFile)));
+        try {
+            writer.writeHeader(bgColor, metadata);
+            for (Stroke stroke : strokes) {
+                writer.write(stroke);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * サムネイルに対応するストロークファイルを返します。
+     */
+    static File toStrokeFile(File thumbnailFile) {
+        return new File(thumbnailFile.getParentFile(), thumbnailFile.getName() + STROKE_SUFFIX);
+    }
+
+    /**
+     * ストロークファイルに対応するサムネイルを返します。
+     */
+    static File toThumbnailFile(File strokeFile) {
+        final String name = strokeFile.getName();
+        assert name.endsWith(STROKE_SUFFIX);
+        return new File(strokeFile.getParentFile(), name.substring(0,
+                name.length() - STROKE_SUFFIX.length()));
+    }
+}
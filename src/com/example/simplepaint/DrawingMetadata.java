@@ -0,0 +1,451 @@
+package com.example.simplepaint;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 保存した画の概要です。 {@link BlockStrokeWriter} がストロークファイルの先頭に固定長で書き出します。
+ *
+ * <p>
+ * ストロークを読み込まずに、ファイルの先頭の {@link #SIZE} バイトほどを読むだけで、ストロークや座標の数、
+ * 描かれている範囲、よく使われている色、作成・更新日時がわかります。
+ * 今のところ、同じ画の保存済みのファイルを確かめるとき( {@link DrawingFiles} )、読み込んだ画の作成日時を引き継ぐとき(
+ * {@link StrokeLoader} )、 BatchExport で画像の大きさを決めるときに読み込みます。ギャラリーはまだ使っていませんが、
+ * 並べ替えや絞り込みもストロークを読まずに行えます。
+ * </p>
+ * <p>
+ * ストロークの内容のハッシュ値も記録します。ハッシュ値はストロークを {@link StrokeWriter} の形式で並べたものの
+ * SHA-1 で、背景色や日時、ファイルの圧縮方法によらず、同じストロークなら同じ値になります。
+ * 同じ画を重複して保存しないために使うほか、同期やバックアップで変更のないファイルを見分けるのにも使えます。
+ * </p>
+ *
+ * <pre>
+ * ストローク数(int) 座標の数(long) キャンバスの幅(int) キャンバスの高さ(int)
+ * 描かれている範囲の左, 上, 右, 下(float)
+ * 作成日時(long) 更新日時(long) 使われている色の数(int)
+ * パレットの色の数(int) [色(int) その色のストローク数(int)]...
+ * 0 埋め
+ * ハッシュ値({@link #CONTENT_HASH_LENGTH} バイト。記録していなければ 0 埋め)
+ * </pre>
+ */
+final class DrawingMetadata {
+
+    /**
+     * 書き出したときの大きさ(バイト)。
+     */
+    static final int SIZE = 256;
+
+    /**
+     * パレットに記録する色の数の上限。ストローク数の多い色から記録します。
+     */
+    static final int MAX_PALETTE_SIZE = 16;
+
+    /**
+     * ハッシュ値の長さ(バイト)。概要の末尾に置きます。
+     */
+    static final int CONTENT_HASH_LENGTH = 20;
+
+    private static final String CONTENT_HASH_ALGORITHM = "SHA-1";
+
+    /**
+     * 概要の先頭から更新日時までのバイト数。ストローク数、座標の数、キャンバスの大きさ、描かれている範囲、作成日時の後ろです。
+     */
+    private static final int MODIFIED_MILLIS_OFFSET = 4 + 8 + 4 + 4 + 16 + 8;
+
+    private int mStrokeCount = 0;
+
+    private long mPointCount = 0L;
+
+    private int mCanvasWidth;
+
+    private int mCanvasHeight;
+
+    /**
+     * 描かれている範囲。線の太さも含みます。ストロークがなければすべて 0 です。
+     */
+    private final float[] mBounds = new float[4];
+
+    private boolean mHasBounds = false;
+
+    private long mCreatedMillis;
+
+    private long mModifiedMillis;
+
+    /**
+     * 色ごとのストローク数。ストロークを追加している間だけ使います。
+     */
+    private Map<Integer, int[]> mColorCounts = new HashMap<Integer, int[]>();
+
+    private int mColorCount;
+
+    private int[] mPaletteColors = new int[0];
+
+    private int[] mPaletteCounts = new int[0];
+
+    private final float[] mStrokeBounds = new float[4];
+
+    /**
+     * ハッシュ値を求めるためにストロークを書き出す先。ストロークを追加している間だけ使います。
+     */
+    private StrokeWriter mDigestWriter;
+
+    private MessageDigest mDigest;
+
+    private byte[] mContentHash;
+
+    /**
+     * ファイルから読み込んだ場合の背景色。
+     */
+    private int mBgColor;
+
+    /**
+     * @param canvasWidth キャンバスの幅。
+     * @param canvasHeight キャンバスの高さ。
+     * @param createdMillis 作成日時(エポックからのミリ秒)。
+     * @param modifiedMillis 更新日時(エポックからのミリ秒)。
+     */
+    DrawingMetadata(int canvasWidth, int canvasHeight, long createdMillis, long modifiedMillis) {
+        super();
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+        mCreatedMillis = createdMillis;
+        mModifiedMillis = modifiedMillis;
+    }
+
+    /**
+     * 追加したストロークの内容のハッシュ値を求めるように指定します。最初のストロークを追加する前に呼び出してください。
+     */
+    public void computeContentHash() {
+        try {
+            mDigest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 はどの環境にもある
+            throw new IllegalStateException(e);
+        }
+        mDigestWriter = new StrokeWriter(new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // ハッシュ値を求めるだけなので捨てる
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // ハッシュ値を求めるだけなので捨てる
+            }
+        }, mDigest));
+    }
+
+    /**
+     * ストロークを集計に加えます。
+     *
+     * @param stroke ストローク。
+     */
+    public void add(Stroke stroke) {
+        if (stroke.getBounds(mStrokeBounds)) {
+            final float half = stroke.mSize / 2;
+            if (!mHasBounds) {
+                mHasBounds = true;
+                mBounds[0] = mStrokeBounds[0] - half;
+                mBounds[1] = mStrokeBounds[1] - half;
+                mBounds[2] = mStrokeBounds[2] + half;
+                mBounds[3] = mStrokeBounds[3] + half;
+            } else {
+                mBounds[0] = Math.min(mBounds[0], mStrokeBounds[0] - half);
+                mBounds[1] = Math.min(mBounds[1], mStrokeBounds[1] - half);
+                mBounds[2] = Math.max(mBounds[2], mStrokeBounds[2] + half);
+                mBounds[3] = Math.max(mBounds[3], mStrokeBounds[3] + half);
+            }
+        }
+        mStrokeCount++;
+        mPointCount += stroke.mPointCount;
+        if (mDigestWriter != null) {
+            try {
+                mDigestWriter.write(stroke);
+            } catch (IOException e) {
+                // メモリ上で書き出すので起こらない
+                throw new IllegalStateException(e);
+            }
+        }
+
+        final Integer color = Integer.valueOf(stroke.mColor);
+        final int[] count = mColorCounts.get(color);
+        if (count == null) {
+            mColorCounts.put(color, new int[] {
+                    1
+            });
+        } else {
+            count[0]++;
+        }
+    }
+
+    /**
+     * 集計を終えてパレットを確定します。書き出す前に一度だけ呼び出してください。
+     */
+    public void finish() {
+        final List<Map.Entry<Integer, int[]>> entries = new ArrayList<Map.Entry<Integer, int[]>>(
+                mColorCounts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Integer, int[]>>() {
+            @Override
+            public int compare(Map.Entry<Integer, int[]> lhs, Map.Entry<Integer, int[]> rhs) {
+                final int l = lhs.getValue()[0];
+                final int r = rhs.getValue()[0];
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        final int size = Math.min(MAX_PALETTE_SIZE, entries.size());
+        mColorCount = entries.size();
+        mPaletteColors = new int[size];
+        mPaletteCounts = new int[size];
+        for (int i = 0; i < size; i++) {
+            mPaletteColors[i] = entries.get(i).getKey().intValue();
+            mPaletteCounts[i] = entries.get(i).getValue()[0];
+        }
+        mColorCounts = null;
+        if (mDigest != null) {
+            mContentHash = mDigest.digest();
+            mDigest = null;
+            mDigestWriter = null;
+        }
+    }
+
+    /**
+     * {@link #SIZE} バイトで書き出します。
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(mStrokeCount);
+        out.writeLong(mPointCount);
+        out.writeInt(mCanvasWidth);
+        out.writeInt(mCanvasHeight);
+        for (float bound : mBounds) {
+            out.writeFloat(bound);
+        }
+        out.writeLong(mCreatedMillis);
+        out.writeLong(mModifiedMillis);
+        out.writeInt(mColorCount);
+        out.writeInt(mPaletteColors.length);
+        for (int i = 0; i < mPaletteColors.length; i++) {
+            out.writeInt(mPaletteColors[i]);
+            out.writeInt(mPaletteCounts[i]);
+        }
+        out.write(new byte[SIZE - usedSize(mPaletteColors.length) - CONTENT_HASH_LENGTH]);
+        out.write(mContentHash != null ? mContentHash : new byte[CONTENT_HASH_LENGTH]);
+    }
+
+    /**
+     * {@link #write(DataOutput)} で書き出したものを読み込みます。
+     */
+    static DrawingMetadata read(DataInput in) throws IOException {
+        final int strokeCount = in.readInt();
+        final long pointCount = in.readLong();
+        final DrawingMetadata metadata = new DrawingMetadata(in.readInt(), in.readInt(), 0L,
+                0L);
+        metadata.mStrokeCount = strokeCount;
+        metadata.mPointCount = pointCount;
+        for (int i = 0; i < metadata.mBounds.length; i++) {
+            metadata.mBounds[i] = in.readFloat();
+        }
+        metadata.mCreatedMillis = in.readLong();
+        metadata.mModifiedMillis = in.readLong();
+        metadata.mColorCount = in.readInt();
+        final int paletteSize = in.readInt();
+        if (strokeCount < 0 || pointCount < 0 || paletteSize < 0
+                || MAX_PALETTE_SIZE < paletteSize) {
+            throw new IOException("corrupted stroke file");
+        }
+        metadata.mPaletteColors = new int[paletteSize];
+        metadata.mPaletteCounts = new int[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            metadata.mPaletteColors[i] = in.readInt();
+            metadata.mPaletteCounts[i] = in.readInt();
+        }
+        in.skipBytes(SIZE - usedSize(paletteSize) - CONTENT_HASH_LENGTH);
+        final byte[] hash = new byte[CONTENT_HASH_LENGTH];
+        in.readFully(hash);
+        // すべて 0 であれば記録していない
+        for (byte b : hash) {
+            if (b != 0) {
+                metadata.mContentHash = hash;
+                break;
+            }
+        }
+        metadata.mColorCounts = null;
+        return metadata;
+    }
+
+    /**
+     * ストロークファイルの先頭から概要だけを読み込みます。ストロークは読み込みません。
+     *
+     * @param strokeFile ストロークファイル。
+     * @return 概要。概要を持たない形式の場合は {@code null}。
+     */
+    static DrawingMetadata read(File strokeFile) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(strokeFile, "r");
+        try {
+            final byte[] magic = new byte[BlockStrokeWriter.MAGIC.length];
+            if (file.length() < BlockStrokeWriter.METADATA_OFFSET + SIZE) {
+                return null;
+            }
+            file.readFully(magic);
+            if (!Arrays.equals(magic, BlockStrokeWriter.MAGIC)
+                    || file.readUnsignedByte() < BlockStrokeWriter.VERSION_METADATA) {
+                return null;
+            }
+            final int bgColor = file.readInt();
+            final DrawingMetadata metadata = read(file);
+            metadata.mBgColor = bgColor;
+            return metadata;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 概要を持つストロークファイルの背景色と更新日時を書き換えます。ストロークと、概要のほかの項目はそのままです。
+     *
+     * @param strokeFile {@link #read(File)} で概要を読み込めるストロークファイル。
+     * @param bgColor 背景色。
+     * @param modifiedMillis 更新日時(エポックからのミリ秒)。
+     */
+    static void writeBgColor(File strokeFile, int bgColor, long modifiedMillis)
+            throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(strokeFile, "rw");
+        try {
+            file.seek(StrokeWriter.BG_COLOR_OFFSET);
+            file.writeInt(bgColor);
+            file.seek(BlockStrokeWriter.METADATA_OFFSET + MODIFIED_MILLIS_OFFSET);
+            file.writeLong(modifiedMillis);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static int usedSize(int paletteSize) {
+        return 60 + paletteSize * 8;
+    }
+
+    public int getStrokeCount() {
+        return mStrokeCount;
+    }
+
+    /**
+     * 保持している座標の数を返します。曲線のストローク({@link Stroke#mCurves})は曲線の点の数を数えます。
+     */
+    public long getPointCount() {
+        return mPointCount;
+    }
+
+    public int getCanvasWidth() {
+        return mCanvasWidth;
+    }
+
+    public int getCanvasHeight() {
+        return mCanvasHeight;
+    }
+
+    /**
+     * 描かれている範囲を返します。
+     *
+     * @param out 左, 上, 右, 下を格納する配列。
+     */
+    public void getBounds(float[] out) {
+        System.arraycopy(mBounds, 0, out, 0, mBounds.length);
+    }
+
+    /**
+     * ストロークの内容のハッシュ値を返します。
+     *
+     * @return ハッシュ値。求めていない場合は {@code null}。
+     */
+    public byte[] getContentHash() {
+        return mContentHash == null ? null : mContentHash.clone();
+    }
+
+    /**
+     * ストロークの内容のハッシュ値を16進数の文字列で返します。
+     *
+     * @return ハッシュ値。求めていない場合は {@code null}。
+     */
+    public String getContentHashString() {
+        if (mContentHash == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder(mContentHash.length * 2);
+        for (byte b : mContentHash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * ストロークの内容が同じかどうかを返します。
+     *
+     * @param other 比べる概要。
+     * @return どちらもハッシュ値を持ち、それが等しい場合は {@code true}。
+     */
+    public boolean hasSameContent(DrawingMetadata other) {
+        return mContentHash != null && other.mContentHash != null
+                && Arrays.equals(mContentHash, other.mContentHash);
+    }
+
+    /**
+     * {@link #read(File)} で読み込んだ場合に、ファイルの背景色を返します。
+     */
+    public int getBgColor() {
+        return mBgColor;
+    }
+
+    public long getCreatedMillis() {
+        return mCreatedMillis;
+    }
+
+    public long getModifiedMillis() {
+        return mModifiedMillis;
+    }
+
+    /**
+     * 使われている色の数を返します。パレットに記録した色の数より多いことがあります。
+     */
+    public int getColorCount() {
+        return mColorCount;
+    }
+
+    /**
+     * ストローク数の多い順に、最大 {@link #MAX_PALETTE_SIZE} 色を返します。
+     */
+    public int[] getPaletteColors() {
+        return mPaletteColors.clone();
+    }
+
+    /**
+     * {@link #getPaletteColors()} のそれぞれの色のストローク数を返します。
+     */
+    public int[] getPaletteCounts() {
+        return mPaletteCounts.clone();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "strokes=%d, points=%d, canvas=%dx%d, bounds=[%.1f,%.1f,%.1f,%.1f], colors=%d",
+                Integer.valueOf(mStrokeCount), Long.valueOf(mPointCount),
+                Integer.valueOf(mCanvasWidth), Integer.valueOf(mCanvasHeight),
+                Float.valueOf(mBounds[0]), Float.valueOf(mBounds[1]), Float.valueOf(mBounds[2]),
+                Float.valueOf(mBounds[3]), Integer.valueOf(mColorCount));
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.simplepaint;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 保存するファイルの名前を決めるクラスです。
+ *
+ * <p>
+ * Android に依存しないので、 tools/src の JVM 用のツールからも使えます。
+ * </p>
+ */
+final class FileNames {
+
+    private FileNames() {
+        // not instantiable
+    }
+
+    /**
+     * まだ存在しない {@code <basename><時刻>.<extention>} という名前のファイルを返します。
+     * 同じ時刻のファイルがすでにあれば、少し待ってから時刻を取り直します。ファイルは作りません。
+     *
+     * @param baseDir ディレクトリ。
+     * @param basename 名前の先頭。
+     * @param extention 拡張子。
+     * @return ファイル。
+     */
+    static File createForNew(File baseDir, String basename, String extention) {
+        boolean interrupted = false;
+        File imageFile = null;
+        do {
+            if (imageFile != null) {
+                // ２回目以降は少し待つ
+                try {
+                    TimeUnit.MILLISECONDS.sleep(10L);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            imageFile = new File(baseDir, basename + System.currentTimeMillis()
+                    + "." + extention);
+        } while (imageFile.exists());
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return imageFile;
+    }
+}
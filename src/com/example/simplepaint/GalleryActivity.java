@@ -2,32 +2,36 @@
 package com.example.simplepaint;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.graphics.Bitmap;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.SparseBooleanArray;
 import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.AbsListView.MultiChoiceModeListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ArrayAdapter;
-import android.widget.FrameLayout;
 import android.widget.GridView;
-import android.widget.ImageView;
-import android.widget.ListAdapter;
 
 import com.example.simplepaint.ics.R;
 
 public class GalleryActivity extends Activity {
     GridView mImages;
 
+    GalleryAdapter mAdapter;
+
+    /**
+     * ストロークファイルのディレクトリを監視し、変更を {@link #mAdapter} に反映させます。
+     */
+    StrokeDirectoryObserver mObserver;
+
     MultiChoiceModeListener mActionModeCalback = new MultiChoiceModeListener() {
         @Override
         public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
@@ -45,8 +49,8 @@ public class GalleryActivity extends Activity {
         public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
             switch (item.getItemId()) {
                 case R.id.delete:
+                    // 一覧からはすぐに消し、ファイルはバックグラウンドで削除する
                     deleteCheckedImages();
-                    updateImages();
                     // アクションモード終了
                     mode.finish();
                     return true;
@@ -71,6 +75,17 @@ public class GalleryActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.gallery);
         mImages = (GridView) findViewById(R.id.images);
+        mAdapter = new GalleryAdapter(this);
+        mImages.setAdapter(mAdapter);
+
+        // 最初に一覧を作ったあとはディレクトリの変更を監視して差分だけを反映させる。
+        // 一覧を作っている間の変更を取りこぼさないよう、先に監視を始める
+        final File baseDir = PaintView.prepareImageBaseDir(getApplicationContext());
+        if (baseDir != null) {
+            mObserver = new StrokeDirectoryObserver(baseDir, mAdapter);
+            mObserver.startWatching();
+        }
+        updateImages();
 
         // ロングタップで複数選択モード(アクションモード)に入るように指定
         mImages.setChoiceMode(AbsListView.CHOICE_MODE_MULTIPLE_MODAL);
@@ -86,9 +101,11 @@ public class GalleryActivity extends Activity {
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
-        updateImages();
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mObserver != null) {
+            mObserver.stopWatching();
+        }
     }
 
     @Override
@@ -120,54 +137,38 @@ public class GalleryActivity extends Activity {
     }
 
     private void updateImages() {
-        File[] strokeFiles = PaintView.listStrokeFiles(getApplicationContext());
-        ListAdapter adapter = new ArrayAdapter<File>(this, 0, strokeFiles) {
-            @Override
-            public View getView(int position, View convertView, ViewGroup parent) {
-                ViewGroup gridItemView;
-                ImageView view;
-
-                if (convertView == null) {
-                    gridItemView = new PaintView.CheckableLayout(GalleryActivity.this);
-                    gridItemView.setLayoutParams(new GridView.LayoutParams(
-                            GridView.LayoutParams.WRAP_CONTENT,
-                            GridView.LayoutParams.WRAP_CONTENT));
-
-                    view = new ImageView(GalleryActivity.this);
-                    view.setLayoutParams(new ViewGroup.LayoutParams(
-                            FrameLayout.LayoutParams.WRAP_CONTENT,
-                            FrameLayout.LayoutParams.WRAP_CONTENT));
-                    view.setPadding(12, 12, 12, 12);
-                    gridItemView.addView(view);
-                    gridItemView.setTag(view);
-                } else {
-                    gridItemView = (ViewGroup) convertView;
-                    view = (ImageView) gridItemView.getTag();
-                }
-
-                File strokeFile = getItem(position);
-                Bitmap thumbnail = PaintView.getThumbnailBitmap(strokeFile);
-                if (thumbnail != null) {
-                    view.setImageBitmap(thumbnail);
-                }
-
-                return gridItemView;
-            }
-        };
-
-        mImages.setAdapter(adapter);
+        // 前の一覧との差分だけを反映させるので、スクロール位置や読み込み済みのサムネイルはそのまま残る
+        mAdapter.update(PaintView.listStrokeFiles(getApplicationContext()));
     }
 
     private void deleteCheckedImages() {
         SparseBooleanArray checkedItemPositions = mImages.getCheckedItemPositions();
-        @SuppressWarnings("unchecked")
-        ArrayAdapter<File> adapter = (ArrayAdapter<File>) mImages.getAdapter();
-        for (int position = 0; position < adapter.getCount(); position++) {
+        final List<File> strokeFiles = new ArrayList<File>();
+        for (int position = 0; position < mAdapter.getCount(); position++) {
             boolean checked = checkedItemPositions.get(position);
             if (checked) {
-                File strokeFile = adapter.getItem(position);
-                PaintView.deleteImage(strokeFile);
+                strokeFiles.add(mAdapter.getItem(position));
             }
         }
+        if (strokeFiles.isEmpty()) {
+            return;
+        }
+
+        // 一覧からまとめて取り除き、変更の通知は一度だけにする
+        mImages.clearChoices();
+        mAdapter.remove(strokeFiles);
+
+        new DeleteImagesTask().execute(strokeFiles.toArray(new File[strokeFiles.size()]));
+    }
+
+    /**
+     * ストロークファイルとサムネイルをバックグラウンドで削除するタスクです。
+     */
+    private static final class DeleteImagesTask extends AsyncTask<File, Void, Void> {
+        @Override
+        protected Void doInBackground(File... strokeFiles) {
+            PaintView.deleteImages(strokeFiles);
+            return null;
+        }
     }
 }
@@ -0,0 +1,283 @@
+package com.example.simplepaint;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.FrameLayout;
+import android.widget.GridView;
+import android.widget.ImageView;
+
+/**
+ * ギャラリーに表示するストロークファイルの一覧を保持するアダプタです。
+ *
+ * <p>
+ * 一覧を作り直すときは、前の一覧とファイルのパスと更新日時を比べて、追加・削除・変更があったものだけを反映させます。
+ * 読み込んだサムネイルはファイルごとにキャッシュしておくので、変更のなかったファイルのサムネイルを読み込み直すことはありません。
+ * </p>
+ */
+final class GalleryAdapter extends BaseAdapter {
+
+    private final Context mContext;
+
+    /**
+     * 表示しているストロークファイル。ファイル名の順に並んでいます。
+     */
+    private List<Entry> mEntries = new ArrayList<Entry>();
+
+    /**
+     * ストロークファイルのパスをキーとするサムネイルのキャッシュ。
+     */
+    private final LruCache<String, Bitmap> mThumbnails;
+
+    /**
+     * いずれかの {@link ImageView} に表示しているサムネイル。
+     */
+    private final Set<Bitmap> mBound = new HashSet<Bitmap>();
+
+    /**
+     * 表示中にキャッシュから追い出されたサムネイル。表示しなくなったら {@link BitmapPool} に返します。
+     */
+    private final Set<Bitmap> mOrphans = new HashSet<Bitmap>();
+
+    GalleryAdapter(Context context) {
+        super();
+        mContext = context;
+        final int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16,
+                Integer.MAX_VALUE);
+        mThumbnails = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (mBound.contains(oldValue)) {
+                    mOrphans.add(oldValue);
+                } else {
+                    BitmapPool.getInstance().put(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * 一覧を {@code strokeFiles} で置き換えます。前の一覧から変化がなければ何もしません。
+     *
+     * @param strokeFiles ストロークファイル。
+     */
+    public void update(File[] strokeFiles) {
+        final File[] sorted = strokeFiles.clone();
+        Arrays.sort(sorted);
+
+        final Map<String, Entry> oldEntries = new HashMap<String, Entry>();
+        for (Entry entry : mEntries) {
+            oldEntries.put(entry.mFile.getPath(), entry);
+        }
+
+        final List<Entry> newEntries = new ArrayList<Entry>(sorted.length);
+        boolean changed = sorted.length != mEntries.size();
+        for (int i = 0; i < sorted.length; i++) {
+            final Entry entry = new Entry(sorted[i]);
+            final Entry old = oldEntries.remove(entry.mFile.getPath());
+            if (old == null || old.mLastModified != entry.mLastModified) {
+                // 追加または変更されたファイル
+                mThumbnails.remove(entry.mFile.getPath());
+                changed = true;
+            } else if (!changed && mEntries.get(i) != old) {
+                changed = true;
+            }
+            newEntries.add(entry);
+        }
+        for (String removedPath : oldEntries.keySet()) {
+            mThumbnails.remove(removedPath);
+        }
+
+        if (changed) {
+            mEntries = newEntries;
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * 作成・変更・削除されたストロークファイルを一覧に反映させます。変更の通知は一度だけ行います。
+     *
+     * @param strokeFiles 作成・変更・削除されたストロークファイル。存在しなければ削除されたものとして扱います。
+     */
+    public void applyChanges(Collection<File> strokeFiles) {
+        boolean changed = false;
+        for (File strokeFile : strokeFiles) {
+            final int index = indexOf(strokeFile);
+            mThumbnails.remove(strokeFile.getPath());
+            if (strokeFile.isFile()) {
+                if (0 <= index) {
+                    mEntries.set(index, new Entry(strokeFile));
+                } else {
+                    mEntries.add(-index - 1, new Entry(strokeFile));
+                }
+            } else if (0 <= index) {
+                mEntries.remove(index);
+            } else {
+                continue;
+            }
+            changed = true;
+        }
+        if (changed) {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * ストロークファイルを一覧から取り除きます。変更の通知は一度だけ行います。
+     *
+     * @param strokeFiles 取り除くストロークファイル。
+     */
+    public void remove(Collection<File> strokeFiles) {
+        boolean changed = false;
+        for (File strokeFile : strokeFiles) {
+            final int index = indexOf(strokeFile);
+            if (index < 0) {
+                continue;
+            }
+            mEntries.remove(index);
+            mThumbnails.remove(strokeFile.getPath());
+            changed = true;
+        }
+        if (changed) {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * ファイル名の順に並んだ一覧からストロークファイルを二分探索します。
+     *
+     * @return 見つかった位置。見つからなければ {@code -(挿入位置) - 1}。
+     */
+    private int indexOf(File strokeFile) {
+        int low = 0;
+        int high = mEntries.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = mEntries.get(mid).mFile.compareTo(strokeFile);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (0 < cmp) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public int getCount() {
+        return mEntries.size();
+    }
+
+    @Override
+    public File getItem(int position) {
+        return mEntries.get(position).mFile;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewGroup gridItemView;
+        ImageView view;
+
+        if (convertView == null) {
+            gridItemView = new PaintView.CheckableLayout(mContext);
+            gridItemView.setLayoutParams(new GridView.LayoutParams(
+                    GridView.LayoutParams.WRAP_CONTENT,
+                    GridView.LayoutParams.WRAP_CONTENT));
+
+            view = new ImageView(mContext);
+            view.setLayoutParams(new ViewGroup.LayoutParams(
+                    FrameLayout.LayoutParams.WRAP_CONTENT,
+                    FrameLayout.LayoutParams.WRAP_CONTENT));
+            view.setPadding(12, 12, 12, 12);
+            gridItemView.addView(view);
+            gridItemView.setTag(view);
+        } else {
+            gridItemView = (ViewGroup) convertView;
+            view = (ImageView) gridItemView.getTag();
+        }
+
+        final File strokeFile = getItem(position);
+        Bitmap thumbnail = mThumbnails.get(strokeFile.getPath());
+        if (thumbnail == null) {
+            unbind(view);
+            thumbnail = PaintView.getThumbnailBitmap(strokeFile);
+            if (thumbnail != null) {
+                mThumbnails.put(strokeFile.getPath(), thumbnail);
+            }
+        } else if (thumbnail != currentBitmap(view)) {
+            unbind(view);
+        }
+        if (thumbnail != null) {
+            view.setImageBitmap(thumbnail);
+            mBound.add(thumbnail);
+        }
+
+        return gridItemView;
+    }
+
+    /**
+     * {@link ImageView} に表示していたサムネイルを外します。キャッシュから追い出されていたものは
+     * {@link BitmapPool} に返します。
+     */
+    private void unbind(ImageView view) {
+        final Bitmap previous = currentBitmap(view);
+        view.setImageDrawable(null);
+        if (previous == null) {
+            return;
+        }
+        mBound.remove(previous);
+        if (mOrphans.remove(previous)) {
+            BitmapPool.getInstance().put(previous);
+        }
+    }
+
+    private static Bitmap currentBitmap(ImageView view) {
+        final Drawable drawable = view.getDrawable();
+        if (drawable instanceof BitmapDrawable) {
+            return ((BitmapDrawable) drawable).getBitmap();
+        }
+        return null;
+    }
+
+    /**
+     * 一覧の1項目です。
+     */
+    private static final class Entry {
+        final File mFile;
+        final long mLastModified;
+
+        Entry(File file) {
+            super();
+            mFile = file;
+            mLastModified = file.lastModified();
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.simplepaint;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.MotionEvent;
+
+/**
+ * {@link WorkloadGenerator} で生成したものを {@link PaintView} に渡し、処理性能を測るクラスです。
+ *
+ * <p>
+ * タッチイベントの処理、ストロークの確定、 {@link PaintView#getStrokeString()} 、
+ * {@link PaintView#save()} 、 {@link PaintView#restore(String)} のそれぞれについて、
+ * 1秒あたりの処理数、処理時間のパーセンタイル、ヒープの使用量の最大値を集計します。
+ * 各メソッドは {@link LoadTestRunner} を作ったスレッドから呼び出してください。作るスレッドには {@link Looper} が必要です。
+ * 保存したファイルはキャッシュディレクトリの下に置くので、ギャラリーには表示されません。
+ * </p>
+ * <p>
+ * {@link #start(Context, int, int, OnFinishedListener)} は、10本の指で描く操作と
+ * {@value #LARGE_DRAWING_STROKES} 本のストロークを持つ画の負荷テストを専用のスレッドで行います。
+ * デバッグ用のビルドでは、メニューの「負荷テストを実行」から実行できます。
+ * </p>
+ */
+final class LoadTestRunner {
+
+    private static final String TAG = LoadTestRunner.class.getSimpleName();
+
+    /**
+     * {@link #start(Context, int, int, OnFinishedListener)} で同時に描く指の数。
+     */
+    static final int MAX_FINGERS = 10;
+
+    /**
+     * {@link #start(Context, int, int, OnFinishedListener)} で保存と復元を行う画のストロークの数。
+     */
+    static final int LARGE_DRAWING_STROKES = 100000;
+
+    /**
+     * {@link #LARGE_DRAWING_STROKES} 本のストロークのそれぞれの座標の数。ストローク文字列が端末のヒープに収まるよう短くしています。
+     */
+    private static final int LARGE_DRAWING_POINTS = 4;
+
+    private static final String SAVE_DIR_NAME = "load-test";
+
+    /**
+     * 実行中かどうか。 UI スレッドからだけ参照します。
+     */
+    private static boolean sRunning = false;
+
+    private final PaintView mView;
+
+    private final File mSaveDir;
+
+    private final WorkloadGenerator mGenerator;
+
+    private final List<Phase> mPhases = new ArrayList<Phase>();
+
+    private long mHeapHighWater = 0L;
+
+    /**
+     * @param context {@link PaintView} を作るためのコンテキスト。
+     * @param seed 乱数のシード。
+     * @param width {@link PaintView} の幅。
+     * @param height {@link PaintView} の高さ。
+     */
+    LoadTestRunner(Context context, long seed, int width, int height) {
+        super();
+        mView = new PaintView(context, null);
+        // 画面に表示しないので、大きさは自分で決める
+        mView.layout(0, 0, width, height);
+        mSaveDir = new File(context.getCacheDir(), SAVE_DIR_NAME);
+        mView.setSaveDir(mSaveDir);
+        mGenerator = new WorkloadGenerator(seed, width, height);
+    }
+
+    /**
+     * 10本の指で描く操作と、 {@value #LARGE_DRAWING_STROKES} 本のストロークを持つ画の保存と復元の負荷テストを、
+     * {@link Looper} を持つ専用のスレッドで行います。UI スレッドから呼び出してください。
+     *
+     * @param context コンテキスト。アプリケーションのコンテキストを使います。
+     * @param width {@link PaintView} の幅。
+     * @param height {@link PaintView} の高さ。
+     * @param listener 終わったときに UI スレッドで結果を渡すリスナー。
+     * @return 始めた場合は {@code true}。ほかの負荷テストが実行中であれば {@code false}。
+     */
+    static boolean start(Context context, final int width, final int height,
+            final OnFinishedListener listener) {
+        if (sRunning) {
+            return false;
+        }
+        sRunning = true;
+        final Context appContext = context.getApplicationContext();
+        final Handler uiHandler = new Handler(Looper.getMainLooper());
+        final HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    final LoadTestRunner runner = new LoadTestRunner(appContext, 0L, width,
+                            height);
+                    runner.runTouch(MAX_FINGERS, 50, 60, 4);
+                    runner.runHistory(LARGE_DRAWING_STROKES, LARGE_DRAWING_POINTS, 3);
+                    result = runner.toString();
+                } catch (OutOfMemoryError e) {
+                    // 大きな画がヒープに収まらないことも結果として報告する
+                    Log.e(TAG, "out of memory", e);
+                    result = "out of memory: " + e.getMessage();
+                } finally {
+                    thread.quit();
+                }
+                final String message = result;
+                uiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        sRunning = false;
+                        listener.onFinished(message);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * タッチイベントを渡してストロークを描き、イベント1つの処理と、描いたストロークの確定にかかる時間を測ります。
+     *
+     * @param fingers 同時に描く指の数。
+     * @param gestures 描く回数。
+     * @param moves 1回あたりの移動のイベントの数。
+     * @param historySize 移動のイベント1つにまとめる過去の座標の数。
+     */
+    public void runTouch(int fingers, int gestures, int moves, int historySize) {
+        final Phase touch = new Phase("touch", gestures * (moves + fingers * 2));
+        final Phase commit = new Phase("commit", gestures);
+        for (int g = 0; g < gestures; g++) {
+            final List<MotionEvent> events = mGenerator.generateGesture(fingers, moves,
+                    historySize);
+            for (MotionEvent event : events) {
+                final long start = touch.begin();
+                mView.onTouchEvent(event);
+                touch.end(start);
+                event.recycle();
+            }
+            // 確定したストロークは次の描画でオフスクリーンに描かれる
+            final long start = commit.begin();
+            mView.getBitmap();
+            commit.end(start);
+            sampleHeap();
+        }
+        addPhase(touch);
+        addPhase(commit);
+    }
+
+    /**
+     * 多数のストロークを描いた状態で、ストローク文字列の作成、保存、復元にかかる時間を測ります。
+     * 保存したファイルは索引とともに最後に削除します。
+     *
+     * @param strokeCount ストロークの数。
+     * @param pointsPerStroke ストロークあたりの座標の数。
+     * @param iterations それぞれの処理を繰り返す回数。
+     */
+    public void runHistory(int strokeCount, int pointsPerStroke, int iterations) {
+        final String strokeString = WorkloadGenerator.toStrokeString(0xffffffff,
+                mGenerator.generateStrokes(strokeCount, pointsPerStroke, false));
+        sampleHeap();
+
+        final Phase restore = new Phase("restore", iterations);
+        final Phase toString = new Phase("getStrokeString", iterations);
+        final Phase save = new Phase("save", iterations);
+        for (int i = 0; i < iterations; i++) {
+            long start = restore.begin();
+            mView.restore(strokeString);
+            restore.end(start);
+            sampleHeap();
+
+            start = toString.begin();
+            mView.getStrokeString();
+            toString.end(start);
+            sampleHeap();
+
+            start = save.begin();
+            final PaintView.Files files = mView.save();
+            save.end(start);
+            sampleHeap();
+            if (files == null) {
+                Log.e(TAG, "failed to save strokes");
+            } else {
+                PaintView.deleteImage(files.getStrokeFile());
+            }
+        }
+        deleteAll(mSaveDir);
+        addPhase(restore);
+        addPhase(toString);
+        addPhase(save);
+    }
+
+    /**
+     * ヒープの使用量の最大値(バイト)を返します。
+     */
+    public long getHeapHighWater() {
+        return mHeapHighWater;
+    }
+
+    private void addPhase(Phase phase) {
+        mPhases.add(phase);
+        Log.i(TAG, phase.toString());
+    }
+
+    private static void deleteAll(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void sampleHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        mHeapHighWater = Math.max(mHeapHighWater, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * これまでの結果を返します。
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Phase phase : mPhases) {
+            sb.append(phase).append('\n');
+        }
+        sb.append(String.format(Locale.US, "heap high-water: %.1fMB",
+                Double.valueOf(mHeapHighWater / (1024.0 * 1024.0))));
+        return sb.toString();
+    }
+
+    /**
+     * {@link LoadTestRunner#start(Context, int, int, OnFinishedListener)} の負荷テストが終わったときに呼び出されるリスナーです。
+     */
+    interface OnFinishedListener {
+        /**
+         * 負荷テストが終わったときに UI スレッドで呼び出されます。
+         *
+         * @param result 結果。
+         */
+        void onFinished(String result);
+    }
+
+    /**
+     * 1種類の処理の時間の集計です。
+     */
+    private static final class Phase {
+        private final String mName;
+        private long[] mNanos;
+        private int mCount = 0;
+        private long mTotalNanos = 0L;
+
+        Phase(String name, int expectedCount) {
+            super();
+            mName = name;
+            mNanos = new long[Math.max(1, expectedCount)];
+        }
+
+        long begin() {
+            return System.nanoTime();
+        }
+
+        void end(long start) {
+            final long elapsed = System.nanoTime() - start;
+            if (mCount == mNanos.length) {
+                mNanos = Arrays.copyOf(mNanos, mCount * 2);
+            }
+            mNanos[mCount++] = elapsed;
+            mTotalNanos += elapsed;
+        }
+
+        private double percentileMillis(long[] sorted, double percentile) {
+            if (mCount == 0) {
+                return 0.0;
+            }
+            final int index = (int) Math.ceil(percentile / 100.0 * mCount) - 1;
+            return sorted[Math.max(0, Math.min(mCount - 1, index))] / 1000000.0;
+        }
+
+        @Override
+        public String toString() {
+            final long[] sorted = Arrays.copyOf(mNanos, mCount);
+            Arrays.sort(sorted);
+            final double throughput = mTotalNanos == 0 ? 0.0 : mCount * 1e9 / mTotalNanos;
+            return String.format(Locale.US,
+                    "%s: n=%d, %.1f/s, p50=%.3fms, p90=%.3fms, p99=%.3fms, max=%.3fms", mName,
+                    Integer.valueOf(mCount), Double.valueOf(throughput),
+                    Double.valueOf(percentileMillis(sorted, 50)),
+                    Double.valueOf(percentileMillis(sorted, 90)),
+                    Double.valueOf(percentileMillis(sorted, 99)),
+                    Double.valueOf(percentileMillis(sorted, 100)));
+        }
+    }
+}
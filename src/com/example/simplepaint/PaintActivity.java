@@ -19,11 +19,15 @@ public class PaintActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
 
-        String strokeString = PaintView.readStrokeFile(getIntent(), EXTRA_STROKE_FILE);
-        if (strokeString != null) {
+        if (savedInstanceState != null) {
+            // 描いていたものは PaintFragment が復元する
+            return;
+        }
+        File strokeFile = PaintView.getStrokeFileExtra(getIntent(), EXTRA_STROKE_FILE);
+        if (strokeFile != null) {
             PaintFragment canvas = (PaintFragment) getFragmentManager().findFragmentById(
                     R.id.canvas);
-            canvas.setStrokeString(strokeString);
+            canvas.loadStrokeFile(strokeFile);
         }
     }
 
@@ -1,11 +1,19 @@
 
 package com.example.simplepaint;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 import android.app.ActionBar;
 import android.app.Fragment;
+import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -21,6 +29,17 @@ import com.example.simplepaint.PaintView.Files;
 import com.example.simplepaint.ics.R;
 
 public class PaintFragment extends Fragment {
+    private static final String TAG = PaintFragment.class.getSimpleName();
+
+    /**
+     * デバッグ用のメニューで検証する、 assets に含めた記録の名前。
+     */
+    private static final String REPLAY_NAME = "pen-settings";
+
+    private static final int REPLAY_CHANNEL_TOLERANCE = 8;
+
+    private static final float REPLAY_PIXEL_TOLERANCE = 0.001F;
+
     static Integer[] COLORS = new Integer[] {
             0xff000000, // 黒
             0xffffffff, // 白
@@ -34,6 +53,23 @@ public class PaintFragment extends Fragment {
 
     PaintView mCanvas;
 
+    /**
+     * 描いている途中の画を保存しておくセッション。
+     */
+    SessionCache mSession;
+
+    /**
+     * 構成変更をまたいで {@link PaintView} の状態を引き継ぐための Fragment。
+     */
+    PaintStateFragment mStateFragment;
+
+    /**
+     * デバッグ用のメニューから始めたタッチイベントの記録。記録していない場合は {@code null}。
+     */
+    private TouchRecorder mTouchRecorder;
+
+    private File mRecordingFile;
+
     ActionBar.OnNavigationListener mNavigationCallback = new ActionBar.OnNavigationListener() {
         @Override
         public boolean onNavigationItemSelected(int itemPosition, long itemId) {
@@ -50,6 +86,15 @@ public class PaintFragment extends Fragment {
         mCanvas.restore(strokeString);
     }
 
+    /**
+     * ストロークファイルをバックグラウンドで読み込み、読み込めたものから順に表示します。
+     *
+     * @param strokeFile ストロークファイル。
+     */
+    public void loadStrokeFile(File strokeFile) {
+        mCanvas.load(strokeFile);
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -96,29 +141,64 @@ public class PaintFragment extends Fragment {
 
         actionBar.setListNavigationCallbacks(adapter, mNavigationCallback);
 
-        if (savedInstanceState != null) {
-            String stroke = savedInstanceState.getString(STATE_STROKES);
-            if (stroke != null) {
-                mCanvas.restore(stroke);
-            }
+        mStateFragment = (PaintStateFragment) getFragmentManager().findFragmentByTag(
+                PaintStateFragment.TAG);
+        if (mStateFragment == null) {
+            mStateFragment = new PaintStateFragment();
+            getFragmentManager().beginTransaction().add(mStateFragment, PaintStateFragment.TAG)
+                    .commit();
+        }
+
+        final String sessionId = savedInstanceState == null ? null : savedInstanceState
+                .getString(STATE_SESSION_ID);
+        if (mStateFragment.getState() != null) {
+            // 構成変更前の PaintView からビットマップと履歴をそのまま引き継ぐ
+            mCanvas.restoreState(mStateFragment.getState());
+            mSession = mStateFragment.getSession();
+            mStateFragment.clear();
+        } else if (sessionId != null) {
+            mSession = SessionCache.open(getActivity().getApplicationContext(), sessionId);
+            mSession.restoreTo(mCanvas);
+        } else {
+            mSession = SessionCache.create(getActivity().getApplicationContext());
         }
     }
 
-    private static final String STATE_STROKES = "STROKES";
+    private static final String STATE_SESSION_ID = "SESSION_ID";
 
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString(STATE_STROKES, mCanvas.getStrokeString());
+        // ストロークはセッションファイルへ書き出し、Bundle には ID だけを保存する
+        mSession.sync(mCanvas);
+        outState.putString(STATE_SESSION_ID, mSession.getId());
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        if (mTouchRecorder != null) {
+            stopTouchRecording();
+            getActivity().invalidateOptionsMenu();
+        }
         if (getActivity().isFinishing()) {
-            if (!saveImage()) {
-                Toast.makeText(getActivity(), "画像が保存できませんでした", Toast.LENGTH_SHORT).show();
-            }
+            saveImage();
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mStateFragment != null && getActivity().isChangingConfigurations()) {
+            mStateFragment.keep(mCanvas.saveState(), mSession);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mSession != null && getActivity().isFinishing()) {
+            mSession.delete();
         }
     }
 
@@ -136,6 +216,22 @@ public class PaintFragment extends Fragment {
         setBgColorOnMenuClick(bgItem, R.id.green, COLORS[5]);
         setBgColorOnMenuClick(bgItem, R.id.blue, COLORS[6]);
         setBgColorOnMenuClick(bgItem, R.id.purple, COLORS[7]);
+
+        menu.findItem(R.id.variable_width).setChecked(mCanvas.isVariableWidthEnabled());
+        menu.findItem(R.id.touch_prediction).setChecked(mCanvas.isTouchPredictionEnabled());
+        menu.findItem(R.id.viewport).setChecked(mCanvas.isViewportGestureEnabled());
+
+        if (isDebuggable()) {
+            inflater.inflate(R.menu.debug_menu, menu);
+            menu.findItem(R.id.record_touches).setChecked(mTouchRecorder != null);
+        }
+    }
+
+    /**
+     * デバッグ用のビルドかどうかを返します。デバッグ用のメニューはこのときだけ表示します。
+     */
+    private boolean isDebuggable() {
+        return (getActivity().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
     }
 
     private void setBgColorOnMenuClick(final MenuItem item, int id, final int color) {
@@ -161,17 +257,144 @@ public class PaintFragment extends Fragment {
             case R.id.share:
                 shareImage();
                 return true;
+            case R.id.share_svg:
+                shareSvg();
+                return true;
             case R.id.clear:
                 clearCanvas();
                 return true;
+            case R.id.variable_width:
+                item.setChecked(!item.isChecked());
+                mCanvas.setVariableWidthEnabled(item.isChecked());
+                return true;
+            case R.id.touch_prediction:
+                item.setChecked(!item.isChecked());
+                mCanvas.setTouchPredictionEnabled(item.isChecked());
+                return true;
+            case R.id.viewport:
+                item.setChecked(!item.isChecked());
+                mCanvas.setViewportGestureEnabled(item.isChecked());
+                return true;
+            case R.id.reset_viewport:
+                mCanvas.resetViewport();
+                return true;
+            case R.id.prediction_error:
+                Toast.makeText(getActivity(), mCanvas.getTouchPredictor().toString(),
+                        Toast.LENGTH_LONG).show();
+                return true;
+            case R.id.record_touches:
+                if (mTouchRecorder == null) {
+                    startTouchRecording();
+                } else {
+                    stopTouchRecording();
+                }
+                item.setChecked(mTouchRecorder != null);
+                return true;
+            case R.id.verify_replay:
+                verifyReplay();
+                return true;
+            case R.id.load_test:
+                runLoadTest();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
-    private boolean saveImage() {
-        Files saved = mCanvas.save();
-        return saved != null;
+    /**
+     * 描いたものをバックグラウンドで保存します。保存が終わる前に Activity が終了しても構いません。
+     */
+    private void saveImage() {
+        final Context appContext = getActivity().getApplicationContext();
+        mCanvas.saveInBackground(new PaintView.OnSavedListener() {
+            @Override
+            public void onSaved(Files saved) {
+                if (saved == null) {
+                    Toast.makeText(appContext, "画像が保存できませんでした", Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
+    /**
+     * タッチイベントの記録を始めます。記録はアプリの外部ストレージのディレクトリに書き出します。
+     */
+    private void startTouchRecording() {
+        final File dir = getActivity().getExternalFilesDir(null);
+        if (dir == null) {
+            Toast.makeText(getActivity(), "ファイルが作成できません", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final File file = FileNames.createForNew(dir, "touch-",
+                ReplayVerifier.RECORDING_SUFFIX.substring(1));
+        try {
+            mTouchRecorder = new TouchRecorder(new BufferedOutputStream(new FileOutputStream(
+                    file)), mCanvas.getWidth(), mCanvas.getHeight());
+        } catch (IOException e) {
+            Log.e(TAG, "failed to create touch recording: " + file.getPath(), e);
+            Toast.makeText(getActivity(), "ファイルが作成できません", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mRecordingFile = file;
+        mCanvas.setTouchRecorder(mTouchRecorder);
+    }
+
+    /**
+     * タッチイベントの記録を終え、再生した結果を正解のファイルとして記録と同じディレクトリに書き出します。
+     * 書き出したファイルは {@code assets/replay} に置くと {@link #verifyReplay()} で使えます。
+     */
+    private void stopTouchRecording() {
+        mCanvas.setTouchRecorder(null);
+        final TouchRecorder recorder = mTouchRecorder;
+        final File file = mRecordingFile;
+        mTouchRecorder = null;
+        mRecordingFile = null;
+        final String name = file.getName().substring(0,
+                file.getName().length() - ReplayVerifier.RECORDING_SUFFIX.length());
+        try {
+            recorder.close();
+            ReplayVerifier.writeGolden(getActivity(), file, file.getParentFile(), name);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write golden files: " + file.getPath(), e);
+            Toast.makeText(getActivity(), "記録が保存できませんでした", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Toast.makeText(getActivity(), file.getPath(), Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * アプリに含めた記録を再生し、正解のファイルと比べた結果を表示します。
+     */
+    private void verifyReplay() {
+        String message;
+        try {
+            final ReplayVerifier.Result result = ReplayVerifier.verifyAsset(getActivity(),
+                    REPLAY_NAME, REPLAY_CHANNEL_TOLERANCE, REPLAY_PIXEL_TOLERANCE);
+            message = (result.isPassed() ? "一致しました: " : "一致しません: ") + result;
+        } catch (IOException e) {
+            Log.e(TAG, "failed to verify replay: " + REPLAY_NAME, e);
+            message = "検証できませんでした";
+        }
+        Log.i(TAG, message);
+        Toast.makeText(getActivity(), message, Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * 画面に表示していない {@link PaintView} で負荷テストを別のスレッドで行い、終わったら結果を表示します。
+     * 結果はログにも出力されます。
+     */
+    private void runLoadTest() {
+        final Context appContext = getActivity().getApplicationContext();
+        final boolean started = LoadTestRunner.start(appContext, mCanvas.getWidth(),
+                mCanvas.getHeight(), new LoadTestRunner.OnFinishedListener() {
+                    @Override
+                    public void onFinished(String result) {
+                        Log.i(TAG, result);
+                        Toast.makeText(appContext, result, Toast.LENGTH_LONG).show();
+                    }
+                });
+        Toast.makeText(appContext, started ? "負荷テストを開始しました" : "負荷テストを実行中です",
+                Toast.LENGTH_SHORT).show();
     }
 
     private void shareImage() {
@@ -188,6 +411,20 @@ public class PaintFragment extends Fragment {
         startActivity(intent);
     }
 
+    private void shareSvg() {
+        final Uri imageUri = mCanvas.saveImageAsSvg();
+        if (imageUri == null) {
+            Toast.makeText(getActivity(), "ファイルが作成できません", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("image/svg+xml");
+        intent.putExtra(Intent.EXTRA_STREAM, imageUri);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        startActivity(intent);
+    }
+
     private void clearCanvas() {
         mCanvas.clearCanvas();
     }
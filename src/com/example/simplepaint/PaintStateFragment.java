@@ -0,0 +1,77 @@
+package com.example.simplepaint;
+
+import android.app.Fragment;
+import android.os.Bundle;
+
+/**
+ * 画面回転などの構成変更をまたいで {@link PaintView} の状態を引き継ぐための、View を持たない Fragment です。
+ *
+ * <p>
+ * {@link #setRetainInstance(boolean)} で Activity が作り直されても破棄されないので、
+ * オフスクリーンビットマップとストロークの履歴をそのまま新しい {@link PaintView} に渡すことができます。
+ * 履歴を描き直す必要がないので、回転にかかる時間はストロークの数に依存しません。
+ * </p>
+ */
+public class PaintStateFragment extends Fragment {
+
+    static final String TAG = PaintStateFragment.class.getSimpleName();
+
+    private PaintView.State mState;
+
+    private SessionCache mSession;
+
+    public PaintStateFragment() {
+        // nothing to do
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mState != null) {
+            mState.cancelLoad();
+        }
+    }
+
+    /**
+     * 次の {@link PaintFragment} に引き継ぐ状態を預かります。
+     *
+     * @param state {@link PaintView} の状態。
+     * @param session 描いている途中の画を保存しているセッション。
+     */
+    void keep(PaintView.State state, SessionCache session) {
+        mState = state;
+        mSession = session;
+    }
+
+    /**
+     * 預かっている {@link PaintView} の状態を返します。
+     *
+     * @return 状態。預かっていなければ {@code null} を返します。
+     */
+    PaintView.State getState() {
+        return mState;
+    }
+
+    /**
+     * 預かっているセッションを返します。
+     *
+     * @return セッション。預かっていなければ {@code null} を返します。
+     */
+    SessionCache getSession() {
+        return mSession;
+    }
+
+    /**
+     * 預かっている状態を手放します。
+     */
+    void clear() {
+        mState = null;
+        mSession = null;
+    }
+}
@@ -16,30 +16,34 @@
 
 package com.example.simplepaint;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -47,15 +51,21 @@ import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.RectShape;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Process;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.Media;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.widget.Checkable;
 import android.widget.FrameLayout;
@@ -75,9 +85,29 @@ public class PaintView extends View {
     private static final int ACTION_POINTER_INDEX_SHIFT = 8;
 
     /**
-     * サポートする最大のポインタ数。
+     * サポートする最大のポインタ数。 {@link #mActivePointers} のビットで表すので 32 以下にしてください。
      */
-    private static final int MAX_POINTERS = 20;
+    static final int MAX_POINTERS = 20;
+
+    /**
+     * 確定したストロークを曲線で近似するスレッド。タッチイベントの処理を遅らせないよう、優先度を下げて1つずつ処理します。
+     */
+    private static final ExecutorService CURVE_FITTING_EXECUTOR = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "CurveFitter");
+                    // 近似が終わっていなくても、プロセスの終了は妨げない
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     /*
      * for stroke
@@ -86,9 +116,110 @@ public class PaintView extends View {
 
     private static final int DEFAULT_PEN_COLOR = Color.BLACK;
 
+    /**
+     * 太さが変わるストロークの、ペンのサイズに対する最小の太さの比率。
+     */
+    private static final float MIN_WIDTH_FACTOR = 0.2F;
+
+    /**
+     * 速度(px/ms)に応じて線を細くする度合い。
+     */
+    private static final float VELOCITY_THINNING = 0.35F;
+
+    /**
+     * 太さの変化をなめらかにするため、直前の太さをどれだけ残すか。
+     */
+    private static final float WIDTH_SMOOTHING = 0.6F;
+
+    /**
+     * ハードウェアアクセラレーションが有効な場合に、オフスクリーンにまとめて描くまでためておくストロークの数。
+     */
+    private static final int LAYER_MERGE_THRESHOLD = 16;
+
+    /**
+     * 表示倍率の下限。
+     */
+    private static final float MIN_ZOOM = 0.25F;
+
+    /**
+     * 表示倍率の上限。
+     */
+    private static final float MAX_ZOOM = 8.0F;
+
     private final Paint mPaintForPen;
 
-    private int mCurrentMaxPointerCount = 0;
+    /**
+     * 太さが変わるストロークの輪郭を塗りつぶすためのペイント。
+     */
+    private final Paint mPaintForFill;
+
+    /**
+     * 筆圧と速度に応じて線の太さを変えるかどうか。
+     */
+    private boolean mVariableWidthEnabled = false;
+
+    /**
+     * 指の少し先を予測して描くかどうか。
+     */
+    private boolean mTouchPredictionEnabled = false;
+
+    private final TouchPredictor mPredictor;
+
+    /**
+     * タッチイベントを記録する {@link TouchRecorder}。記録しない場合は {@code null}。
+     */
+    private TouchRecorder mTouchRecorder = null;
+
+    /**
+     * 予測した区間を描くためのペイント。太さが変わるストロークでは直前の太さにします。
+     */
+    private final Paint mPaintForPrediction;
+
+    /**
+     * 予測した区間のパス。 {@link #onDraw(Canvas)} でだけ使います。
+     */
+    private final Path mPredictionPath = new Path();
+
+    private final float[] mPredictedPoint = new float[2];
+
+    /**
+     * ストローク中のポインタの集合。PointerId のビットが立っています。
+     */
+    private int mActivePointers = 0;
+
+    /**
+     * 確定したがまだオフスクリーンに描いていないストロークの数。 {@link #mHistory} の末尾に並んでいます。
+     *
+     * <p>
+     * 同じフレームで確定したストロークを {@link #onDraw(Canvas)} でまとめて描くために使います。
+     * ハードウェアアクセラレーションが有効な場合は {@link #LAYER_MERGE_THRESHOLD} 個たまるまで描きません。
+     * </p>
+     */
+    private int mPendingCommitCount = 0;
+
+    /**
+     * 近似が終わっていない、座標のまま確定したストローク。近似が終わると {@link #mHistory} の要素を置き換えます。
+     */
+    private final List<CurveFitting> mPendingCurveFittings = new ArrayList<CurveFitting>();
+
+    /**
+     * 近似の結果を、 {@link PaintView} を作ったスレッドへ渡すための {@link Handler}。
+     */
+    private final Handler mHandler = new Handler();
+
+    /**
+     * 確定したがまだオフスクリーンに描いていないストロークのパスとペイント。 {@link #mHistory}
+     * の末尾の {@link #mPendingCommitCount} 個のうち、先頭から順に作ったものです。
+     *
+     * <p>
+     * ハードウェアアクセラレーションが有効な場合、オフスクリーンビットマップに描くとテクスチャを画面全体分転送し直すことになります。
+     * そこで確定したストロークはしばらくパスのまま {@link #onDraw(Canvas)} で描き、
+     * {@link #LAYER_MERGE_THRESHOLD} 個たまったらまとめてオフスクリーンに描きます。
+     * </p>
+     */
+    private final List<Path> mPendingPaths = new ArrayList<Path>();
+
+    private final List<Paint> mPendingPaints = new ArrayList<Paint>();
 
     /**
      * パスの配列。
@@ -120,19 +251,140 @@ public class PaintView extends View {
     private final int[] mPathCoordinateCounts;
 
     /**
-     * 確定したストローク配列。古いストロークから順に並んでいます
+     * 各ポインタの未確定パスの、座標ごとの太さ。太さが変わらないストロークでは {@code null} です。
+     *
+     * <p>
+     * 配列の長さは {@link #MAX_POINTERS} で初期化されます。太さはペンのサイズに対する比率を
+     * 0 から 255 に量子化したものです。
+     * </p>
+     */
+    private final byte[][] mPathWidths;
+
+    /**
+     * 各ポインタの直前の太さの比率。
+     */
+    private final float[] mPathLastWidthFactors;
+
+    /**
+     * 各ポインタの直前のイベント時刻(ミリ秒)。
+     */
+    private final long[] mPathLastEventTimes;
+
+    /**
+     * 確定したストローク配列。古いストロークから順に並んでいます。
+     * {@link StrokeHistory#snapshot()} でコピーせずに別スレッドへ渡せます。
+     */
+    private StrokeHistory mHistory;
+
+    /**
+     * バックグラウンドでストロークファイルを読み込んでいるタスク。読み込み中でなければ {@code null} です。
+     */
+    private StrokeLoader mLoader;
+
+    /**
+     * {@link #mLoader} が読み込んでいるストロークファイル。読み込み中でなければ {@code null} です。
+     */
+    private File[] mLoadingFiles;
+
+    /**
+     * 読み込み中のストロークを {@link #mHistory} のどこに挿入するか。
+     *
+     * <p>
+     * 読み込み中にユーザーが描いたストロークは読み込んだストロークより後ろ(上)に来るようにします。
+     * </p>
+     */
+    private int mLoadIndex;
+
+    /**
+     * 読み込んだストロークを、読み込み中に描かれたストロークの下に合成したかどうか。
+     *
+     * <p>
+     * 下に合成したストロークは、先に読み込んだストロークとの重なり順が逆になるので、読み込みが終わったときに履歴から1度だけ描き直します。
+     * </p>
+     */
+    private boolean mLoadedUnderUserStrokes;
+
+    /**
+     * 読み込みが終わったときに通知するリスナー。
      */
-    private List<Stroke> mHistory;
+    private OnLoadFinishedListener mOnLoadFinishedListener;
+
+    /**
+     * 履歴の世代。履歴が消去されるたびに増えます。
+     */
+    private int mHistoryGeneration = 0;
+
+    /**
+     * 今描かれている画を描き始めた日時(エポックからのミリ秒)。保存するときに概要に記録します。
+     */
+    private long mCreatedMillis;
+
+    /**
+     * 今描かれている画を読み込んだ、または最後に保存したギャラリーのストロークファイル。なければ {@code null}。
+     * 背景色だけを変えて保存するときは、このファイルの背景色とサムネイルだけを書き換えます。
+     */
+    private File mSavedStrokeFile;
+
+    /**
+     * {@link #save()} の保存先。 {@code null} であればギャラリーのディレクトリに保存します。
+     */
+    private File mSaveDir;
 
     /*
      * for off-screen
      */
     private final Paint mOffScreenPaint;
 
+    /**
+     * 読み込んだストロークを描いたレイヤーを、オフスクリーンの既存の内容の下に合成するためのペイント。
+     */
+    private final Paint mUnderLayerPaint;
+
     private Bitmap mOffScreenBitmap;
 
     private Canvas mOffScreenCanvas;
 
+    /**
+     * オフスクリーンの世代。オフスクリーンに描くたびに増えます。
+     */
+    private int mOffScreenGeneration = 0;
+
+    /*
+     * for viewport
+     */
+    /**
+     * キャンバスの座標から画面の座標への変換。
+     */
+    private final Matrix mViewMatrix = new Matrix();
+
+    /**
+     * 画面の座標からキャンバスの座標への変換。 {@link #mViewMatrix} の逆変換です。
+     */
+    private final Matrix mInverseViewMatrix = new Matrix();
+
+    private final float[] mMatrixValues = new float[9];
+
+    /**
+     * タッチで描くかわりに、表示の拡大縮小と移動をするかどうか。
+     */
+    private boolean mViewportGestureEnabled = false;
+
+    private final ScaleGestureDetector mScaleDetector;
+
+    /**
+     * 表示を移動するための、直前の指の重心。
+     */
+    private float mLastFocusX;
+
+    private float mLastFocusY;
+
+    /**
+     * 縮小して表示するときに使う、縮小済みのオフスクリーン。
+     */
+    private final ScaledRenderCache mScaledRenders = new ScaledRenderCache();
+
+    private final Paint mScaledRenderPaint;
+
     /**
      * 背景色(AARRGGBB)
      */
@@ -151,26 +403,53 @@ public class PaintView extends View {
         mPaintForPen.setStrokeCap(Paint.Cap.ROUND);
         mPaintForPen.setStrokeWidth(12.0F);
 
+        mPaintForFill = new Paint(mPaintForPen);
+        mPaintForFill.setStyle(Paint.Style.FILL);
+
+        mPaintForPrediction = new Paint(mPaintForPen);
+        mPredictor = new TouchPredictor(MAX_POINTERS);
+
         mOffScreenPaint = new Paint(Paint.DITHER_FLAG);
+        mUnderLayerPaint = new Paint();
+        mUnderLayerPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OVER));
+        mScaledRenderPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        mScaleDetector = new ScaleGestureDetector(c,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        final float zoom = getZoom();
+                        final float factor = Math.max(MIN_ZOOM / zoom,
+                                Math.min(MAX_ZOOM / zoom, detector.getScaleFactor()));
+                        mViewMatrix.postScale(factor, factor, detector.getFocusX(),
+                                detector.getFocusY());
+                        updateInverseViewMatrix();
+                        return true;
+                    }
+                });
         mOffScreenBitmap = null;
         mOffScreenCanvas = null;
 
         mPath = new Path[MAX_POINTERS];
         mPathCoordinates = new float[MAX_POINTERS][];
         mPathCoordinateCounts = new int[MAX_POINTERS];
-        mHistory = new ArrayList<PaintView.Stroke>();
+        mPathWidths = new byte[MAX_POINTERS][];
+        mPathLastWidthFactors = new float[MAX_POINTERS];
+        mPathLastEventTimes = new long[MAX_POINTERS];
+        mHistory = new StrokeHistory();
         clearAllPaths();
 
         setBackgroundColor(Color.WHITE);
     }
 
     public Bitmap getBitmap() {
+        flushPendingCommits();
         return mOffScreenBitmap;
     }
 
     public void setBitmap(Bitmap bmp) {
         mOffScreenBitmap = bmp;
         mOffScreenCanvas = new Canvas(mOffScreenBitmap);
+        mOffScreenGeneration++;
     }
 
     /**
@@ -180,6 +459,8 @@ public class PaintView extends View {
      */
     public void setPenColor(int argb) {
         mPaintForPen.setColor(argb);
+        mPaintForFill.setColor(argb);
+        recordSettings();
     }
 
     /**
@@ -189,10 +470,132 @@ public class PaintView extends View {
      */
     public void setPenSize(float size) {
         mPaintForPen.setStrokeWidth(size);
+        recordSettings();
+    }
+
+    /**
+     * 筆圧と速度に応じて線の太さを変えるかどうかをセットします。これから描くストロークに適用されます。
+     *
+     * @param enabled 太さを変える場合は {@code true}。
+     */
+    public void setVariableWidthEnabled(boolean enabled) {
+        mVariableWidthEnabled = enabled;
+        recordSettings();
+    }
+
+    /**
+     * 筆圧と速度に応じて線の太さを変えるかどうかを返します。
+     *
+     * @return 太さを変える場合は {@code true}。
+     */
+    public boolean isVariableWidthEnabled() {
+        return mVariableWidthEnabled;
+    }
+
+    /**
+     * 指の動きから少し先の位置を予測し、まだ届いていない区間を仮に描くかどうかをセットします。
+     *
+     * <p>
+     * 予測した区間は次のタッチイベントで捨てられ、ストロークには含まれません。
+     * </p>
+     *
+     * @param enabled 予測して描く場合は {@code true}。
+     */
+    public void setTouchPredictionEnabled(boolean enabled) {
+        mTouchPredictionEnabled = enabled;
+        if (!enabled) {
+            mPredictor.clear();
+            invalidate();
+        }
+    }
+
+    /**
+     * 指の少し先を予測して描くかどうかを返します。
+     *
+     * @return 予測して描く場合は {@code true}。
+     */
+    public boolean isTouchPredictionEnabled() {
+        return mTouchPredictionEnabled;
+    }
+
+    /**
+     * 予測の誤差を集計している {@link TouchPredictor} を返します。
+     *
+     * @return {@link TouchPredictor}。
+     */
+    TouchPredictor getTouchPredictor() {
+        return mPredictor;
+    }
+
+    /**
+     * {@link #onTouchEvent(MotionEvent)} に渡されたイベントを記録する {@link TouchRecorder} をセットします。
+     * ペンの色などの今の設定を最初に記録し、以降は変わるたびに記録します。
+     *
+     * @param recorder 記録しない場合は {@code null}。
+     */
+    void setTouchRecorder(TouchRecorder recorder) {
+        mTouchRecorder = recorder;
+        recordSettings();
+    }
+
+    /**
+     * イベントを記録している場合は、ストロークの結果を変える設定を記録します。
+     */
+    private void recordSettings() {
+        if (mTouchRecorder != null) {
+            mTouchRecorder.recordSettings(mPaintForPen.getColor(), mPaintForPen.getStrokeWidth(),
+                    mVariableWidthEnabled, mBgColor);
+        }
+    }
+
+    /**
+     * タッチで描くかわりに、ピンチで表示を拡大縮小し、ドラッグで表示を移動するかどうかをセットします。
+     *
+     * @param enabled 拡大縮小と移動をする場合は {@code true}。
+     */
+    public void setViewportGestureEnabled(boolean enabled) {
+        mViewportGestureEnabled = enabled;
+    }
+
+    /**
+     * タッチで表示の拡大縮小と移動をするかどうかを返します。
+     *
+     * @return 拡大縮小と移動をする場合は {@code true}。
+     */
+    public boolean isViewportGestureEnabled() {
+        return mViewportGestureEnabled;
+    }
+
+    /**
+     * 表示を等倍に戻し、キャンバスの左上を画面の左上に合わせます。
+     */
+    public void resetViewport() {
+        mViewMatrix.reset();
+        updateInverseViewMatrix();
+    }
+
+    /**
+     * 表示倍率を返します。
+     *
+     * @return 表示倍率。
+     */
+    float getZoom() {
+        mViewMatrix.getValues(mMatrixValues);
+        return mMatrixValues[Matrix.MSCALE_X];
+    }
+
+    private void updateInverseViewMatrix() {
+        mViewMatrix.invert(mInverseViewMatrix);
+        invalidate();
     }
 
     /**
      * 背景色をセットします。
+     *
+     * <p>
+     * 背景色はオフスクリーンには描かず、書き出すときに合成するので、ストロークを描き直すことはありません。
+     * 保存済みの画の背景色を変えた場合、次の {@link #save()} ではサムネイルだけを作り直します。
+     * </p>
      * 
      * @param argb 背景色(AARRGGBB)。
      */
@@ -200,14 +603,19 @@ public class PaintView extends View {
     public void setBackgroundColor(int argb) {
         mBgColor = argb;
         super.setBackgroundColor(argb);
+        recordSettings();
     }
 
     /**
      * すべてのストロークを消去します。
      */
     public void clearCanvas() {
+        cancelLoad();
+        // 近似の結果は、消去した履歴に残っていないので捨てる
+        mPendingCurveFittings.clear();
         if (mOffScreenBitmap != null) {
             mOffScreenBitmap.eraseColor(0); // 透明に戻す
+            mOffScreenGeneration++;
         }
         clearAllPaths();
         invalidate();
@@ -215,78 +623,195 @@ public class PaintView extends View {
 
     /**
      * 現在の画像を PNG ファイルとして書き出し、書きだしたファイルを {@link Uri} で返します。
+     *
+     * <p>
+     * 背景色はオフスクリーンビットマップを1行ずつ書き出すときに合成するので({@link PngEncoder})、
+     * 背景と合成した画面全体の大きさのビットマップは作成しません。
+     * </p>
      * 
      * @return 書きだしたファイルの Uri。書き出しが正常に行えなかった場合は {@code null} を返します。
      */
     public Uri saveImageAsPng() {
+        completeLoad();
         final File baseDir = prepareImageBaseDir();
         if (baseDir == null) {
             return null;
         }
-        final File imageFile = createImageFileForNew(baseDir, "image-", "png");
+        final File imageFile = FileNames.createForNew(baseDir, "image-", "png");
         final OutputStream os = openImageFile(imageFile);
         if (os == null) {
             return null;
         }
+        flushPendingCommits();
         try {
-            final Bitmap bitmap = createScaledBitmap(1.0f);
-            try {
-                if (!bitmap.compress(CompressFormat.PNG, 100, os)) {
-                    Log.e(TAG,
-                            "failed to create image file: "
-                                    + imageFile.getPath());
-                    return null;
-                }
-                updateMediaDatabase(imageFile);
-                return Uri.fromFile(imageFile);
-            } finally {
-                bitmap.recycle();
-            }
-        } finally {
-            try {
-                os.close();
-            } catch (IOException e) {
-                Log.e(TAG,
-                        "failed to create image file: " + imageFile.getPath());
-                return null;
-            }
+            encodePng(mOffScreenBitmap, mBgColor, new BufferedOutputStream(os));
+        } catch (IOException e) {
+            Log.e(TAG, "failed to create image file: " + imageFile.getPath(), e);
+            return null;
         }
+        updateMediaDatabase(imageFile);
+        return Uri.fromFile(imageFile);
     }
 
     /**
-     * 現在描かれているものをファイルとして保存します。
+     * 現在の画像を SVG ファイルとして書き出し、書きだしたファイルを {@link Uri} で返します。
+     *
+     * <p>
+     * 履歴のストロークをそのままベクター形式で書き出すので、ビットマップは作成しません。
+     * </p>
      *
-     * @return 保存したファイルの情報。
+     * @return 書きだしたファイルの Uri。書き出しが正常に行えなかった場合は {@code null} を返します。
      */
-    public Files save() {
-        final File thumbnailFile = createThumbnailFile();
-        if (thumbnailFile == null) {
+    public Uri saveImageAsSvg() {
+        completeLoad();
+        final File baseDir = prepareImageBaseDir();
+        if (baseDir == null) {
             return null;
         }
-        final File strokeFile = createStrokeFile(thumbnailFile);
-        if (strokeFile == null) {
+        final File imageFile = FileNames.createForNew(baseDir, "image-", "svg");
+        final OutputStream os = openImageFile(imageFile);
+        if (os == null) {
+            return null;
+        }
+        final int width = mOffScreenBitmap != null ? mOffScreenBitmap.getWidth() : getWidth();
+        final int height = mOffScreenBitmap != null ? mOffScreenBitmap.getHeight() : getHeight();
+        try {
+            final SvgExporter exporter = new SvgExporter(os);
+            try {
+                exporter.writeHeader(width, height, mBgColor);
+                for (Stroke stroke : mHistory) {
+                    exporter.write(stroke);
+                }
+            } finally {
+                exporter.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to create image file: " + imageFile.getPath(), e);
             return null;
         }
-        return new Files(strokeFile, thumbnailFile);
+        return Uri.fromFile(imageFile);
     }
 
     /**
-     * 今描かれているストロークを文字列化したものを返します(実際には背景の情報も含まれます)。
-     * @return ストローク文字列。
+     * 現在描かれているものをファイルとして保存します。
+     *
+     * <p>
+     * ストロークと背景色が同じ画がすでに保存されていれば、新しいファイルは作らずにそのファイルの情報を返します。
+     * ギャラリーから開いて何も変えずに閉じた場合などに、同じ画が増えないようにするためです。
+     * 保存済みの画はストロークの内容のハッシュ値の索引( {@link SavedDrawingIndex} )で探すので、
+     * 保存済みの画が多くてもストロークファイルを1つずつ読むことはありません。
+     * 読み込んだ画から背景色だけを変えた場合は、そのファイルの背景色を書き換えてサムネイルを作り直します。
+     * ストロークは書き出し直しません。
+     * </p>
+     * <p>
+     * ハッシュ値の計算とファイルの書き出しにはストロークの数に比例した時間がかかります。
+     * UI スレッドからは {@link #saveInBackground(OnSavedListener)} を使ってください。
+     * </p>
+     *
+     * @return 保存したファイルの情報。保存できなかった場合は {@code null}。
      */
-    public String getStrokeString() {
-        final StringBuilder sb = new StringBuilder();
-        sb.append(mBgColor).append('\n');
-        Stroke.listToString(sb, mHistory);
-        return sb.toString();
+    public Files save() {
+        final Files saved = prepareSaving().run();
+        if (saved != null) {
+            mSavedStrokeFile = saved.getStrokeFile();
+        }
+        return saved;
     }
 
     /**
-     * ストローク文字列から画を復元します。今描かれているものは消去されます。
-     * 
-     * @param strokeString ストローク文字列。
+     * 現在描かれているものを {@link #save()} と同じようにファイルとして保存します。
+     *
+     * <p>
+     * UI スレッドでは確定したストロークのスナップショットとサムネイル用の縮小画像を作るだけで、
+     * ハッシュ値の計算、保存済みの画の検索、ファイルの書き出しはバックグラウンドで行います。
+     * 保存を始めたあとに描かれたストロークは保存されません。
+     * </p>
+     *
+     * @param listener 保存が終わったときに UI スレッドで呼び出されるリスナー。 {@code null} でも構いません。
      */
-    public void restore(String strokeString) {
+    public void saveInBackground(final OnSavedListener listener) {
+        final Saving saving = prepareSaving();
+        new AsyncTask<Void, Void, Files>() {
+            @Override
+            protected Files doInBackground(Void... params) {
+                return saving.run();
+            }
+
+            @Override
+            protected void onPostExecute(Files saved) {
+                // 保存しているあいだに消去されていれば、保存したファイルとは別の画になっている
+                if (saved != null && saving.mHistoryGeneration == mHistoryGeneration) {
+                    mSavedStrokeFile = saved.getStrokeFile();
+                }
+                if (listener != null) {
+                    listener.onSaved(saved);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * {@link #save()} と {@link #saveInBackground(OnSavedListener)} の保存先を変えます。
+     * 負荷テストなどで、ギャラリーに表示されない場所へ保存するときに使います。
+     *
+     * @param saveDir 保存先のディレクトリ。 {@code null} であればギャラリーのディレクトリに保存します。
+     */
+    void setSaveDir(File saveDir) {
+        mSaveDir = saveDir;
+    }
+
+    /**
+     * 保存に使うものを UI スレッドで集めます。読み込み中であれば読み込みの完了を待ちます。
+     */
+    private Saving prepareSaving() {
+        final List<Stroke> strokes = snapshotStrokes(0);
+        final float density = getContext().getResources().getDisplayMetrics().density;
+        final float scale = calcScale(dpToPx(150, density), dpToPx(150, density));
+        return new Saving(getContext().getApplicationContext(), strokes, mBgColor,
+                mOffScreenBitmap.getWidth(), mOffScreenBitmap.getHeight(), mCreatedMillis,
+                mSavedStrokeFile, mHistoryGeneration, createScaledBitmap(scale, false), mSaveDir);
+    }
+
+    /**
+     * 今描かれているストロークを文字列化したものを返します(実際には背景の情報も含まれます)。
+     * @return ストローク文字列。
+     */
+    public String getStrokeString() {
+        final StringWriter out = new StringWriter();
+        try {
+            writeStrokeString(out);
+        } catch (IOException e) {
+            // StringWriter は例外を投げない
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * 今描かれているストロークを {@link #getStrokeString()} と同じ形式で書き出します。
+     *
+     * <p>
+     * ストロークを1つずつ書き出すので、画全体の文字列は作りません。ファイルなどへ書き出す場合はこちらを使ってください。
+     * </p>
+     *
+     * @param out 書き出し先。閉じません。バッファリングは呼び出し側で行ってください。
+     */
+    public void writeStrokeString(Writer out) throws IOException {
+        completeLoad();
+        completeCurveFitting();
+        final StrokeTextWriter writer = new StrokeTextWriter(out);
+        writer.writeHeader(mBgColor);
+        for (Stroke stroke : mHistory) {
+            writer.write(stroke);
+        }
+    }
+
+    /**
+     * ストローク文字列から画を復元します。今描かれているものは消去されます。
+     * 
+     * @param strokeString ストローク文字列。
+     */
+    public void restore(String strokeString) {
         clearCanvas();
         assert mHistory.isEmpty();
 
@@ -297,49 +822,405 @@ public class PaintView extends View {
         final int bgColor = Integer.parseInt(strokeString.substring(0, delimiterIndex));
         setBackgroundColor(bgColor);
 
-        final List<Stroke> strokes = Stroke.fromListString(strokeString
+        final List<Stroke> strokes = parseStrokes(strokeString
                 .substring(delimiterIndex + 1));
         mHistory.addAll(strokes);
 
         drawHistoryToOffScreen();
     }
 
+    /**
+     * ストロークファイルをバックグラウンドで読み込み、読み込めたものから順に描画します。今描かれているものは消去されます。
+     *
+     * <p>
+     * 読み込みの完了を待たずに描き始めることができます。読み込み中に描いたストロークは、読み込んだストロークの上に重なります。
+     * </p>
+     *
+     * @param strokeFile ストロークファイル。
+     */
+    public void load(File strokeFile) {
+        load(strokeFile, null);
+    }
+
+    /**
+     * ストロークファイルをバックグラウンドで読み込み、読み込めたものから順に描画します。今描かれているものは消去されます。
+     *
+     * @param strokeFile ストロークファイル。
+     * @param listener 読み込みが終わったときに通知するリスナー。 {@code null} でも構いません。
+     *            読み込みが途中で取り消された場合は通知されません。
+     */
+    public void load(File strokeFile, OnLoadFinishedListener listener) {
+        load(new File[] {
+                strokeFile
+        }, listener);
+    }
+
+    /**
+     * 複数のストロークファイルを順にバックグラウンドで読み込み、1つの画として描画します。今描かれているものは消去されます。
+     * 背景色は最初のファイルのものを使います。
+     *
+     * @param strokeFiles ストロークファイル。後ろのファイルのストロークほど上に描かれます。
+     * @param listener 読み込みが終わったときに通知するリスナー。 {@code null} でも構いません。
+     *            読み込みが途中で取り消された場合は通知されません。
+     */
+    void load(File[] strokeFiles, OnLoadFinishedListener listener) {
+        clearCanvas();
+        assert mHistory.isEmpty();
+        if (isSavedStrokeFile(strokeFiles[0])) {
+            mSavedStrokeFile = strokeFiles[0];
+        }
+
+        mLoadIndex = 0;
+        mOnLoadFinishedListener = listener;
+        mLoadingFiles = strokeFiles.clone();
+        mLoader = new StrokeLoader(this);
+        mLoader.execute(strokeFiles);
+    }
+
+    /**
+     * ストロークファイルを読み込み中かどうかを返します。
+     *
+     * @return 読み込み中であれば {@code true}。
+     */
+    public boolean isLoading() {
+        return mLoader != null;
+    }
+
+    /**
+     * 読み込み中のストロークファイルを返します。
+     *
+     * @return {@link #load(File[], OnLoadFinishedListener)} に渡したファイル。読み込み中でなければ {@code null}。
+     */
+    File[] getLoadingFiles() {
+        return mLoadingFiles == null ? null : mLoadingFiles.clone();
+    }
+
+    /**
+     * 読み込み中に描かれたストロークのうち、 {@code from} 番目以降のスナップショットを返します。
+     * {@link #snapshotStrokes(int)} と違い、読み込みの完了は待ちません。
+     *
+     * @param from 読み込み中に描かれたストロークの中での位置。
+     * @return 変更できないストロークのリスト。
+     */
+    List<Stroke> snapshotStrokesDrawnWhileLoading(int from) {
+        completeCurveFitting();
+        final List<Stroke> snapshot = mHistory.snapshot();
+        return snapshot.subList(mLoadIndex + from, snapshot.size());
+    }
+
+    /**
+     * {@link StrokeLoader} が読み込んだストロークを履歴に加え、オフスクリーンへ描画します。
+     *
+     * @param strokes 読み込んだストローク。ファイル内の順に並んでいます。
+     */
+    void appendLoadedStrokes(List<Stroke> strokes) {
+        // 読み込み中に描かれたストロークは、オフスクリーンに描いてから読み込んだストロークを挿入する
+        flushPendingCommits();
+        final boolean drawnWhileLoading = mLoadIndex < mHistory.size();
+        mHistory.addAll(mLoadIndex, strokes);
+        final int userStrokesFrom = mLoadIndex + strokes.size();
+
+        if (mOffScreenCanvas != null) {
+            if (drawnWhileLoading) {
+                // 描かれたストロークを描き直すと自分の上に重なって濃くなるので、読み込んだストロークをレイヤーに描いて下に合成する
+                mOffScreenCanvas.saveLayer(null, mUnderLayerPaint, Canvas.ALL_SAVE_FLAG);
+                drawStrokesToOffScreen(mHistory, mLoadIndex, userStrokesFrom);
+                mOffScreenCanvas.restore();
+                mLoadedUnderUserStrokes = true;
+            } else {
+                drawStrokesToOffScreen(mHistory, mLoadIndex, userStrokesFrom);
+            }
+        }
+        mLoadIndex = userStrokesFrom;
+        invalidate();
+    }
+
+    /**
+     * {@link StrokeLoader} の読み込みが終わったときに呼び出されます。
+     *
+     * @param loader 読み込みが終わったタスク。
+     */
+    void endProgressiveLoad(StrokeLoader loader, boolean succeeded) {
+        if (mLoader != loader) {
+            return;
+        }
+        mLoader = null;
+        mLoadingFiles = null;
+        if (mLoadedUnderUserStrokes) {
+            // 下に合成した読み込みのストローク同士の重なり順を直す
+            mLoadedUnderUserStrokes = false;
+            if (mOffScreenBitmap != null) {
+                mOffScreenBitmap.eraseColor(0);
+                drawHistoryToOffScreen();
+                invalidate();
+            }
+        }
+        final OnLoadFinishedListener listener = mOnLoadFinishedListener;
+        mOnLoadFinishedListener = null;
+        if (listener != null) {
+            listener.onLoadFinished(this, succeeded, mLoadIndex);
+        }
+    }
+
+    /**
+     * 読み込み中であれば、読み込みが終わるのを待って全ストロークを履歴に反映させます。
+     */
+    void completeLoad() {
+        if (mLoader != null) {
+            mLoader.completeNow();
+        }
+    }
+
+    private void cancelLoad() {
+        if (mLoader != null) {
+            mLoader.cancel(true);
+            mLoader = null;
+            mLoadingFiles = null;
+            mOnLoadFinishedListener = null;
+            mLoadedUnderUserStrokes = false;
+        }
+    }
+
+    /**
+     * 構成変更後の {@link PaintView} に引き継ぐための状態を返します。
+     *
+     * <p>
+     * 読み込み中であれば、読み込みの完了は待たずに、読み込み中のタスクごと引き継ぎます。
+     * </p>
+     * <p>
+     * オフスクリーンビットマップは返した {@link State} に渡るので、呼び出したあとはこの {@link PaintView}
+     * を使わないでください。
+     * </p>
+     *
+     * @return 状態。
+     */
+    State saveState() {
+        flushPendingCommits();
+        completeCurveFitting();
+        if (mLoader != null) {
+            // 新しい PaintView に引き継ぐまで、読み込んだストロークは渡さない
+            mLoader.setView(null);
+        }
+        final State state = new State(mOffScreenBitmap, mHistory, mBgColor, mHistoryGeneration,
+                mCreatedMillis, mSavedStrokeFile, mLoader, mLoadingFiles, mLoadIndex,
+                mLoadedUnderUserStrokes, mOnLoadFinishedListener);
+        mLoader = null;
+        mLoadedUnderUserStrokes = false;
+        mLoadingFiles = null;
+        mOnLoadFinishedListener = null;
+        mScaledRenders.clear();
+        mOffScreenBitmap = null;
+        mOffScreenCanvas = null;
+        mHistory = new StrokeHistory();
+        return state;
+    }
+
+    /**
+     * {@link #saveState()} で得た状態を引き継ぎます。今描かれているものは消去されます。
+     *
+     * <p>
+     * オフスクリーンビットマップをそのまま使うので、履歴を描き直すことはありません。
+     * </p>
+     *
+     * @param state 状態。
+     */
+    void restoreState(State state) {
+        clearCanvas();
+        mHistory = state.mHistory;
+        mHistoryGeneration = state.mHistoryGeneration;
+        mCreatedMillis = state.mCreatedMillis;
+        mSavedStrokeFile = state.mSavedStrokeFile;
+        mLoader = state.mLoader;
+        mLoadingFiles = state.mLoadingFiles;
+        mLoadIndex = state.mLoadIndex;
+        mLoadedUnderUserStrokes = state.mLoadedUnderUserStrokes;
+        mOnLoadFinishedListener = state.mOnLoadFinishedListener;
+        setBackgroundColor(state.mBgColor);
+        if (state.mBitmap != null) {
+            BitmapPool.getInstance().put(mOffScreenBitmap);
+            setBitmap(state.mBitmap);
+            fitBitmapToSize(getWidth(), getHeight());
+        } else {
+            drawHistoryToOffScreen();
+        }
+        invalidate();
+        if (mLoader != null) {
+            // 読み込みの続きはこの PaintView に渡す
+            mLoader.setView(this);
+        }
+    }
+
+    /**
+     * 背景色を返します。
+     *
+     * @return 背景色(AARRGGBB)。
+     */
+    int getBgColor() {
+        return mBgColor;
+    }
+
+    /**
+     * 読み込んだ画を描き始めた日時をセットします。
+     *
+     * @param createdMillis エポックからのミリ秒。
+     */
+    void setCreatedMillis(long createdMillis) {
+        mCreatedMillis = createdMillis;
+    }
+
+    /**
+     * 確定したストロークの数を返します。
+     *
+     * @return ストロークの数。
+     */
+    int getStrokeCount() {
+        return mHistory.size();
+    }
+
+    /**
+     * 履歴の世代を返します。履歴が消去されるたびに値が変わるので、前回調べたときから
+     * ストロークが追加されただけなのかどうかを判断するのに使います。
+     *
+     * @return 履歴の世代。
+     */
+    int getHistoryGeneration() {
+        return mHistoryGeneration;
+    }
+
+    /**
+     * {@code from} 番目以降の確定したストロークのスナップショットを返します。読み込み中であれば読み込みの完了を待ちます。
+     *
+     * <p>
+     * ストロークはコピーしないので、履歴の長さによらずすぐに返ります。返したあとに描かれたストロークは含まれません。
+     * </p>
+     *
+     * @param from 最初のストロークの位置。
+     * @return 変更できないストロークのリスト。 {@link Stroke} も immutable なので別スレッドから参照して構いません。
+     */
+    List<Stroke> snapshotStrokes(int from) {
+        completeLoad();
+        completeCurveFitting();
+        final List<Stroke> snapshot = mHistory.snapshot();
+        return snapshot.subList(from, snapshot.size());
+    }
+
+    /**
+     * ストローク文字列の各行を {@link Stroke} に変換します。不正な行は読み飛ばします。
+     */
+    private static ArrayList<Stroke> parseStrokes(String str) {
+        final ArrayList<Stroke> result = new ArrayList<Stroke>();
+        if (str == null) {
+            return result;
+        }
+        final StringTokenizer tk = new StringTokenizer(str, "\n");
+        while (tk.hasMoreTokens()) {
+            final String strokeStr = tk.nextToken();
+            if (strokeStr.length() == 0) {
+                continue;
+            }
+            final Stroke stroke = Stroke.fromString(strokeStr);
+            if (stroke == null) {
+                Log.e(TAG, "invalid stroke string: " + strokeStr);
+                continue;
+            }
+            result.add(stroke);
+        }
+        return result;
+    }
+
     private void drawHistoryToOffScreen() {
+        discardPendingCommits();
         if (mOffScreenCanvas == null) {
             return;
         }
+        drawStrokesToOffScreen(mHistory, 0, mHistory.size());
+    }
 
-        // 渡されたストロークをオフスクリーンへ描画する
+    /**
+     * 渡されたストロークのうち {@code from} から {@code to} の手前までをオフスクリーンへ描画します。
+     */
+    private void drawStrokesToOffScreen(List<Stroke> strokes, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        mOffScreenGeneration++;
         final Paint paint = new Paint(mPaintForPen);
+        final Paint fillPaint = new Paint(mPaintForFill);
         final Path path = new Path();
-        for (Stroke stroke : mHistory) {
+        for (Stroke stroke : strokes.subList(from, to)) {
+            if (stroke.mWidths != null) {
+                // 太さが変わるストロークは輪郭を塗りつぶす
+                fillPaint.setColor(stroke.mColor);
+                setOutlineToPath(stroke.getOutline(), path);
+                mOffScreenCanvas.drawPath(path, fillPaint);
+                path.reset();
+                continue;
+            }
             paint.setColor(stroke.mColor);
             paint.setStrokeWidth(stroke.mSize);
-            float prevX = 0f;
-            float prevY = 0f;
-            for (int index = 0; index < stroke.mCoordinates.length - 1; index += 2) {
-                final float x = stroke.mCoordinates[index];
-                final float y = stroke.mCoordinates[index + 1];
-                if (index == 0) {
-                    // first coordinate
-                    path.moveTo(x, y);
-                    path.lineTo(x + 1, y);
-                    prevX = x;
-                    prevY = y;
-                } else if (index == stroke.mCoordinates.length - 2) {
-                    // last coordinate
-                    path.moveTo(x, y);
-                } else {
-                    path.quadTo(prevX, prevY, (prevX + x) / 2, (prevY + y) / 2);
-                    prevX = x;
-                    prevY = y;
-                }
-            }
+            setStrokePath(stroke, path);
             mOffScreenCanvas.drawPath(path, paint);
             path.reset();
         }
     }
 
+    /**
+     * 太さが変わらないストロークのパスを作ります。
+     *
+     * @param stroke ストローク。
+     * @param path パスを追加する先。
+     */
+    private static void setStrokePath(Stroke stroke, Path path) {
+        if (stroke.mCurves) {
+            setCurvePath(stroke.getCoordinates(), path);
+        } else {
+            setSmoothedPath(stroke.getCoordinates(), path);
+        }
+    }
+
+    /**
+     * 3次ベジェ曲線の点をつないだパスを作ります。
+     *
+     * @param curves 始点に続いて、曲線ごとに2つの制御点と終点が並んだ座標列。
+     * @param path パスを追加する先。
+     */
+    private static void setCurvePath(float[] curves, Path path) {
+        path.moveTo(curves[0], curves[1]);
+        for (int index = 2; index < curves.length - 5; index += 6) {
+            path.cubicTo(curves[index], curves[index + 1], curves[index + 2],
+                    curves[index + 3], curves[index + 4], curves[index + 5]);
+        }
+    }
+
+    /**
+     * 座標列の中点を2次ベジェ曲線でつないだパスを作ります。
+     *
+     * @param coordinates x座標値, y座標値が交互に並んだ座標列。
+     * @param path パスを追加する先。
+     */
+    private static void setSmoothedPath(float[] coordinates, Path path) {
+        float prevX = 0f;
+        float prevY = 0f;
+        for (int index = 0; index < coordinates.length - 1; index += 2) {
+            final float x = coordinates[index];
+            final float y = coordinates[index + 1];
+            if (index == 0) {
+                // first coordinate
+                path.moveTo(x, y);
+                path.lineTo(x + 1, y);
+                prevX = x;
+                prevY = y;
+            } else if (index == coordinates.length - 2) {
+                // last coordinate
+                path.moveTo(x, y);
+            } else {
+                path.quadTo(prevX, prevY, (prevX + x) / 2, (prevY + y) / 2);
+                prevX = x;
+                prevY = y;
+            }
+        }
+    }
+
     public static File[] listStrokeFiles(Context appContext) {
         File baseDir = PaintView.prepareImageBaseDir(appContext);
         File[] strokeFiles = baseDir.listFiles(new FileFilter() {
@@ -352,10 +1233,27 @@ public class PaintView extends View {
     }
 
     public static void deleteImage(File strokeFile) {
+        try {
+            new SavedDrawingIndex(strokeFile.getParentFile()).remove(strokeFile);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to update index: " + strokeFile.getPath(), e);
+        }
         strokeFile.delete();
         new File(strokePathToThumbnailPath(strokeFile.getPath())).delete();
     }
 
+    /**
+     * 複数のストロークファイルと、それぞれのサムネイルを削除します。時間がかかるので UI
+     * スレッド以外から呼び出してください。
+     *
+     * @param strokeFiles 削除するストロークファイル。
+     */
+    public static void deleteImages(File... strokeFiles) {
+        for (File strokeFile : strokeFiles) {
+            deleteImage(strokeFile);
+        }
+    }
+
     /**
      * 渡された {@link Intent} から {@code extraKey} で {@link Serializable} な extra を
      * 取り出し、それが {@link File}オブジェクトであればそのファイルからストローク文字列を読み込みます。
@@ -365,26 +1263,34 @@ public class PaintView extends View {
      * @return
      */
     public static String readStrokeFile(Intent intent, String extraKey) {
-        if (intent == null || extraKey == null) {
-            return null;
-        }
-        final Serializable serializable = intent.getSerializableExtra(extraKey);
-        if (serializable == null) {
-            return null;
-        }
-        if (!(serializable instanceof File)) {
+        final File strokeFile = getStrokeFileExtra(intent, extraKey);
+        if (strokeFile == null) {
             return null;
         }
-        final File strokeFile = (File) serializable;
-        Reader reader = null;
+        StrokeReader reader = null;
         try {
-            final char[] buf = new char[8192];
+            // バイナリ形式のファイルもストローク文字列にして返す
+            reader = new StrokeReader(strokeFile);
             final StringBuilder sb = new StringBuilder();
-            reader = new BufferedReader(new FileReader(strokeFile));
-            for (int read = reader.read(buf); 0 <= read; read = reader.read(buf)) {
-                sb.append(buf, 0, read);
+            sb.append(reader.readBgColor()).append('\n');
+            while (true) {
+                final Stroke stroke;
+                try {
+                    stroke = reader.readStroke();
+                } catch (StrokeReader.InvalidStrokeException e) {
+                    Log.e(TAG, e.getMessage());
+                    continue;
+                }
+                if (stroke == null) {
+                    break;
+                }
+                stroke.appendTo(sb);
+                sb.append('\n');
             }
             return sb.toString();
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "invalid background color: " + strokeFile.getPath(), e);
+            return null;
         } catch (FileNotFoundException e) {
             Log.e(TAG, "File not found.", e);
             return null;
@@ -402,36 +1308,274 @@ public class PaintView extends View {
         }
     }
 
+    /**
+     * 渡された {@link Intent} から {@code extraKey} で {@link Serializable} な extra を
+     * 取り出し、それが {@link File}オブジェクトであればそれを返します。
+     *
+     * @param intent
+     * @param extraKey
+     * @return ストロークファイル。取り出せなかった場合は {@code null} を返します。
+     */
+    public static File getStrokeFileExtra(Intent intent, String extraKey) {
+        if (intent == null || extraKey == null) {
+            return null;
+        }
+        final Serializable serializable = intent.getSerializableExtra(extraKey);
+        if (serializable == null) {
+            return null;
+        }
+        if (!(serializable instanceof File)) {
+            return null;
+        }
+        return (File) serializable;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelLoad();
+        mScaledRenders.clear();
+    }
+
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-        if (w <= 0 || h <= 0 || mOffScreenBitmap != null) {
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        if (mOffScreenBitmap != null) {
+            fitBitmapToSize(w, h);
+            return;
+        }
+        setBitmap(BitmapPool.getInstance().get(w, h, Bitmap.Config.ARGB_8888));
+        drawHistoryToOffScreen();
+    }
+
+    /**
+     * オフスクリーンビットマップが {@code w} x {@code h} を覆っていなければ、覆う大きさのビットマップに作り直します。
+     *
+     * <p>
+     * ストロークの座標は拡大縮小せずに保持しているので、今のビットマップを左上にそのままコピーします。
+     * 小さくなる場合は作り直さないので、一度画面外に出た部分も失われません。
+     * </p>
+     */
+    private void fitBitmapToSize(int w, int h) {
+        if (w <= 0 || h <= 0 || mOffScreenBitmap == null) {
+            return;
+        }
+        final Bitmap current = mOffScreenBitmap;
+        if (w <= current.getWidth() && h <= current.getHeight()) {
+            return;
+        }
+        final Bitmap bitmap = BitmapPool.getInstance().get(Math.max(w, current.getWidth()),
+                Math.max(h, current.getHeight()), Bitmap.Config.ARGB_8888);
+        new Canvas(bitmap).drawBitmap(current, 0.0F, 0.0F, null);
+        BitmapPool.getInstance().put(current);
+        setBitmap(bitmap);
+    }
+
+    /**
+     * {@link View} の中身を描画します。親クラスで描画した背景の上にコミット済みのストローク画像を コピーし、
+     * まだオフスクリーンに描いていない確定したストローク、最後に {@link #mPath} が保持する未コミットのストロークを描画します。
+     */
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (!canvas.isHardwareAccelerated() || LAYER_MERGE_THRESHOLD <= mPendingCommitCount) {
+            flushPendingCommits();
+        }
+        final boolean transformed = !mViewMatrix.isIdentity();
+        if (transformed) {
+            canvas.save();
+            canvas.concat(mViewMatrix);
+        }
+        if (mOffScreenBitmap != null) {
+            drawOffScreen(canvas, transformed ? ScaledRenderCache.levelForZoom(getZoom()) : 0);
+        }
+        drawPendingCommits(canvas);
+        // ストローク中のポインタだけを描く
+        for (int pointers = mActivePointers; pointers != 0; pointers &= pointers - 1) {
+            final int i = Integer.numberOfTrailingZeros(pointers);
+            final Path path = mPath[i];
+            if (path == null) {
+                continue;
+            }
+            canvas.drawPath(path, mPathWidths[i] != null ? mPaintForFill : mPaintForPen);
+            drawPredictedTail(canvas, i);
+        }
+        if (transformed) {
+            canvas.restore();
+        }
+    }
+
+    /**
+     * オフスクリーンを描きます。縮小して表示している場合は、縮小済みのものを描きます。
+     *
+     * @param level {@link ScaledRenderCache} の段階。
+     */
+    private void drawOffScreen(Canvas canvas, int level) {
+        if (level == 0) {
+            canvas.drawBitmap(mOffScreenBitmap, 0.0F, 0.0F, mOffScreenPaint);
             return;
         }
-        setBitmap(Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888));
-        drawHistoryToOffScreen();
+        final Bitmap render = mScaledRenders.get(mOffScreenBitmap, mOffScreenGeneration, level);
+        canvas.save();
+        canvas.scale((float) mOffScreenBitmap.getWidth() / render.getWidth(),
+                (float) mOffScreenBitmap.getHeight() / render.getHeight());
+        canvas.drawBitmap(render, 0.0F, 0.0F, mScaledRenderPaint);
+        canvas.restore();
+    }
+
+    /**
+     * 確定したストロークのうち、まだオフスクリーンに描いていないものをまとめて描きます。
+     */
+    private void flushPendingCommits() {
+        if (mPendingCommitCount == 0) {
+            return;
+        }
+        if (mOffScreenCanvas != null) {
+            final int size = mHistory.size();
+            drawStrokesToOffScreen(mHistory, size - mPendingCommitCount, size);
+        }
+        discardPendingCommits();
+    }
+
+    /**
+     * オフスクリーンに描いていないストロークはないものとします。オフスクリーンを描き直したときに呼び出します。
+     */
+    private void discardPendingCommits() {
+        mPendingCommitCount = 0;
+        mPendingPaths.clear();
+        mPendingPaints.clear();
+    }
+
+    /**
+     * 確定したがまだオフスクリーンに描いていないストロークを、パスのまま描きます。
+     * パスはストロークごとに一度だけ作ります。
+     */
+    private void drawPendingCommits(Canvas canvas) {
+        if (mPendingCommitCount == 0) {
+            return;
+        }
+        final int from = mHistory.size() - mPendingCommitCount;
+        for (int i = mPendingPaths.size(); i < mPendingCommitCount; i++) {
+            final Stroke stroke = mHistory.get(from + i);
+            final Path path = new Path();
+            final Paint paint;
+            if (stroke.mWidths != null) {
+                paint = new Paint(mPaintForFill);
+                setOutlineToPath(stroke.getOutline(), path);
+            } else {
+                paint = new Paint(mPaintForPen);
+                paint.setStrokeWidth(stroke.mSize);
+                setStrokePath(stroke, path);
+            }
+            paint.setColor(stroke.mColor);
+            mPendingPaths.add(path);
+            mPendingPaints.add(paint);
+        }
+        for (int i = 0; i < mPendingCommitCount; i++) {
+            canvas.drawPath(mPendingPaths.get(i), mPendingPaints.get(i));
+        }
+    }
+
+    /**
+     * 未確定パスの最後の座標から、予測した位置までを描きます。
+     */
+    private void drawPredictedTail(Canvas canvas, int pointerId) {
+        if (!mTouchPredictionEnabled || !mPredictor.getPrediction(pointerId, mPredictedPoint)) {
+            return;
+        }
+        final float[] coordinates = mPathCoordinates[pointerId];
+        final int count = mPathCoordinateCounts[pointerId];
+        if (coordinates == null || count == 0) {
+            return;
+        }
+        final float lastX = coordinates[count * 2 - 2];
+        final float lastY = coordinates[count * 2 - 1];
+        mPredictionPath.reset();
+        final Paint paint;
+        if (mPathWidths[pointerId] == null) {
+            if (2 <= count) {
+                // 未確定パスは最後の2点の中点までしか描かれていないので、そこからつなぐ
+                mPredictionPath.moveTo((coordinates[count * 2 - 4] + lastX) / 2,
+                        (coordinates[count * 2 - 3] + lastY) / 2);
+                mPredictionPath.lineTo(lastX, lastY);
+            } else {
+                mPredictionPath.moveTo(lastX, lastY);
+            }
+            paint = mPaintForPen;
+        } else {
+            mPredictionPath.moveTo(lastX, lastY);
+            mPaintForPrediction.setColor(mPaintForPen.getColor());
+            mPaintForPrediction.setStrokeWidth(mPaintForPen.getStrokeWidth()
+                    * (mPathWidths[pointerId][count - 1] & 0xff) / 255);
+            paint = mPaintForPrediction;
+        }
+        mPredictionPath.lineTo(mPredictedPoint[0], mPredictedPoint[1]);
+        canvas.drawPath(mPredictionPath, paint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        super.onTouchEvent(event);
+        if (mViewportGestureEnabled) {
+            return handleViewportGesture(event);
+        }
+        if (mViewMatrix.isIdentity()) {
+            return handleDrawingEvent(event);
+        }
+        // 画面の座標をキャンバスの座標に変換してから描く
+        final MotionEvent canvasEvent = MotionEvent.obtain(event);
+        canvasEvent.transform(mInverseViewMatrix);
+        try {
+            return handleDrawingEvent(canvasEvent);
+        } finally {
+            canvasEvent.recycle();
+        }
     }
 
     /**
-     * {@link View} の中身を描画します。親クラスで描画した背景の上にコミット済みのストローク画像を コピーし、最後に
-     * {@link #mPath} が保持する未コミットのストロークを描画します。
+     * ピンチで表示を拡大縮小し、指の重心の移動に合わせて表示を移動します。
      */
-    @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        canvas.drawBitmap(mOffScreenBitmap, 0.0F, 0.0F, mOffScreenPaint);
-        for (int i = 0; i < mCurrentMaxPointerCount; i++) {
-            final Path path = mPath[i];
-            if (path == null) {
+    private boolean handleViewportGesture(MotionEvent event) {
+        mScaleDetector.onTouchEvent(event);
+
+        final int action = getActionMasked(event);
+        // 離れた指は重心に含めない
+        final int upIndex = action == MotionEvent.ACTION_POINTER_UP ? getActionIndex(event) : -1;
+        float sumX = 0.0F;
+        float sumY = 0.0F;
+        int count = 0;
+        for (int pIndex = 0; pIndex < event.getPointerCount(); pIndex++) {
+            if (pIndex == upIndex) {
                 continue;
             }
-            canvas.drawPath(path, mPaintForPen);
+            sumX += event.getX(pIndex);
+            sumY += event.getY(pIndex);
+            count++;
+        }
+        if (count == 0) {
+            return true;
         }
+        final float focusX = sumX / count;
+        final float focusY = sumY / count;
+        if (action == MotionEvent.ACTION_MOVE) {
+            mViewMatrix.postTranslate(focusX - mLastFocusX, focusY - mLastFocusY);
+            updateInverseViewMatrix();
+        }
+        mLastFocusX = focusX;
+        mLastFocusY = focusY;
+        return true;
     }
 
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
-        super.onTouchEvent(event);
+    /**
+     * キャンバスの座標のタッチイベントでストロークを描きます。
+     */
+    private boolean handleDrawingEvent(MotionEvent event) {
+        if (mTouchRecorder != null) {
+            mTouchRecorder.record(event);
+        }
 
         final int pointerCount = event.getPointerCount();
         for (int pIndex = 0; pIndex < pointerCount; pIndex++) {
@@ -444,9 +1588,6 @@ public class PaintView extends View {
                 Log.i(TAG, "too many pointers(PointerId = " + pointerId + ").");
                 return true;
             }
-            mCurrentMaxPointerCount = Math.max(mCurrentMaxPointerCount,
-                    pointerId + 1);
-
             switch (getActionMasked(event)) {
                 case MotionEvent.ACTION_DOWN:
                 case MotionEvent.ACTION_POINTER_DOWN:
@@ -454,17 +1595,34 @@ public class PaintView extends View {
                         continue;
                     }
                     // 現在の座標から描画開始
-                    handleTouchStart(currentX, currentY, pointerId);
+                    handleTouchStart(currentX, currentY, event.getPressure(pIndex),
+                            event.getEventTime(), pointerId);
+                    if (mTouchPredictionEnabled) {
+                        mPredictor.start(pointerId, currentX, currentY, event.getEventTime());
+                    }
                     invalidate(); // 面倒なので View 全体を再描画要求
                     break;
                 case MotionEvent.ACTION_MOVE:
                     for (int i = 0; i < event.getHistorySize(); i++) {
                         // 未処理の move イベントを反映させる。
                         handleTouchMove(event.getHistoricalX(pIndex, i),
-                                event.getHistoricalY(pIndex, i), pointerId);
+                                event.getHistoricalY(pIndex, i),
+                                event.getHistoricalPressure(pIndex, i),
+                                event.getHistoricalEventTime(i), pointerId);
+                        if (mTouchPredictionEnabled) {
+                            mPredictor.addSample(pointerId, event.getHistoricalX(pIndex, i),
+                                    event.getHistoricalY(pIndex, i),
+                                    event.getHistoricalEventTime(i));
+                        }
                     }
                     // 現在の座標を move として反映する。
-                    handleTouchMove(currentX, currentY, pointerId);
+                    handleTouchMove(currentX, currentY, event.getPressure(pIndex),
+                            event.getEventTime(), pointerId);
+                    if (mTouchPredictionEnabled) {
+                        // 前の予測は捨てて、最新の座標から予測し直す
+                        mPredictor.addSample(pointerId, currentX, currentY, event.getEventTime());
+                        mPredictor.predict(pointerId);
+                    }
                     invalidate(); // 面倒なので View 全体を再描画要求
                     break;
                 case MotionEvent.ACTION_UP:
@@ -473,7 +1631,12 @@ public class PaintView extends View {
                         continue;
                     }
                     // 現在の座標をストローク完了として反映する。
-                    handleTouchEnd(currentX, currentY, pointerId);
+                    handleTouchEnd(currentX, currentY, event.getPressure(pIndex),
+                            event.getEventTime(), pointerId);
+                    if (mTouchPredictionEnabled) {
+                        mPredictor.addSample(pointerId, currentX, currentY, event.getEventTime());
+                        mPredictor.end(pointerId);
+                    }
                     invalidate(); // 面倒なので View 全体を再描画要求
                     break;
                 default:
@@ -511,69 +1674,58 @@ public class PaintView extends View {
         return index;
     }
 
-    private File createThumbnailFile() {
-        final File baseDir = prepareImageBaseDir();
-        if (baseDir == null) {
-            return null;
-        }
-        final File imageFile = createImageFileForNew(baseDir, "thumbnail-", "png");
-        final OutputStream os = openImageFile(imageFile);
-        if (os == null) {
-            return null;
-        }
+    /**
+     * ビットマップを背景色と合成して PNG として書き出します。ビットマップは1行ずつ読み込みます。
+     *
+     * @param source 画像。
+     * @param bgColor 背景色(AARRGGBB)。
+     * @param out 書き出し先。閉じられます。
+     */
+    private static void encodePng(Bitmap source, int bgColor, OutputStream out)
+            throws IOException {
+        final int width = source.getWidth();
+        final PngEncoder encoder = new PngEncoder(out, width, source.getHeight(), bgColor);
         try {
-            final float density = getContext().getResources().getDisplayMetrics().density;
-            final float scale = calcScale(dpToPx(150, density), dpToPx(150, density));
-            final Bitmap bitmap = createScaledBitmap(scale);
-            try {
-                if (!bitmap.compress(CompressFormat.PNG, 100, os)) {
-                    Log.e(TAG,
-                            "failed to create image file: "
-                                    + imageFile.getPath());
-                    return null;
-                }
-                return imageFile;
-            } finally {
-                bitmap.recycle();
+            final int[] row = new int[width];
+            for (int y = 0; y < source.getHeight(); y++) {
+                source.getPixels(row, 0, width, 0, y, width, 1);
+                encoder.writeRow(row);
             }
         } finally {
-            try {
-                os.close();
-            } catch (IOException e) {
-                Log.e(TAG,
-                        "failed to create image file: " + imageFile.getPath());
-                return null;
-            }
+            encoder.close();
         }
     }
 
-    private File createStrokeFile(File thumbnailFile) {
-        final File strokeFile = new File(thumbnailFile.getParentFile(), thumbnailFile.getName()
-                + ".stroke");
-        try {
-            FileWriter writer = new FileWriter(strokeFile);
-            try {
-                writer.write(getStrokeString());
-            } finally {
-                writer.close();
-            }
-        } catch (IOException e) {
-            Log.e(PaintView.class.getSimpleName(), "failed to write stroke file", e);
-            return null;
-        }
-        return strokeFile;
+    /**
+     * 背景と合成したオフスクリーンの画像を拡大縮小して返します。
+     * 使い終わった {@link Bitmap} は {@link BitmapPool#put(Bitmap)} で返してください。
+     *
+     * @param scale 倍率。
+     * @return 画像。
+     */
+    Bitmap createScaledBitmap(float scale) {
+        return createScaledBitmap(scale, true);
     }
 
-    private Bitmap createScaledBitmap(float scale) {
+    /**
+     * オフスクリーンの画像を拡大縮小して返します。
+     * 使い終わった {@link Bitmap} は {@link BitmapPool#put(Bitmap)} で返してください。
+     *
+     * @param scale 倍率。
+     * @param withBackground 背景と合成する場合は {@code true}。 {@code false} の場合、背景は透明のままです。
+     * @return 画像。
+     */
+    private Bitmap createScaledBitmap(float scale, boolean withBackground) {
+        flushPendingCommits();
         final Paint paint = new Paint();
         paint.setAntiAlias(true);
         paint.setDither(true);
 
-        final Bitmap bitmap = Bitmap.createBitmap(
+        final Bitmap bitmap = BitmapPool.getInstance().get(
                 (int) (mOffScreenBitmap.getWidth() * scale),
                 (int) (mOffScreenBitmap.getHeight() * scale),
                 Config.ARGB_8888);
-        bitmap.eraseColor(mBgColor);
+        bitmap.eraseColor(withBackground ? mBgColor : 0);
         final Canvas canvas = new Canvas(bitmap);
         final Matrix m = new Matrix();
         m.postScale(scale, scale);
@@ -596,6 +1748,17 @@ public class PaintView extends View {
         return Math.round(dp * density);
     }
 
+    /**
+     * ストロークファイルに対応するサムネイル画像を読み込みます。
+     *
+     * <p>
+     * {@link BitmapPool} に同じ大きさの {@link Bitmap} があれば、それを再利用して読み込みます。
+     * 使い終わった {@link Bitmap} は {@link BitmapPool#put(Bitmap)} で返してください。
+     * </p>
+     *
+     * @param strokeFile ストロークファイル。
+     * @return サムネイル画像。読み込めなかった場合は {@code null} を返します。
+     */
     public static Bitmap getThumbnailBitmap(File strokeFile) {
         final File thumbnailFile = new File(PaintView.strokePathToThumbnailPath(strokeFile
                 .getPath()));
@@ -603,11 +1766,36 @@ public class PaintView extends View {
         if (!thumbnailFile.exists()) {
             return null;
         }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeThumbnail(thumbnailFile, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inSampleSize = 1;
+        options.inBitmap = BitmapPool.getInstance().getForDecoding(options.outWidth,
+                options.outHeight, Config.ARGB_8888);
+        if (options.inBitmap == null) {
+            return decodeThumbnail(thumbnailFile, options);
+        }
+        try {
+            return decodeThumbnail(thumbnailFile, options);
+        } catch (IllegalArgumentException e) {
+            // 再利用できない Bitmap だったので新しく作る
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            return decodeThumbnail(thumbnailFile, options);
+        }
+    }
+
+    private static Bitmap decodeThumbnail(File thumbnailFile, BitmapFactory.Options options) {
         InputStream is = null;
         try {
             is = new FileInputStream(thumbnailFile);
-            final Bitmap thumbnail = BitmapFactory.decodeStream(is);
-            return thumbnail;
+            return BitmapFactory.decodeStream(is, null, options);
         } catch (FileNotFoundException e) {
             return null;
         } finally {
@@ -621,27 +1809,43 @@ public class PaintView extends View {
         }
     }
 
+    /**
+     * ギャラリーに表示されるストロークファイルかどうかを返します。
+     */
+    private boolean isSavedStrokeFile(File strokeFile) {
+        final File baseDir = prepareImageBaseDir();
+        return baseDir != null && baseDir.equals(strokeFile.getParentFile())
+                && strokeFile.getName().endsWith(".stroke");
+    }
+
     private static String strokePathToThumbnailPath(String strokePath) {
-        assert strokePath.endsWith(".stroke");
-        return strokePath.substring(0, strokePath.length() - ".stroke".length());
+        return DrawingFiles.toThumbnailFile(new File(strokePath)).getPath();
     }
 
-    private void handleTouchStart(float x, float y, int pointerId) {
+    private void handleTouchStart(float x, float y, float pressure, long eventTime,
+            int pointerId) {
         preparePath(pointerId);
+        mActivePointers |= 1 << pointerId;
         assert mPath[pointerId] != null;
-        mPath[pointerId].moveTo(x, y);
-        // タッチしただけで点が描かれるようにとりあえず１ドット線をひく
-        mPath[pointerId].lineTo(x + 1, y);
+        mPathWidths[pointerId] = mVariableWidthEnabled ? new byte[64] : null;
+        if (mPathWidths[pointerId] == null) {
+            mPath[pointerId].moveTo(x, y);
+            // タッチしただけで点が描かれるようにとりあえず１ドット線をひく
+            mPath[pointerId].lineTo(x + 1, y);
+        }
 
         // mPath[pointerId] にセットした座標を記憶しておく
         mPathCoordinateCounts[pointerId] = 0;
         if (mPathCoordinates[pointerId] == null) {
             mPathCoordinates[pointerId] = new float[128];
         }
+        appendWidth(pointerId, x, y, pressure, eventTime);
         appendCoordinate(mPathCoordinates, mPathCoordinateCounts, pointerId, x, y);
+        appendOutlinePreview(pointerId);
     }
 
-    private void handleTouchMove(float x, float y, int pointerId) {
+    private void handleTouchMove(float x, float y, float pressure, long eventTime,
+            int pointerId) {
         final float[] coordinates = mPathCoordinates[pointerId];
         if (coordinates == null) {
             return;
@@ -654,28 +1858,179 @@ public class PaintView extends View {
                 && Math.abs(y - prevY) < TOUCH_TOLERANCE) {
             return;
         }
-        mPath[pointerId].quadTo(prevX, prevY, (prevX + x) / 2, (prevY + y) / 2);
+        if (mPathWidths[pointerId] == null) {
+            mPath[pointerId].quadTo(prevX, prevY, (prevX + x) / 2, (prevY + y) / 2);
+        }
 
         // mPath[pointerId] にセットした座標を記憶しておく
+        appendWidth(pointerId, x, y, pressure, eventTime);
         appendCoordinate(mPathCoordinates, mPathCoordinateCounts, pointerId, x, y);
+        appendOutlinePreview(pointerId);
     }
 
-    private void handleTouchEnd(float x, float y, int pointerId) {
+    private void handleTouchEnd(float x, float y, float pressure, long eventTime, int pointerId) {
         if (mPath[pointerId] == null) {
             return;
         }
         mPath[pointerId].lineTo(x, y);
 
         // mPath[pointerId] にセットした座標を記憶しておく
+        appendWidth(pointerId, x, y, pressure, eventTime);
         appendCoordinate(mPathCoordinates, mPathCoordinateCounts, pointerId, x, y);
-        mHistory.add(new Stroke(mPaintForPen.getColor(), mPaintForPen.getStrokeWidth(),
-                mPathCoordinates[pointerId], mPathCoordinateCounts[pointerId]));
+        final Stroke stroke;
+        if (mPathWidths[pointerId] == null) {
+            stroke = new Stroke(mPaintForPen.getColor(), mPaintForPen.getStrokeWidth(),
+                    mPathCoordinates[pointerId], mPathCoordinateCounts[pointerId]);
+            // 座標のかわりに近似した曲線を保持し、描き直しや保存を軽くする。
+            // 近似には時間がかかるので、座標のまま確定しておき、別スレッドで近似してから置き換える
+            final CurveFitting fitting = new CurveFitting(stroke, Arrays.copyOf(
+                    mPathCoordinates[pointerId], mPathCoordinateCounts[pointerId] * 2),
+                    mPathCoordinateCounts[pointerId]);
+            mPendingCurveFittings.add(fitting);
+            CURVE_FITTING_EXECUTOR.execute(fitting);
+        } else {
+            stroke = new Stroke(mPaintForPen.getColor(), mPaintForPen.getStrokeWidth(),
+                    mPathCoordinates[pointerId], mPathWidths[pointerId],
+                    mPathCoordinateCounts[pointerId]);
+        }
+        mHistory.add(stroke);
 
-        // オフスクリーンにコミットしてパスをクリア
-        mOffScreenCanvas.drawPath(mPath[pointerId], mPaintForPen);
+        // オフスクリーンへは次の onDraw で、同じフレームで確定したストロークとまとめて描く
+        mPendingCommitCount++;
 
         mPath[pointerId].close();
         mPath[pointerId] = null;
+        mPathWidths[pointerId] = null;
+        mActivePointers &= ~(1 << pointerId);
+    }
+
+    /**
+     * 近似が終わっていないストロークがあれば、近似が終わるのを待って履歴のストロークを置き換えます。
+     * 保存や書き出しの前に呼び出し、書き出す内容が近似の進み具合によって変わらないようにします。
+     */
+    void completeCurveFitting() {
+        while (!mPendingCurveFittings.isEmpty()) {
+            applyCurveFitting(mPendingCurveFittings.get(0));
+        }
+    }
+
+    /**
+     * 近似が終わったストロークで履歴のストロークを置き換えます。終わっていなければ終わるのを待ちます。
+     */
+    private void applyCurveFitting(CurveFitting fitting) {
+        if (!mPendingCurveFittings.remove(fitting)) {
+            // completeCurveFitting() で置き換え済みか、履歴が消去された
+            return;
+        }
+        final Stroke fitted;
+        try {
+            fitted = fitting.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            // 座標のままでも描画や保存はできる
+            Log.e(TAG, "failed to fit curves", e);
+            return;
+        }
+        if (fitted != fitting.mPoints) {
+            // オフスクリーンには座標のまま描いてあるが、近似の誤差は許容値以内なので描き直さない
+            mHistory.replace(fitting.mPoints, fitted);
+        }
+    }
+
+    /**
+     * 太さが変わるストロークであれば、次に追加する座標の太さを筆圧と速度から求めて記憶しておきます。
+     *
+     * <p>
+     * 強く押すほど太く、速く動かすほど細くなります。座標と同じ数だけ記憶するため、
+     * {@link #appendCoordinate(float[][], int[], int, float, float)} の前に呼び出してください。
+     * </p>
+     */
+    private void appendWidth(int pointerId, float x, float y, float pressure, long eventTime) {
+        if (mPathWidths[pointerId] == null) {
+            return;
+        }
+        final int count = mPathCoordinateCounts[pointerId];
+        float factor = Math.max(MIN_WIDTH_FACTOR, Math.min(1.0F, pressure));
+        if (0 < count) {
+            final float[] coordinates = mPathCoordinates[pointerId];
+            final float dx = x - coordinates[count * 2 - 2];
+            final float dy = y - coordinates[count * 2 - 1];
+            final long elapsed = Math.max(1L, eventTime - mPathLastEventTimes[pointerId]);
+            final float velocity = (float) Math.sqrt(dx * dx + dy * dy) / elapsed;
+            factor /= 1.0F + velocity * VELOCITY_THINNING;
+            factor = Math.max(MIN_WIDTH_FACTOR, factor);
+            factor = mPathLastWidthFactors[pointerId] * WIDTH_SMOOTHING + factor
+                    * (1.0F - WIDTH_SMOOTHING);
+        }
+        mPathLastWidthFactors[pointerId] = factor;
+        mPathLastEventTimes[pointerId] = eventTime;
+
+        mPathWidths[pointerId] = ensureArrayLength(mPathWidths[pointerId], count + 1);
+        mPathWidths[pointerId][count] = Stroke.quantizeWidth(factor);
+    }
+
+    /**
+     * 太さが変わるストロークであれば、最後に追加した座標の円と、直前の座標からの区間の台形を未確定パスに追加します。
+     *
+     * <p>
+     * 描いている途中はこれを重ねたものを輪郭のかわりに表示します。追加するだけなので、ストロークが長くなっても
+     * 1回の処理の量は変わりません。なめらかな輪郭( {@link Stroke#getOutline()} )は確定したストロークを描くときに一度だけ求めます。
+     * 重なった部分が打ち消し合わないよう、台形も円と同じく時計回りで追加します。
+     * </p>
+     */
+    private void appendOutlinePreview(int pointerId) {
+        final byte[] widths = mPathWidths[pointerId];
+        if (widths == null) {
+            return;
+        }
+        final Path path = mPath[pointerId];
+        final float[] coordinates = mPathCoordinates[pointerId];
+        final int i = mPathCoordinateCounts[pointerId] - 1;
+        final float size = mPaintForPen.getStrokeWidth();
+        final float x = coordinates[i * 2];
+        final float y = coordinates[i * 2 + 1];
+        final float r = size * (widths[i] & 0xff) / 255 / 2;
+        path.addCircle(x, y, r, Path.Direction.CW);
+        if (i == 0) {
+            return;
+        }
+        final float prevX = coordinates[i * 2 - 2];
+        final float prevY = coordinates[i * 2 - 1];
+        final float prevR = size * (widths[i - 1] & 0xff) / 255 / 2;
+        final float dx = x - prevX;
+        final float dy = y - prevY;
+        final float length = (float) Math.sqrt(dx * dx + dy * dy);
+        if (length == 0.0F) {
+            return;
+        }
+        // 進行方向を時計回りに 90 度回した法線
+        final float nx = -dy / length;
+        final float ny = dx / length;
+        path.moveTo(prevX - nx * prevR, prevY - ny * prevR);
+        path.lineTo(x - nx * r, y - ny * r);
+        path.lineTo(x + nx * r, y + ny * r);
+        path.lineTo(prevX + nx * prevR, prevY + ny * prevR);
+        path.close();
+    }
+
+    /**
+     * 輪郭の座標列を閉じたパスにします。
+     *
+     * @param outline x座標値, y座標値が交互に並んだ輪郭の座標列。
+     * @param path 輪郭をセットするパス。
+     */
+    private static void setOutlineToPath(float[] outline, Path path) {
+        path.reset();
+        if (outline.length < 2) {
+            return;
+        }
+        path.moveTo(outline[0], outline[1]);
+        for (int index = 2; index < outline.length - 1; index += 2) {
+            path.lineTo(outline[index], outline[index + 1]);
+        }
+        path.close();
     }
 
     private void appendCoordinate(float[][] coordinates, int[] coordinatesInArray, int pointerId,
@@ -713,6 +2068,16 @@ public class PaintView extends View {
         return newArray;
     }
 
+    private byte[] ensureArrayLength(byte[] array, int expectingLength) {
+        if (expectingLength <= array.length) {
+            return array;
+        }
+        final int newLength = Math.max(expectingLength, array.length * 2);
+        final byte[] newArray = new byte[newLength];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
     private void clearAllPaths() {
         for (int i = 0; i < MAX_POINTERS; i++) {
             if (mPath[i] != null) {
@@ -720,8 +2085,15 @@ public class PaintView extends View {
             }
             mPath[i] = null;
             mPathCoordinateCounts[i] = 0;
+            mPathWidths[i] = null;
         }
+        mActivePointers = 0;
+        discardPendingCommits();
+        mPredictor.clear();
         mHistory.clear();
+        mHistoryGeneration++;
+        mCreatedMillis = System.currentTimeMillis();
+        mSavedStrokeFile = null;
     }
 
     private void preparePath(int pointerId) {
@@ -738,8 +2110,10 @@ public class PaintView extends View {
 
     public static File prepareImageBaseDir(Context appContext) {
         final String appPackage = appContext.getPackageName();
-        final File baseDir = new File(
-                Environment.getExternalStorageDirectory(), appPackage);
+        return prepareDir(new File(Environment.getExternalStorageDirectory(), appPackage));
+    }
+
+    private static File prepareDir(File baseDir) {
         if (!baseDir.exists()) {
             baseDir.mkdirs();
         }
@@ -750,28 +2124,6 @@ public class PaintView extends View {
         return baseDir;
     }
 
-    private File createImageFileForNew(File baseDir, String basename, String extention) {
-        boolean interrupted = false;
-        File imageFile = null;
-        do {
-            if (imageFile != null) {
-                // ２回目以降は少し待つ
-                try {
-                    TimeUnit.MILLISECONDS.sleep(10L);
-                } catch (InterruptedException e) {
-                    interrupted = true;
-                }
-            }
-            imageFile = new File(baseDir, basename + System.currentTimeMillis()
-                    + "." + extention);
-        } while (imageFile.exists());
-
-        if (interrupted) {
-            Thread.currentThread().interrupt();
-        }
-        return imageFile;
-    }
-
     private FileOutputStream openImageFile(File f) {
         try {
             return new FileOutputStream(f);
@@ -796,124 +2148,320 @@ public class PaintView extends View {
     }
 
     /**
-     * 線の軌跡1つ分を保持する immutable なクラスです。
+     * {@link PaintView#save()} の処理のうち、 UI スレッドの外で行えるものです。
+     * 作るときに受け取ったストロークのスナップショットと縮小画像だけを使うので、どのスレッドで実行しても構いません。
      */
-    private static final class Stroke {
-        final int mColor;
-        final float mSize;
-        final float[] mCoordinates;
+    private static final class Saving {
+        private final Context mAppContext;
+        private final List<Stroke> mStrokes;
+        private final int mBgColor;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mCreatedMillis;
+        private final File mSavedStrokeFile;
+        final int mHistoryGeneration;
+
+        /**
+         * 保存先。 {@code null} であればギャラリーのディレクトリ。
+         */
+        private final File mSaveDir;
 
         /**
-         * 指定された色、太さ、座標情報から {@link Stroke} を構築します。
-         * 
-         * {@code coordinates} に渡された配列から、 {@code nCoordinates} 個分の座標情報を
-         * コピーして保持します。
-         * 
-         * @param color 線の色。 ARGB です。
-         * @param size 線の太さ。
-         * @param coordinates 軌跡の座標情報。座標情報は x座標値, y座標値が交互に並んでいるものとして扱います。
-         * @param nCoordinates {@code coordinates} が保持する有効な座標情報の数。
+         * サムネイル用に縮小したオフスクリーン。背景は透明のままです。 {@link #run()} が終わると {@link BitmapPool} へ返します。
          */
-        public Stroke(int color, float size, float[] coordinates, int nCoordinates) {
+        private final Bitmap mThumbnail;
+
+        Saving(Context appContext, List<Stroke> strokes, int bgColor, int width, int height,
+                long createdMillis, File savedStrokeFile, int historyGeneration, Bitmap thumbnail,
+                File saveDir) {
             super();
-            mColor = color;
-            mSize = size;
-            mCoordinates = new float[nCoordinates * 2];
-            System.arraycopy(coordinates, 0, mCoordinates, 0,
-                    Math.min(coordinates.length, mCoordinates.length));
+            mAppContext = appContext;
+            mStrokes = strokes;
+            mBgColor = bgColor;
+            mWidth = width;
+            mHeight = height;
+            mCreatedMillis = createdMillis;
+            mSavedStrokeFile = savedStrokeFile;
+            mHistoryGeneration = historyGeneration;
+            mThumbnail = thumbnail;
+            mSaveDir = saveDir;
         }
 
-        private Stroke(int color, float size, float[] coordinates) {
-            super();
-            mColor = color;
-            mSize = size;
-            mCoordinates = coordinates;
+        /**
+         * 保存します。1回だけ呼び出せます。
+         *
+         * @return 保存したファイルの情報。保存できなかった場合は {@code null}。
+         */
+        Files run() {
+            try {
+                final File baseDir = mSaveDir != null ? prepareDir(mSaveDir)
+                        : prepareImageBaseDir(mAppContext);
+                if (baseDir == null) {
+                    return null;
+                }
+                final DrawingMetadata metadata = DrawingFiles.createMetadata(mStrokes, mWidth,
+                        mHeight, mCreatedMillis);
+                final SavedDrawingIndex index = new SavedDrawingIndex(baseDir);
+                Files saved = updateSavedStrokeFile(metadata, index);
+                if (saved == null) {
+                    saved = findSavedCopy(metadata, index);
+                }
+                if (saved != null) {
+                    return saved;
+                }
+                final File thumbnailFile = FileNames.createForNew(baseDir, "thumbnail-", "png");
+                if (!writeThumbnail(thumbnailFile)) {
+                    return null;
+                }
+                final File strokeFile = createStrokeFile(thumbnailFile, metadata);
+                if (strokeFile == null) {
+                    return null;
+                }
+                putToIndex(index, metadata, strokeFile);
+                return new Files(strokeFile, thumbnailFile, metadata.getContentHashString());
+            } finally {
+                BitmapPool.getInstance().put(mThumbnail);
+            }
         }
 
-        @Override
-        public String toString() {
-            final StringBuilder sb = new StringBuilder();
-            sb.append(mColor);
-            sb.append(',').append(mSize);
-            for (int i = 0; i < mCoordinates.length; i++) {
-                sb.append(',').append(mCoordinates[i]);
+        /**
+         * 読み込んだ、または最後に保存したストロークファイルとストロークが同じであれば、背景色を合わせます。
+         * 背景色が違っていればサムネイルを書き出し直し、ファイルの先頭の背景色を書き換えます。
+         * 索引を作る前に保存したファイルもここで索引に加えます。
+         *
+         * @param metadata 今描かれているものの概要。
+         * @param index 保存済みの画の索引。
+         * @return ストロークが同じであればそのファイルの情報。違っていれば {@code null}。
+         */
+        private Files updateSavedStrokeFile(DrawingMetadata metadata, SavedDrawingIndex index) {
+            final File strokeFile = mSavedStrokeFile;
+            if (strokeFile == null) {
+                return null;
             }
-            return sb.toString();
+            final DrawingMetadata saved;
+            try {
+                saved = DrawingFiles.readIfSameContent(strokeFile, metadata);
+            } catch (IOException e) {
+                Log.e(TAG, "failed to read stroke file: " + strokeFile.getPath(), e);
+                return null;
+            }
+            if (saved == null) {
+                return null;
+            }
+            final File thumbnailFile = DrawingFiles.toThumbnailFile(strokeFile);
+            if (saved.getBgColor() != mBgColor || !thumbnailFile.isFile()) {
+                // ギャラリーがストロークファイルの変更を検知したときには、サムネイルができているようにする
+                if (!writeThumbnail(thumbnailFile)) {
+                    return null;
+                }
+                try {
+                    // 背景色だけでも変えたら更新日時は進める
+                    DrawingMetadata.writeBgColor(strokeFile, mBgColor, System.currentTimeMillis());
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to update stroke file: " + strokeFile.getPath(), e);
+                    return null;
+                }
+            }
+            putToIndex(index, saved, strokeFile);
+            return new Files(strokeFile, thumbnailFile, saved.getContentHashString());
         }
 
-        @SuppressWarnings("unused")
-        public static String listToString(List<Stroke> strokes) {
-            final StringBuilder sb = new StringBuilder();
-            listToString(sb, strokes);
-            return sb.toString();
+        /**
+         * ストロークの内容のハッシュ値と背景色が同じストロークファイルを索引から探します。
+         *
+         * @param metadata 今描かれているものの概要。
+         * @param index 保存済みの画の索引。
+         * @return 見つかったファイルの情報。なければ {@code null}。
+         */
+        private Files findSavedCopy(DrawingMetadata metadata, SavedDrawingIndex index) {
+            final File strokeFile;
+            try {
+                strokeFile = DrawingFiles.findSavedCopy(index, metadata, mBgColor);
+            } catch (IOException e) {
+                Log.e(TAG, "failed to find saved copy: " + metadata.getContentHashString(), e);
+                return null;
+            }
+            if (strokeFile == null) {
+                return null;
+            }
+            return new Files(strokeFile, DrawingFiles.toThumbnailFile(strokeFile),
+                    metadata.getContentHashString());
         }
 
-        private static void listToString(StringBuilder sb, List<Stroke> strokes) {
-            if (strokes == null) {
+        private static void putToIndex(SavedDrawingIndex index, DrawingMetadata metadata,
+                File strokeFile) {
+            if (metadata.getContentHashString() == null) {
                 return;
             }
-            for (Stroke stroke : strokes) {
-                if (stroke == null) {
-                    continue;
-                }
-                sb.append(stroke.toString()).append('\n');
+            try {
+                index.put(metadata.getContentHashString(), strokeFile);
+            } catch (IOException e) {
+                // 索引がなくても保存はできている。次に同じ画を保存したときに重複するだけ
+                Log.e(TAG, "failed to update index: " + strokeFile.getPath(), e);
             }
         }
 
-        public static Stroke fromString(String str) {
-            final StringTokenizer tk = new StringTokenizer(str, ",");
-            final int tokens = tk.countTokens();
-            if (tokens < 2 || (tokens & 1) == 1) {
-                return null;
+        /**
+         * サムネイル画像を書き出します。縮小したオフスクリーンに背景色を合成しながら書き出すので、
+         * 背景色だけが変わった場合もストロークを描き直す必要はありません。
+         *
+         * @param imageFile 書き出すファイル。すでにあれば上書きします。
+         * @return 書き出せた場合は {@code true}。
+         */
+        private boolean writeThumbnail(File imageFile) {
+            try {
+                encodePng(mThumbnail, mBgColor, new BufferedOutputStream(new FileOutputStream(
+                        imageFile)));
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "failed to create image file: " + imageFile.getPath(), e);
+                return false;
             }
-            final int color = Integer.parseInt(tk.nextToken());
-            final float width = Float.parseFloat(tk.nextToken());
-            final float[] coordinates = new float[tokens - 2];
+        }
 
-            for (int index = 0; tk.hasMoreTokens(); index++) {
-                coordinates[index] = Float.parseFloat(tk.nextToken());
+        private File createStrokeFile(File thumbnailFile, DrawingMetadata metadata) {
+            final File strokeFile = DrawingFiles.toStrokeFile(thumbnailFile);
+            try {
+                DrawingFiles.writeStrokeFile(strokeFile, mBgColor, metadata, mStrokes);
+            } catch (IOException e) {
+                Log.e(TAG, "failed to write stroke file", e);
+                return null;
             }
-            return new Stroke(color, width, coordinates);
+            return strokeFile;
+        }
+    }
+
+    /**
+     * 構成変更の前後で引き継ぐ {@link PaintView} の状態です。
+     */
+    static final class State {
+        final Bitmap mBitmap;
+        final StrokeHistory mHistory;
+        final int mBgColor;
+        final int mHistoryGeneration;
+        final long mCreatedMillis;
+        final File mSavedStrokeFile;
+        final StrokeLoader mLoader;
+        final File[] mLoadingFiles;
+        final int mLoadIndex;
+        final boolean mLoadedUnderUserStrokes;
+        final OnLoadFinishedListener mOnLoadFinishedListener;
+
+        State(Bitmap bitmap, StrokeHistory history, int bgColor, int historyGeneration,
+                long createdMillis, File savedStrokeFile, StrokeLoader loader,
+                File[] loadingFiles, int loadIndex, boolean loadedUnderUserStrokes,
+                OnLoadFinishedListener listener) {
+            super();
+            mBitmap = bitmap;
+            mHistory = history;
+            mBgColor = bgColor;
+            mHistoryGeneration = historyGeneration;
+            mCreatedMillis = createdMillis;
+            mSavedStrokeFile = savedStrokeFile;
+            mLoader = loader;
+            mLoadingFiles = loadingFiles;
+            mLoadIndex = loadIndex;
+            mLoadedUnderUserStrokes = loadedUnderUserStrokes;
+            mOnLoadFinishedListener = listener;
         }
 
-        public static ArrayList<Stroke> fromListString(String str) {
-            final ArrayList<PaintView.Stroke> result = new ArrayList<PaintView.Stroke>();
-            if (str == null) {
-                return result;
+        /**
+         * 引き継がれなかった場合に、読み込み中のタスクを取り消します。
+         */
+        void cancelLoad() {
+            if (mLoader != null) {
+                mLoader.cancel(true);
             }
-            final StringTokenizer tk = new StringTokenizer(str, "\n");
-            while (tk.hasMoreTokens()) {
-                final String strokeStr = tk.nextToken();
-                if (strokeStr.length() == 0) {
-                    continue;
-                }
-                final Stroke stroke = Stroke.fromString(strokeStr);
-                if (stroke == null) {
-                    Log.e(Stroke.class.getSimpleName(), "invalid stroke string: " + strokeStr);
-                    continue;
+        }
+    }
+
+    /**
+     * 座標のまま確定したストロークを、 {@link #CURVE_FITTING_EXECUTOR} で曲線に近似するタスクです。
+     * 近似が終わると、 {@link PaintView} を作ったスレッドで履歴のストロークを置き換えます。
+     */
+    private final class CurveFitting extends FutureTask<Stroke> {
+        final Stroke mPoints;
+
+        /**
+         * @param points 座標のまま確定したストローク。
+         * @param coordinates 近似する座標。 UI スレッドで書き換えないコピーを渡してください。
+         * @param nCoordinates 座標の数。
+         */
+        CurveFitting(final Stroke points, final float[] coordinates, final int nCoordinates) {
+            super(new Callable<Stroke>() {
+                @Override
+                public Stroke call() {
+                    return Stroke.fitCurves(points.mColor, points.mSize, coordinates,
+                            nCoordinates, CurveFitter.DEFAULT_TOLERANCE);
                 }
-                result.add(stroke);
+            });
+            mPoints = points;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
             }
-            return result;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applyCurveFitting(CurveFitting.this);
+                }
+            });
         }
     }
 
+    /**
+     * {@link PaintView#saveInBackground(OnSavedListener)} による保存が終わったときに呼び出されるリスナーです。
+     */
+    public interface OnSavedListener {
+        /**
+         * 保存が終わったときに UI スレッドで呼び出されます。
+         *
+         * @param saved 保存したファイルの情報。保存できなかった場合は {@code null}。
+         */
+        void onSaved(Files saved);
+    }
+
+    /**
+     * {@link PaintView#load(File, OnLoadFinishedListener)} による読み込みが終わったときに呼び出されるリスナーです。
+     */
+    public interface OnLoadFinishedListener {
+        /**
+         * 読み込みが終わったときに UI スレッドで呼び出されます。
+         *
+         * @param view 読み込んだ {@link PaintView}。構成変更で読み込み中に引き継がれた場合は、引き継いだ {@link PaintView} です。
+         * @param succeeded ファイルを最後まで読み込めた場合は {@code true}。
+         * @param loadedCount 読み込んだストロークの数。履歴の先頭から {@code loadedCount}
+         *            個が読み込んだストロークです。
+         */
+        void onLoadFinished(PaintView view, boolean succeeded, int loadedCount);
+    }
+
     /**
      * ストローク情報とサムネイルのファイルを保持するクラス
      */
     public static final class Files {
         private final File mStrokeFile;
         private final File mThumbnailFile;
+        private final String mContentHash;
 
         public Files(File strokeFile, File thumbnailFile) {
+            this(strokeFile, thumbnailFile, null);
+        }
+
+        Files(File strokeFile, File thumbnailFile, String contentHash) {
             super();
             mStrokeFile = strokeFile;
             mThumbnailFile = thumbnailFile;
+            mContentHash = contentHash;
         }
 
         /**
-         * ストローク文字列を保持するファイル。このファイルの中身を {@link PaintView#restore(String)}
-         * に渡すことで描画されているものを復元することができます。
+         * ストロークを保持するファイル。このファイルを {@link PaintView#load(File)} に渡すか、
+         * {@link PaintView#readStrokeFile(Intent, String)} で読み込んだストローク文字列を
+         * {@link PaintView#restore(String)} に渡すことで描画されているものを復元することができます。
          *
          * @return ストロークファイル。
          */
@@ -928,6 +2476,16 @@ public class PaintView extends View {
         public File getThumbnailFile() {
             return mThumbnailFile;
         }
+
+        /**
+         * ストロークの内容のハッシュ値。同じストロークを保存したファイルは同じ値になるので、
+         * 同期やバックアップで変更のないファイルを見分けるのに使えます。
+         *
+         * @return 16進数のハッシュ値。わからない場合は {@code null}。
+         */
+        public String getContentHash() {
+            return mContentHash;
+        }
     }
 
     /**
@@ -0,0 +1,225 @@
+package com.example.simplepaint;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 透明な部分を含む画素を背景色と合成しながら PNG として書き出すクラスです。
+ *
+ * <p>
+ * 画素を1行ずつ受け取り、背景色と合成してすぐに圧縮するので、背景色で塗りつぶしてから画を描いた
+ * ビットマップを作る必要がありません。背景色だけが変わった場合も、オフスクリーンビットマップから書き出し直すだけで済みます。
+ * 背景色が不透明であれば合成した結果も不透明なので RGB で、そうでなければ RGBA で書き出します。
+ * 各行には Sub フィルタをかけます。
+ * </p>
+ * <p>
+ * Android に依存しないので、 tools/src の JVM 用のツールからも使えます。
+ * </p>
+ * <p>
+ * {@link #writeRow(int[])} を高さの数だけ呼び出してから {@link #close()} を呼び出します。
+ * </p>
+ */
+final class PngEncoder implements Closeable {
+
+    private static final byte[] SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    private static final int COLOR_TYPE_RGB = 2;
+
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private static final int FILTER_SUB = 1;
+
+    /**
+     * IDAT チャンク1つに入れる圧縮後のデータの大きさ(バイト)。
+     */
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private final DataOutputStream mOut;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final int mBgColor;
+
+    /**
+     * 1画素のバイト数。
+     */
+    private final int mBytesPerPixel;
+
+    /**
+     * フィルタの種類と、フィルタをかけた1行分の画素。
+     */
+    private final byte[] mRow;
+
+    private final Deflater mDeflater = new Deflater();
+
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+
+    private int mChunkLength = 0;
+
+    private int mRowCount = 0;
+
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * シグネチャとヘッダを書き出します。
+     *
+     * @param out 書き出し先。バッファリングは呼び出し側で行ってください。
+     * @param width 画像の幅。
+     * @param height 画像の高さ。
+     * @param bgColor 背景色(AARRGGBB)。
+     */
+    PngEncoder(OutputStream out, int width, int height, int bgColor) throws IOException {
+        super();
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("empty image: " + width + "x" + height);
+        }
+        mOut = new DataOutputStream(out);
+        mWidth = width;
+        mHeight = height;
+        mBgColor = bgColor;
+        final boolean opaque = (bgColor >>> 24) == 0xff;
+        mBytesPerPixel = opaque ? 3 : 4;
+        mRow = new byte[1 + width * mBytesPerPixel];
+
+        mOut.write(SIGNATURE);
+        final byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // ビット深度
+        header[9] = (byte) (opaque ? COLOR_TYPE_RGB : COLOR_TYPE_RGBA);
+        // 圧縮方法、フィルタ方法、インターレースはすべて 0
+        writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * 1行分の画素を背景色と合成して書き出します。
+     *
+     * @param argb 合成前の画素({@code Bitmap#getPixels} と同じく、アルファを乗算していない AARRGGBB)。
+     *            少なくとも幅の数だけ必要です。
+     */
+    public void writeRow(int[] argb) throws IOException {
+        if (mHeight <= mRowCount) {
+            throw new IllegalStateException("too many rows");
+        }
+        final byte[] row = mRow;
+        final int bpp = mBytesPerPixel;
+        row[0] = FILTER_SUB;
+        int prevR = 0;
+        int prevG = 0;
+        int prevB = 0;
+        int prevA = 0;
+        for (int x = 0, i = 1; x < mWidth; x++, i += bpp) {
+            final int c = composite(argb[x], mBgColor);
+            final int r = (c >> 16) & 0xff;
+            final int g = (c >> 8) & 0xff;
+            final int b = c & 0xff;
+            row[i] = (byte) (r - prevR);
+            row[i + 1] = (byte) (g - prevG);
+            row[i + 2] = (byte) (b - prevB);
+            if (bpp == 4) {
+                final int a = c >>> 24;
+                row[i + 3] = (byte) (a - prevA);
+                prevA = a;
+            }
+            prevR = r;
+            prevG = g;
+            prevB = b;
+        }
+        mDeflater.setInput(row);
+        deflate();
+        mRowCount++;
+    }
+
+    /**
+     * 残りのデータと終端を書き出して閉じます。
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mRowCount != mHeight) {
+                throw new IOException("rows written: " + mRowCount + ", expected: " + mHeight);
+            }
+            mDeflater.finish();
+            deflate();
+            flushChunk();
+            writeChunk("IEND", mChunk, 0);
+        } finally {
+            mDeflater.end();
+            mOut.close();
+        }
+    }
+
+    /**
+     * 画素を背景色の上に重ねた色を返します。
+     *
+     * @param color 画素(アルファを乗算していない AARRGGBB)。
+     * @param bgColor 背景色(AARRGGBB)。
+     * @return 合成した色(アルファを乗算していない AARRGGBB)。
+     */
+    static int composite(int color, int bgColor) {
+        final int sa = color >>> 24;
+        if (sa == 0xff) {
+            return color;
+        }
+        if (sa == 0) {
+            return bgColor;
+        }
+        // 背景の寄与は bgAlpha * (1 - sa) 。 255 * 255 倍した値で計算する
+        final int bw = (bgColor >>> 24) * (0xff - sa);
+        final int sw = sa * 0xff;
+        final int total = sw + bw;
+        int result = ((total + 127) / 255) << 24;
+        for (int shift = 0; shift < 24; shift += 8) {
+            final int s = (color >> shift) & 0xff;
+            final int b = (bgColor >> shift) & 0xff;
+            result |= ((s * sw + b * bw + total / 2) / total) << shift;
+        }
+        return result;
+    }
+
+    private void deflate() throws IOException {
+        while (true) {
+            final int length = mDeflater.deflate(mChunk, mChunkLength, CHUNK_SIZE - mChunkLength);
+            mChunkLength += length;
+            if (mChunkLength == CHUNK_SIZE) {
+                flushChunk();
+            } else if (length == 0 && (mDeflater.needsInput() || mDeflater.finished())) {
+                return;
+            }
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (mChunkLength == 0) {
+            return;
+        }
+        writeChunk("IDAT", mChunk, mChunkLength);
+        mChunkLength = 0;
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        final byte[] typeBytes = type.getBytes("US-ASCII");
+        mCrc.reset();
+        mCrc.update(typeBytes);
+        mCrc.update(data, 0, length);
+        mOut.writeInt(length);
+        mOut.write(typeBytes);
+        mOut.write(data, 0, length);
+        mOut.writeInt((int) mCrc.getValue());
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,373 @@
+package com.example.simplepaint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.view.MotionEvent;
+
+/**
+ * {@link TouchRecorder} で記録したタッチイベントを画面に表示していない {@link PaintView} で再生し、
+ * 結果を正解のファイルと比べるクラスです。
+ *
+ * <p>
+ * イベントは記録した時刻を待たずに続けて渡すので、すぐに再生が終わります。次の3つを比べます。
+ * </p>
+ * <ul>
+ * <li>履歴: {@link PaintView#getStrokeString()} が正解の {@code <name>.txt} と一致すること。</li>
+ * <li>ストロークファイル: {@link StrokeWriter} で書き出したものが正解の {@code <name>.stroke} と一致すること。</li>
+ * <li>画素: 背景と合成した画像と正解の {@code <name>.png} の各チャンネルの差が {@code channelTolerance}
+ * を超える画素が、全体の {@code pixelTolerance} 以下であること。 {@code <name>.png} がない場合は比べません。</li>
+ * </ul>
+ * <p>
+ * 描画やファイル形式を変更したときに、結果が変わっていないことを確かめるために使います。正解のファイルは
+ * {@link #writeGolden(Context, File, File, String)} で作ります。画像は端末で描いたものでなければならないので、
+ * 端末以外で作った正解には {@code <name>.png} を含めません。
+ * </p>
+ * <p>
+ * アプリには {@code assets/replay} に記録と正解のファイルを含めてあり、デバッグ用のメニューから
+ * {@link #verifyAsset(Context, String, int, float)} で検証できます。
+ * </p>
+ */
+final class ReplayVerifier {
+
+    /**
+     * 記録と正解のファイルを置く assets の中のディレクトリ。
+     */
+    static final String ASSET_DIR = "replay";
+
+    /**
+     * {@link TouchRecorder} で記録したファイルの拡張子。
+     */
+    static final String RECORDING_SUFFIX = ".touch";
+
+    private ReplayVerifier() {
+        // not instantiable
+    }
+
+    /**
+     * 記録したタッチイベントを再生した結果を正解のファイルと比べます。
+     *
+     * @param context {@link PaintView} を作るためのコンテキスト。
+     * @param recording {@link TouchRecorder} で記録したファイル。
+     * @param goldenDir 正解のファイルがあるディレクトリ。
+     * @param name 正解のファイルの名前(拡張子を除く)。
+     * @param channelTolerance 画素の各チャンネルの差の許容値(0 から 255)。
+     * @param pixelTolerance 許容値を超える画素の割合の上限(0 から 1)。
+     * @return 比較の結果。
+     */
+    static Result verify(Context context, File recording, File goldenDir, String name,
+            int channelTolerance, float pixelTolerance) throws IOException {
+        final PaintView view = replay(context, recording);
+        final Result result = new Result();
+
+        final String expectedHistory = readText(new File(goldenDir, name + ".txt"));
+        result.mHistoryMatches = view.getStrokeString().equals(expectedHistory);
+
+        final byte[] expectedStrokeFile = readBytes(new File(goldenDir, name + ".stroke"));
+        result.mStrokeFileMatches = Arrays.equals(toStrokeFile(view), expectedStrokeFile);
+
+        final File expectedImage = new File(goldenDir, name + ".png");
+        result.mPixelsRequired = expectedImage.isFile();
+        if (!result.mPixelsRequired) {
+            return result;
+        }
+        final Bitmap expected = BitmapFactory.decodeFile(expectedImage.getPath());
+        final Bitmap actual = view.createScaledBitmap(1.0F);
+        try {
+            if (expected == null || expected.getWidth() != actual.getWidth()
+                    || expected.getHeight() != actual.getHeight()) {
+                result.mPixelsCompared = false;
+            } else {
+                result.mPixelsCompared = true;
+                comparePixels(expected, actual, channelTolerance, result);
+                result.mPixelsMatch = result.mMismatchedPixels <= pixelTolerance
+                        * actual.getWidth() * actual.getHeight();
+            }
+        } finally {
+            BitmapPool.getInstance().put(actual);
+            if (expected != null) {
+                expected.recycle();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * アプリに含めた記録と正解のファイル( {@code assets/replay/<name>.*} )で
+     * {@link #verify(Context, File, File, String, int, float)} を行います。
+     * ファイルはキャッシュディレクトリにコピーしてから使います。
+     *
+     * @param context {@link PaintView} を作るためのコンテキスト。
+     * @param name 記録と正解のファイルの名前(拡張子を除く)。
+     * @param channelTolerance 画素の各チャンネルの差の許容値(0 から 255)。
+     * @param pixelTolerance 許容値を超える画素の割合の上限(0 から 1)。
+     * @return 比較の結果。
+     */
+    static Result verifyAsset(Context context, String name, int channelTolerance,
+            float pixelTolerance) throws IOException {
+        final File dir = new File(context.getCacheDir(), ASSET_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("failed to create directory: " + dir.getPath());
+        }
+        // 前にコピーした正解が残っていると、 assets にない画像と比べてしまう
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith(name + ".")) {
+                file.delete();
+            }
+        }
+        final AssetManager assets = context.getAssets();
+        for (String fileName : assets.list(ASSET_DIR)) {
+            if (!fileName.startsWith(name + ".")) {
+                continue;
+            }
+            final InputStream in = assets.open(ASSET_DIR + "/" + fileName);
+            try {
+                writeBytes(new File(dir, fileName), readBytes(in));
+            } finally {
+                in.close();
+            }
+        }
+        return verify(context, new File(dir, name + RECORDING_SUFFIX), dir, name,
+                channelTolerance, pixelTolerance);
+    }
+
+    /**
+     * 記録したタッチイベントを再生した結果を正解のファイルとして書き出します。
+     *
+     * @param context {@link PaintView} を作るためのコンテキスト。
+     * @param recording {@link TouchRecorder} で記録したファイル。
+     * @param goldenDir 正解のファイルを書き出すディレクトリ。
+     * @param name 正解のファイルの名前(拡張子を除く)。
+     */
+    static void writeGolden(Context context, File recording, File goldenDir, String name)
+            throws IOException {
+        final PaintView view = replay(context, recording);
+
+        final Writer text = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                new File(goldenDir, name + ".txt")), "UTF-8"));
+        try {
+            view.writeStrokeString(text);
+        } finally {
+            text.close();
+        }
+        writeBytes(new File(goldenDir, name + ".stroke"), toStrokeFile(view));
+
+        final Bitmap bitmap = view.createScaledBitmap(1.0F);
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(
+                goldenDir, name + ".png")));
+        try {
+            if (!bitmap.compress(CompressFormat.PNG, 100, out)) {
+                throw new IOException("failed to write golden image");
+            }
+        } finally {
+            out.close();
+            BitmapPool.getInstance().put(bitmap);
+        }
+    }
+
+    /**
+     * 記録したタッチイベントを新しい {@link PaintView} に順に渡します。記録した設定はそのつど {@link PaintView} に反映します。
+     *
+     * @return イベントを渡し終えた {@link PaintView}。
+     */
+    static PaintView replay(Context context, File recording) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(recording)));
+        try {
+            final byte[] magic = new byte[TouchRecorder.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, TouchRecorder.MAGIC)
+                    || in.readUnsignedByte() != TouchRecorder.VERSION) {
+                throw new IOException("not a touch recording: " + recording.getPath());
+            }
+            final int width = in.readInt();
+            final int height = in.readInt();
+
+            final PaintView view = new PaintView(context, null);
+            // 画面に表示しないので、大きさは自分で決める
+            view.layout(0, 0, width, height);
+            for (int type = in.read(); type != -1; type = in.read()) {
+                switch (type) {
+                    case TouchRecorder.RECORD_SETTINGS:
+                        view.setPenColor(in.readInt());
+                        view.setPenSize(in.readFloat());
+                        view.setVariableWidthEnabled(in.readBoolean());
+                        view.setBackgroundColor(in.readInt());
+                        break;
+                    case TouchRecorder.RECORD_EVENT:
+                        final MotionEvent event = readEvent(in);
+                        try {
+                            view.onTouchEvent(event);
+                        } finally {
+                            event.recycle();
+                        }
+                        break;
+                    default:
+                        throw new IOException("corrupted touch recording");
+                }
+            }
+            return view;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MotionEvent readEvent(DataInputStream in) throws IOException {
+        final int action = in.readInt();
+        final long downTime = in.readLong();
+        final int pointerCount = in.readInt();
+        final int historySize = in.readInt();
+        if (pointerCount <= 0 || historySize < 0) {
+            throw new IOException("corrupted touch recording");
+        }
+        final MotionEvent.PointerProperties[] properties =
+                new MotionEvent.PointerProperties[pointerCount];
+        final MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerCount];
+        for (int p = 0; p < pointerCount; p++) {
+            properties[p] = new MotionEvent.PointerProperties();
+            properties[p].id = in.readInt();
+            coords[p] = new MotionEvent.PointerCoords();
+        }
+
+        // 最も古い履歴で作り、残りの履歴と現在の座標を追加する
+        MotionEvent event = null;
+        for (int h = 0; h <= historySize; h++) {
+            final long eventTime = in.readLong();
+            for (int p = 0; p < pointerCount; p++) {
+                coords[p].x = in.readFloat();
+                coords[p].y = in.readFloat();
+                coords[p].pressure = in.readFloat();
+                coords[p].size = 1.0F;
+            }
+            if (event == null) {
+                event = MotionEvent.obtain(downTime, eventTime, action, pointerCount, properties,
+                        coords, 0, 0, 1.0F, 1.0F, 0, 0, 0, 0);
+            } else {
+                event.addBatch(eventTime, coords, 0);
+            }
+        }
+        return event;
+    }
+
+    private static byte[] toStrokeFile(PaintView view) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final StrokeWriter writer = new StrokeWriter(out);
+        try {
+            writer.writeHeader(view.getBgColor());
+            for (Stroke stroke : view.snapshotStrokes(0)) {
+                writer.write(stroke);
+            }
+        } finally {
+            writer.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static void comparePixels(Bitmap expected, Bitmap actual, int channelTolerance,
+            Result result) {
+        final int width = actual.getWidth();
+        final int[] expectedRow = new int[width];
+        final int[] actualRow = new int[width];
+        for (int y = 0; y < actual.getHeight(); y++) {
+            expected.getPixels(expectedRow, 0, width, 0, y, width, 1);
+            actual.getPixels(actualRow, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                final int e = expectedRow[x];
+                final int a = actualRow[x];
+                if (e == a) {
+                    continue;
+                }
+                int diff = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    diff = Math.max(diff, Math.abs(((e >>> shift) & 0xff)
+                            - ((a >>> shift) & 0xff)));
+                }
+                result.mMaxChannelDifference = Math.max(result.mMaxChannelDifference, diff);
+                if (channelTolerance < diff) {
+                    result.mMismatchedPixels++;
+                }
+            }
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        return new String(readBytes(file), "UTF-8");
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            return readBytes(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        for (int read = in.read(buf); 0 <= read; read = in.read(buf)) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeBytes(File file, byte[] bytes) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * {@link ReplayVerifier#verify(Context, File, File, String, int, float)} の結果です。
+     */
+    static final class Result {
+        boolean mHistoryMatches;
+        boolean mStrokeFileMatches;
+        boolean mPixelsRequired;
+        boolean mPixelsCompared;
+        boolean mPixelsMatch;
+        int mMismatchedPixels;
+        int mMaxChannelDifference;
+
+        /**
+         * すべての比較で一致したかどうかを返します。
+         *
+         * @return 一致した場合は {@code true}。
+         */
+        public boolean isPassed() {
+            return mHistoryMatches && mStrokeFileMatches && (!mPixelsRequired || mPixelsMatch);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "history=%s, strokeFile=%s, pixels=%s (mismatched=%d, maxDiff=%d)",
+                    mHistoryMatches ? "ok" : "NG", mStrokeFileMatches ? "ok" : "NG",
+                    !mPixelsRequired ? "skipped" : !mPixelsCompared ? "size differs"
+                            : mPixelsMatch ? "ok" : "NG",
+                    Integer.valueOf(mMismatchedPixels), Integer.valueOf(mMaxChannelDifference));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.simplepaint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 保存したストロークファイルを、ストロークの内容のハッシュ値( {@link DrawingMetadata#getContentHashString()}
+ * )から引くための索引です。
+ *
+ * <p>
+ * 保存先のディレクトリの下の {@link #DIR_NAME} に、ハッシュ値を名前とするファイルを作り、そこにストロークファイルの名前を書いておきます。
+ * 同じ画が保存済みかどうかを、ストロークファイルを1つずつ読まずに調べられます。
+ * 索引はストロークファイルを保存したときと削除したときに更新します。ほかのアプリに削除された場合などには古くなっているので、
+ * 引いたファイルの概要は呼び出し側で確かめてください。
+ * </p>
+ * <p>
+ * Android に依存しないので、 tools/src の JVM 用のツールからも使えます。
+ * </p>
+ */
+final class SavedDrawingIndex {
+
+    /**
+     * 索引を置くディレクトリの名前。ストロークファイルと同じディレクトリの下に作ります。
+     */
+    static final String DIR_NAME = ".hashes";
+
+    private static final String CHARSET = "UTF-8";
+
+    private final File mBaseDir;
+
+    private final File mDir;
+
+    /**
+     * @param baseDir ストロークファイルを保存するディレクトリ。
+     */
+    SavedDrawingIndex(File baseDir) {
+        super();
+        mBaseDir = baseDir;
+        mDir = new File(baseDir, DIR_NAME);
+    }
+
+    /**
+     * ハッシュ値が同じストロークを保存したファイルを返します。索引が指すファイルがなくなっていれば、その項目を削除します。
+     *
+     * @param contentHash ストロークの内容のハッシュ値。
+     * @return ストロークファイル。索引になければ {@code null}。
+     */
+    File find(String contentHash) throws IOException {
+        final File entry = new File(mDir, contentHash);
+        final String name = readEntry(entry);
+        if (name == null) {
+            return null;
+        }
+        final File strokeFile = new File(mBaseDir, name);
+        if (!strokeFile.isFile()) {
+            // 索引を通さずに削除された
+            entry.delete();
+            return null;
+        }
+        return strokeFile;
+    }
+
+    /**
+     * ストロークファイルを索引に加えます。同じハッシュ値の項目があれば置き換えます。
+     *
+     * @param contentHash ストロークの内容のハッシュ値。
+     * @param strokeFile 保存したストロークファイル。保存先のディレクトリの直下のファイルです。
+     */
+    void put(String contentHash, File strokeFile) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("failed to create directory: " + mDir.getPath());
+        }
+        final OutputStream out = new FileOutputStream(new File(mDir, contentHash));
+        try {
+            out.write(strokeFile.getName().getBytes(CHARSET));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 削除するストロークファイルを索引から取り除きます。ファイルを削除する前に呼び出してください。
+     *
+     * <p>
+     * ストロークファイルの先頭の概要だけを読んでハッシュ値を調べ、その項目がこのファイルを指している場合だけ削除します。
+     * </p>
+     *
+     * @param strokeFile 削除するストロークファイル。
+     */
+    void remove(File strokeFile) throws IOException {
+        final DrawingMetadata metadata = DrawingMetadata.read(strokeFile);
+        if (metadata == null || metadata.getContentHashString() == null) {
+            return;
+        }
+        final File entry = new File(mDir, metadata.getContentHashString());
+        if (strokeFile.getName().equals(readEntry(entry))) {
+            entry.delete();
+        }
+    }
+
+    /**
+     * 索引の項目からストロークファイルの名前を読み込みます。
+     *
+     * @return ストロークファイルの名前。項目がなければ {@code null}。
+     */
+    private static String readEntry(File entry) throws IOException {
+        final InputStream in;
+        try {
+            in = new FileInputStream(entry);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[256];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toString(CHARSET);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.simplepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * オフスクリーンビットマップを 1/2, 1/4, 1/8 に縮小したものを保持するクラスです。
+ *
+ * <p>
+ * 縮小して表示するときに、大きなビットマップを毎フレーム縮小して描くかわりに、表示倍率に近い縮小済みのものを描きます。
+ * 各段階は1つ前の段階を半分に縮小して作るので、縮小しても細い線が消えにくくなります。
+ * オフスクリーンの内容が変わったかどうかは、呼び出し側が渡す世代で判断します。
+ * 作ったビットマップは {@link BitmapPool} から借り、 {@link #clear()} で返します。
+ * </p>
+ */
+final class ScaledRenderCache {
+
+    /**
+     * 最も小さい段階。 1/2<sup>MAX_LEVEL</sup> まで縮小します。
+     */
+    static final int MAX_LEVEL = 3;
+
+    /**
+     * 段階ごとの縮小したビットマップ。添字 0 は使いません。
+     */
+    private final Bitmap[] mRenders = new Bitmap[MAX_LEVEL + 1];
+
+    /**
+     * 段階ごとの、縮小したときのオフスクリーンの世代。
+     */
+    private final int[] mGenerations = new int[MAX_LEVEL + 1];
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+
+    ScaledRenderCache() {
+        super();
+    }
+
+    /**
+     * 表示倍率に対して使う段階を返します。縮小したものを拡大して描くことがないように、表示倍率以上の段階を選びます。
+     *
+     * @param zoom 表示倍率。
+     * @return 段階。 0 の場合はオフスクリーンをそのまま描きます。
+     */
+    static int levelForZoom(float zoom) {
+        int level = 0;
+        while (level < MAX_LEVEL && zoom <= 1.0F / (2 << level)) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * 指定した段階に縮小したビットマップを返します。世代が変わっていれば作り直します。
+     *
+     * @param source オフスクリーンビットマップ。
+     * @param generation オフスクリーンの世代。内容が変わるたびに変わる値です。
+     * @param level 段階。
+     * @return 縮小したビットマップ。 {@code level} が 0 の場合は {@code source}。
+     */
+    public Bitmap get(Bitmap source, int generation, int level) {
+        if (level <= 0) {
+            return source;
+        }
+        final Bitmap current = mRenders[level];
+        if (current != null && mGenerations[level] == generation) {
+            return current;
+        }
+        final Bitmap larger = get(source, generation, level - 1);
+        final int width = Math.max(1, larger.getWidth() / 2);
+        final int height = Math.max(1, larger.getHeight() / 2);
+        Bitmap render = current;
+        if (render == null || render.getWidth() != width || render.getHeight() != height) {
+            BitmapPool.getInstance().put(render);
+            render = BitmapPool.getInstance().get(width, height, Bitmap.Config.ARGB_8888);
+        }
+        render.eraseColor(0);
+        final Canvas canvas = new Canvas(render);
+        canvas.scale((float) width / larger.getWidth(), (float) height / larger.getHeight());
+        canvas.drawBitmap(larger, 0.0F, 0.0F, mPaint);
+        mRenders[level] = render;
+        mGenerations[level] = generation;
+        return render;
+    }
+
+    /**
+     * 縮小したビットマップをすべて {@link BitmapPool} に返します。
+     */
+    public void clear() {
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            BitmapPool.getInstance().put(mRenders[level]);
+            mRenders[level] = null;
+        }
+    }
+}
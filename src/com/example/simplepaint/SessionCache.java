@@ -0,0 +1,383 @@
+package com.example.simplepaint;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * 描いている途中の画をアプリのキャッシュディレクトリにあるセッションファイルへ保存するクラスです。
+ *
+ * <p>
+ * {@link android.os.Bundle} にはセッション ID だけを保存し、ストロークはセッションファイルに
+ * 書き出します。セッションファイルはストロークファイルと同じ形式で、前回の同期以降に増えたストロークだけを
+ * バックグラウンドで追記します。そのため画面回転などにかかる時間は画の大きさに依存しません。
+ * </p>
+ * <p>
+ * 背景色はファイルの先頭に固定長で書き出される({@link StrokeWriter})ので、背景色が変わってもファイルの先頭を
+ * 書き換えるだけで済みます。
+ * </p>
+ * <p>
+ * ストロークファイルを読み込んでいる途中に同期する場合は、読み込みの完了は待ちません。読み込み中のファイルの
+ * パスをソースファイル( {@code session-<id>.source} )に書き出し、セッションファイルには読み込み中に描かれた
+ * ストロークだけを書き出します。復元するときはソースファイルに書かれたファイルを読み込んでから、
+ * セッションファイルのストロークを続けて読み込みます。読み込みが終わったあとの同期でセッションファイルに
+ * すべてのストロークを書き出し直し、ソースファイルを削除します。
+ * </p>
+ */
+final class SessionCache {
+
+    private static final String TAG = SessionCache.class.getSimpleName();
+
+    private static final String PREFIX = "session-";
+
+    private static final String SUFFIX = ".stroke";
+
+    private static final String SOURCE_SUFFIX = ".source";
+
+    /**
+     * これより古いセッションファイルは新しいセッションを作るときに削除します。
+     */
+    private static final long STALE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * ファイルの読み書きを行う Executor。{@link StrokeLoader} と同じく直列に実行されるので、
+     * 書き込みが終わる前に読み込みが始まることはありません。
+     */
+    private static final Executor EXECUTOR = AsyncTask.SERIAL_EXECUTOR;
+
+    private final String mId;
+
+    private final File mFile;
+
+    /**
+     * セッションファイルより前に読み込むストロークファイルのパスを書いたファイル。
+     */
+    private final File mSourceFile;
+
+    /**
+     * セッションファイルに書き出した履歴の世代。ファイルの中身が不明なときは {@code -1} です。
+     */
+    private int mWrittenGeneration = -1;
+
+    /**
+     * セッションファイルに書き出したストロークの数。
+     */
+    private int mWrittenCount = 0;
+
+    /**
+     * 読み込み中に同期したときの読み込み中のファイル。読み込み中に同期していなければ {@code null} です。
+     */
+    private File[] mWrittenLoadingFiles;
+
+    /**
+     * 読み込み中に描かれたストロークのうち、セッションファイルに書き出した数。
+     */
+    private int mWrittenWhileLoading = 0;
+
+    private SessionCache(File dir, String id) {
+        super();
+        mId = id;
+        mFile = new File(dir, PREFIX + id + SUFFIX);
+        mSourceFile = new File(dir, PREFIX + id + SOURCE_SUFFIX);
+    }
+
+    /**
+     * 新しいセッションを作成します。
+     *
+     * @param appContext アプリケーションコンテキスト。
+     * @return 作成したセッション。
+     */
+    public static SessionCache create(Context appContext) {
+        final File dir = appContext.getCacheDir();
+        purgeStaleSessions(dir);
+        return new SessionCache(dir, UUID.randomUUID().toString());
+    }
+
+    /**
+     * 保存しておいた ID のセッションを開きます。
+     *
+     * @param appContext アプリケーションコンテキスト。
+     * @param id {@link #getId()} で得たセッション ID。
+     * @return セッション。
+     */
+    public static SessionCache open(Context appContext, String id) {
+        return new SessionCache(appContext.getCacheDir(), id);
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    /**
+     * セッションファイルの内容を {@link PaintView} へバックグラウンドで読み込みます。
+     *
+     * @param view 読み込み先。
+     */
+    public void restoreTo(PaintView view) {
+        resetWrittenState();
+        final List<File> files = readSources();
+        // ソースファイルがあれば、次の同期ですべてのストロークをセッションファイルに書き出し直す
+        final boolean chained = !files.isEmpty();
+        files.add(mFile);
+        view.load(files.toArray(new File[files.size()]), new PaintView.OnLoadFinishedListener() {
+            @Override
+            public void onLoadFinished(PaintView view, boolean succeeded, int loadedCount) {
+                // 以前のテキスト形式のファイルにはバイナリ形式で追記できないので、次の同期で書き直す
+                if (succeeded && !chained && StrokeReader.isBinary(mFile)) {
+                    // 読み込んだストロークはファイルに書かれているものと同じ
+                    mWrittenGeneration = view.getHistoryGeneration();
+                    mWrittenCount = loadedCount;
+                }
+            }
+        });
+    }
+
+    /**
+     * {@link PaintView} の現在の内容をセッションファイルへ反映させます。書き込みはバックグラウンドで行います。
+     *
+     * @param view 保存する {@link PaintView}。
+     */
+    public void sync(PaintView view) {
+        if (view.isLoading() && syncWhileLoading(view)) {
+            return;
+        }
+        view.completeLoad();
+
+        final int generation = view.getHistoryGeneration();
+        final int count = view.getStrokeCount();
+        final int bgColor = view.getBgColor();
+        // 読み込み中に同期していた場合は、読み込んだストロークも含めて書き出し直す
+        if (generation != mWrittenGeneration || count < mWrittenCount
+                || mWrittenLoadingFiles != null) {
+            EXECUTOR.execute(new Writing(mFile, mSourceFile, bgColor, view.snapshotStrokes(0),
+                    false));
+        } else {
+            EXECUTOR.execute(new Writing(mFile, mSourceFile, bgColor,
+                    view.snapshotStrokes(mWrittenCount), true));
+        }
+        resetWrittenState();
+        mWrittenGeneration = generation;
+        mWrittenCount = count;
+    }
+
+    /**
+     * 読み込み中の {@link PaintView} を、読み込みの完了を待たずに同期します。
+     *
+     * <p>
+     * 読み込み中のファイルをソースファイルに書き出し、読み込み中に描かれたストロークをセッションファイルに書き出します。
+     * このセッション自体を復元している途中であれば、ソースファイルはそのままにして、セッションファイルに追記します。
+     * セッションファイルはファイルの読み込みと同じ Executor で書き込むので、読み込み終わる前に書き換わることはありません。
+     * </p>
+     *
+     * @return 同期できた場合は {@code true}。以前のテキスト形式のセッションファイルを復元している途中で、
+     *         追記できない場合は {@code false}。
+     */
+    private boolean syncWhileLoading(PaintView view) {
+        final File[] loadingFiles = view.getLoadingFiles();
+        final boolean restoring = loadingFiles[loadingFiles.length - 1].equals(mFile);
+        if (restoring && !StrokeReader.isBinary(mFile)) {
+            return false;
+        }
+        final int generation = view.getHistoryGeneration();
+        final int bgColor = view.getBgColor();
+        final List<Stroke> strokes;
+        if (generation == mWrittenGeneration
+                && Arrays.equals(loadingFiles, mWrittenLoadingFiles)) {
+            // 前回の同期以降に描かれたストロークだけを追記する
+            strokes = view.snapshotStrokesDrawnWhileLoading(mWrittenWhileLoading);
+            EXECUTOR.execute(new Writing(mFile, mSourceFile, bgColor, strokes, true, false));
+        } else if (restoring) {
+            // セッションファイルのストロークを読み込み中なので、そのあとに追記する。
+            // 背景色はまだ読み込んだものが反映されていないかもしれないので書き換えない
+            mWrittenWhileLoading = 0;
+            strokes = view.snapshotStrokesDrawnWhileLoading(0);
+            EXECUTOR.execute(new Writing(mFile, mSourceFile, bgColor, strokes, true, false));
+        } else {
+            mWrittenWhileLoading = 0;
+            strokes = view.snapshotStrokesDrawnWhileLoading(0);
+            EXECUTOR.execute(new Writing(mFile, mSourceFile, loadingFiles, bgColor, strokes));
+        }
+        mWrittenGeneration = generation;
+        mWrittenLoadingFiles = loadingFiles;
+        mWrittenWhileLoading += strokes.size();
+        return true;
+    }
+
+    private void resetWrittenState() {
+        mWrittenGeneration = -1;
+        mWrittenCount = 0;
+        mWrittenLoadingFiles = null;
+        mWrittenWhileLoading = 0;
+    }
+
+    /**
+     * ソースファイルに書かれたストロークファイルを読み込みます。
+     *
+     * @return ストロークファイル。ソースファイルがなければ空のリスト。
+     */
+    private List<File> readSources() {
+        final List<File> files = new ArrayList<File>();
+        if (!mSourceFile.isFile()) {
+            return files;
+        }
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mSourceFile), "UTF-8"));
+            try {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    if (line.length() != 0) {
+                        files.add(new File(line));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read session source: " + mSourceFile.getPath(), e);
+            files.clear();
+        }
+        return files;
+    }
+
+    /**
+     * セッションファイルを削除します。
+     */
+    public void delete() {
+        resetWrittenState();
+        final File file = mFile;
+        final File sourceFile = mSourceFile;
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+                sourceFile.delete();
+            }
+        });
+    }
+
+    private static void purgeStaleSessions(File dir) {
+        final long threshold = System.currentTimeMillis() - STALE_MILLIS;
+        final File[] staleFiles = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File pathname) {
+                final String name = pathname.getName();
+                return name.startsWith(PREFIX)
+                        && (name.endsWith(SUFFIX) || name.endsWith(SOURCE_SUFFIX))
+                        && pathname.lastModified() < threshold;
+            }
+        });
+        if (staleFiles == null) {
+            return;
+        }
+        for (File file : staleFiles) {
+            file.delete();
+        }
+    }
+
+    /**
+     * セッションファイルへの書き込みです。追記の場合は先頭の背景色も書き換えます。
+     *
+     * <p>
+     * 書き出し直す場合は、ソースファイルに読み込み中のファイルを書き出すか、ソースファイルを削除します。
+     * </p>
+     */
+    private static final class Writing implements Runnable {
+        private final File mFile;
+        private final File mSourceFile;
+        private final File[] mSources;
+        private final int mBgColor;
+        private final List<Stroke> mStrokes;
+        private final boolean mAppend;
+        private final boolean mUpdateBgColor;
+
+        Writing(File file, File sourceFile, int bgColor, List<Stroke> strokes, boolean append) {
+            this(file, sourceFile, null, bgColor, strokes, append, append);
+        }
+
+        /**
+         * @param updateBgColor 追記するときに先頭の背景色を書き換える場合は {@code true}。
+         */
+        Writing(File file, File sourceFile, int bgColor, List<Stroke> strokes, boolean append,
+                boolean updateBgColor) {
+            this(file, sourceFile, null, bgColor, strokes, append, updateBgColor);
+        }
+
+        /**
+         * セッションファイルを書き出し直し、読み込み中のファイルをソースファイルに書き出します。
+         */
+        Writing(File file, File sourceFile, File[] sources, int bgColor, List<Stroke> strokes) {
+            this(file, sourceFile, sources, bgColor, strokes, false, false);
+        }
+
+        private Writing(File file, File sourceFile, File[] sources, int bgColor,
+                List<Stroke> strokes, boolean append, boolean updateBgColor) {
+            super();
+            mFile = file;
+            mSourceFile = sourceFile;
+            mSources = sources;
+            mBgColor = bgColor;
+            mStrokes = strokes;
+            mAppend = append;
+            mUpdateBgColor = updateBgColor;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final StrokeWriter writer = new StrokeWriter(new BufferedOutputStream(
+                        new FileOutputStream(mFile, mAppend)));
+                try {
+                    if (!mAppend) {
+                        writer.writeHeader(mBgColor);
+                    }
+                    for (Stroke stroke : mStrokes) {
+                        writer.write(stroke);
+                    }
+                } finally {
+                    writer.close();
+                }
+                if (mAppend) {
+                    if (mUpdateBgColor) {
+                        StrokeWriter.writeBgColor(mFile, mBgColor);
+                    }
+                } else if (mSources == null) {
+                    mSourceFile.delete();
+                } else {
+                    writeSources();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "failed to write session file: " + mFile.getPath(), e);
+            }
+        }
+
+        private void writeSources() throws IOException {
+            final Writer out = new OutputStreamWriter(new FileOutputStream(mSourceFile),
+                    "UTF-8");
+            try {
+                for (File source : mSources) {
+                    out.write(source.getPath());
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
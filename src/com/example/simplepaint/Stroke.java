@@ -0,0 +1,581 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.simplepaint;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * 線の軌跡1つ分を保持する immutable なクラスです。
+ *
+ * <p>
+ * 座標は 1/{@link #FIXED_POINT_SCALE} ピクセル単位の固定小数点に量子化し、最初の座標は絶対値、
+ * 以降の座標は直前の座標との差分を zig-zag 符号化した可変長整数(varint)の列として保持します。
+ * 量子化による誤差は各座標値につき {@link #MAX_QUANTIZATION_ERROR} ピクセル以下です。
+ * ストロークファイルにもこの列をそのまま書き出します({@link StrokeWriter})。
+ * </p>
+ * <p>
+ * 太さが変わらないストロークは、確定するときに {@link CurveFitter} で3次ベジェ曲線の列に近似し、
+ * 座標のかわりに曲線の点を保持できます({@link #fitCurves(int, float, float[], int, float)})。
+ * 描画するパスの要素が減り、ファイルも小さくなります。座標を保持する形式もそのまま扱えます。
+ * </p>
+ */
+final class Stroke {
+    /**
+     * 線の端の丸みを何分割の多角形で近似するか。
+     */
+    private static final int CAP_SEGMENTS = 6;
+
+    /**
+     * 座標の固定小数点表現で 1 ピクセルに相当する値。
+     */
+    static final int FIXED_POINT_SCALE = 16;
+
+    /**
+     * 量子化による座標値の誤差の上限(ピクセル)。
+     */
+    static final float MAX_QUANTIZATION_ERROR = 0.5F / FIXED_POINT_SCALE;
+
+    /**
+     * ストローク文字列で、座標が曲線の点であることを ';' のあとに示す文字列。
+     */
+    private static final String CURVES_MARKER = "bezier";
+
+    /**
+     * {@link #appendFixedPoint(StringBuilder, int)} が float を経由せずに書き出せる固定小数点の値の上限(16384 ピクセル)。
+     */
+    private static final int MAX_EXACT_FIXED_POINT = 16384 * FIXED_POINT_SCALE;
+
+    final int mColor;
+    final float mSize;
+
+    /**
+     * 座標の数。 {@link #mCurves} の場合は曲線の点の数です。
+     */
+    final int mPointCount;
+
+    /**
+     * 量子化して差分符号化した座標の列。x, y の順に並んでいます。 {@link #getCoordinates()} で元に戻せます。
+     */
+    final byte[] mPackedCoordinates;
+
+    /**
+     * 座標の列が3次ベジェ曲線の点かどうか。 {@code true} の場合、始点に続いて曲線ごとに2つの制御点と終点が並んでいます。
+     * 太さが変わるストロークでは常に {@code false} です。
+     */
+    final boolean mCurves;
+
+    /**
+     * 座標ごとの太さ。 {@link #mSize} に対する比率を 0 から 255 に量子化したものです。
+     * 太さが変わらないストロークでは {@code null} です。
+     */
+    final byte[] mWidths;
+
+    /**
+     * {@link #getOutline()} で求めた輪郭。スナップショットを読む別スレッドからも求めるので volatile にしています。
+     */
+    private volatile float[] mOutline;
+
+    /**
+     * 指定された色、太さ、座標情報から {@link Stroke} を構築します。
+     * 
+     * {@code coordinates} に渡された配列から、 {@code nCoordinates} 個分の座標情報を
+     * コピーして保持します。
+     * 
+     * @param color 線の色。 ARGB です。
+     * @param size 線の太さ。
+     * @param coordinates 軌跡の座標情報。座標情報は x座標値, y座標値が交互に並んでいるものとして扱います。
+     * @param nCoordinates {@code coordinates} が保持する有効な座標情報の数。
+     */
+    public Stroke(int color, float size, float[] coordinates, int nCoordinates) {
+        this(color, size, coordinates, null, nCoordinates);
+    }
+
+    /**
+     * 指定された色、太さ、座標情報、座標ごとの太さから {@link Stroke} を構築します。
+     *
+     * @param color 線の色。 ARGB です。
+     * @param size 線の最大の太さ。
+     * @param coordinates 軌跡の座標情報。座標情報は x座標値, y座標値が交互に並んでいるものとして扱います。
+     * @param widths 座標ごとの太さ。 {@code size} に対する比率を 0 から 255 に量子化したものです。
+     *            {@code null} の場合は太さが変わらないストロークになります。
+     * @param nCoordinates {@code coordinates} が保持する有効な座標情報の数。
+     */
+    public Stroke(int color, float size, float[] coordinates, byte[] widths, int nCoordinates) {
+        super();
+        mColor = color;
+        mSize = size;
+        mPointCount = nCoordinates;
+        mPackedCoordinates = packCoordinates(coordinates, nCoordinates);
+        mCurves = false;
+        if (widths == null) {
+            mWidths = null;
+        } else {
+            mWidths = new byte[nCoordinates];
+            System.arraycopy(widths, 0, mWidths, 0, Math.min(widths.length, mWidths.length));
+        }
+    }
+
+    /**
+     * 量子化して差分符号化した座標の列から {@link Stroke} を構築します。渡された配列はコピーせずに保持します。
+     *
+     * @param color 線の色。 ARGB です。
+     * @param size 線の最大の太さ。
+     * @param pointCount 座標の数。
+     * @param packedCoordinates {@link #isValidPacking(byte[], int)} を満たす座標の列。
+     * @param widths 座標ごとの太さ。 {@code null} の場合は太さが変わらないストロークになります。
+     */
+    Stroke(int color, float size, int pointCount, byte[] packedCoordinates, byte[] widths) {
+        this(color, size, pointCount, packedCoordinates, widths, false);
+    }
+
+    /**
+     * 量子化して差分符号化した座標、または曲線の点の列から {@link Stroke} を構築します。渡された配列はコピーせずに保持します。
+     *
+     * @param color 線の色。 ARGB です。
+     * @param size 線の最大の太さ。
+     * @param pointCount 座標の数。
+     * @param packedCoordinates {@link #isValidPacking(byte[], int)} を満たす座標の列。
+     * @param widths 座標ごとの太さ。 {@code null} の場合は太さが変わらないストロークになります。
+     * @param curves 座標の列が3次ベジェ曲線の点であれば {@code true}。
+     * @throws IllegalArgumentException 曲線の点の数が正しくない場合や、太さが変わるストロークを曲線にしようとした場合。
+     */
+    Stroke(int color, float size, int pointCount, byte[] packedCoordinates, byte[] widths,
+            boolean curves) {
+        super();
+        if (curves && (widths != null || !isValidCurvePointCount(pointCount))) {
+            throw new IllegalArgumentException("invalid curves: " + pointCount + " points");
+        }
+        mColor = color;
+        mSize = size;
+        mPointCount = pointCount;
+        mPackedCoordinates = packedCoordinates;
+        mWidths = widths;
+        mCurves = curves;
+    }
+
+    /**
+     * 太さが変わらないストロークの座標列を3次ベジェ曲線で近似して {@link Stroke} を構築します。
+     * 近似しても小さくならない場合は、座標をそのまま保持します。
+     *
+     * @param color 線の色。 ARGB です。
+     * @param size 線の太さ。
+     * @param coordinates 軌跡の座標情報。座標情報は x座標値, y座標値が交互に並んでいるものとして扱います。
+     * @param nCoordinates {@code coordinates} が保持する有効な座標情報の数。
+     * @param tolerance 座標から曲線までの距離の許容値(ピクセル)。
+     * @return ストローク。
+     */
+    static Stroke fitCurves(int color, float size, float[] coordinates, int nCoordinates,
+            float tolerance) {
+        final Stroke points = new Stroke(color, size, coordinates, nCoordinates);
+        final float[] curves = CurveFitter.fit(coordinates, nCoordinates, tolerance);
+        final int pointCount = curves.length / 2;
+        if (!isValidCurvePointCount(pointCount) || nCoordinates <= pointCount) {
+            return points;
+        }
+        final byte[] packed = packCoordinates(curves, pointCount);
+        if (points.mPackedCoordinates.length <= packed.length) {
+            // 制御点は座標の間隔より離れるので、点の数が減っても差分が長くなることがある
+            return points;
+        }
+        return new Stroke(color, size, pointCount, packed, null, true);
+    }
+
+    /**
+     * 曲線の点の数として正しいかを調べます。始点と、曲線ごとに3つの点が必要です。
+     */
+    static boolean isValidCurvePointCount(int pointCount) {
+        return 4 <= pointCount && pointCount % 3 == 1;
+    }
+
+    /**
+     * 座標値を固定小数点に量子化します。
+     */
+    static int toFixedPoint(float value) {
+        return Math.round(value * FIXED_POINT_SCALE);
+    }
+
+    /**
+     * 座標の列を量子化し、差分を zig-zag 符号化した varint の列にします。
+     *
+     * @param coordinates 軌跡の座標情報。x座標値, y座標値が交互に並んでいます。
+     * @param nCoordinates 有効な座標情報の数。 {@code coordinates} が足りない分は 0 として扱います。
+     * @return 符号化した座標の列。
+     */
+    static byte[] packCoordinates(float[] coordinates, int nCoordinates) {
+        // 1つの値は最大5バイト
+        final byte[] buf = new byte[nCoordinates * 2 * 5];
+        int pos = 0;
+        int prevX = 0;
+        int prevY = 0;
+        for (int index = 0; index < nCoordinates * 2; index++) {
+            final int value = index < coordinates.length ? toFixedPoint(coordinates[index]) : 0;
+            final int delta;
+            if ((index & 1) == 0) {
+                delta = value - prevX;
+                prevX = value;
+            } else {
+                delta = value - prevY;
+                prevY = value;
+            }
+            // zig-zag 符号化で絶対値の小さい負の数も短くする
+            int v = (delta << 1) ^ (delta >> 31);
+            while ((v & ~0x7f) != 0) {
+                buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+        return Arrays.copyOf(buf, pos);
+    }
+
+    /**
+     * 符号化した座標の列が {@code pointCount} 個の座標をちょうど含んでいるかを調べます。
+     *
+     * @param packedCoordinates 符号化した座標の列。
+     * @param pointCount 座標の数。
+     * @return 正しく復号できる場合は {@code true}。
+     */
+    static boolean isValidPacking(byte[] packedCoordinates, int pointCount) {
+        if (packedCoordinates.length == 0) {
+            return pointCount == 0;
+        }
+        if (packedCoordinates[packedCoordinates.length - 1] < 0) {
+            // 最後の値が途中で切れている
+            return false;
+        }
+        int values = 0;
+        for (byte b : packedCoordinates) {
+            if (0 <= b) {
+                values++;
+            }
+        }
+        return values == pointCount * 2;
+    }
+
+    /**
+     * 量子化した座標を復号します。呼び出すたびに新しい配列を返します。
+     *
+     * @return x座標値, y座標値が交互に並んだ座標情報。 {@link #mCurves} の場合は曲線の点です。
+     */
+    float[] getCoordinates() {
+        final byte[] packed = mPackedCoordinates;
+        final float[] coordinates = new float[mPointCount * 2];
+        int pos = 0;
+        int x = 0;
+        int y = 0;
+        for (int index = 0; index < coordinates.length; index++) {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = packed[pos++];
+                v |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            final int delta = (v >>> 1) ^ -(v & 1);
+            if ((index & 1) == 0) {
+                x += delta;
+                coordinates[index] = (float) x / FIXED_POINT_SCALE;
+            } else {
+                y += delta;
+                coordinates[index] = (float) y / FIXED_POINT_SCALE;
+            }
+        }
+        return coordinates;
+    }
+
+    /**
+     * 座標の範囲を求めます。 {@link #getCoordinates()} と違い、配列を確保しません。
+     * {@link #mCurves} の場合は制御点も含めた範囲なので、曲線が通る範囲を必ず含みます。
+     *
+     * @param out 左, 上, 右, 下を格納する配列。
+     * @return 座標がなければ {@code false}。
+     */
+    boolean getBounds(float[] out) {
+        if (mPointCount == 0) {
+            return false;
+        }
+        final byte[] packed = mPackedCoordinates;
+        int pos = 0;
+        int x = 0;
+        int y = 0;
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int index = 0; index < mPointCount * 2; index++) {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = packed[pos++];
+                v |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            final int delta = (v >>> 1) ^ -(v & 1);
+            if ((index & 1) == 0) {
+                x += delta;
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x);
+            } else {
+                y += delta;
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+            }
+        }
+        out[0] = (float) minX / FIXED_POINT_SCALE;
+        out[1] = (float) minY / FIXED_POINT_SCALE;
+        out[2] = (float) maxX / FIXED_POINT_SCALE;
+        out[3] = (float) maxY / FIXED_POINT_SCALE;
+        return true;
+    }
+
+    /**
+     * 太さの比率を量子化します。
+     *
+     * @param factor {@link #mSize} に対する太さの比率。
+     * @return 1 から 255 に量子化した値。
+     */
+    static byte quantizeWidth(float factor) {
+        return (byte) Math.max(1, Math.min(255, Math.round(factor * 255)));
+    }
+
+    /**
+     * 太さが変わるストロークの輪郭を返します。輪郭は一度求めたら保持しておきます。
+     *
+     * @return x座標値, y座標値が交互に並んだ輪郭の座標列。
+     */
+    float[] getOutline() {
+        if (mOutline == null) {
+            mOutline = computeOutline(getCoordinates(), mWidths, mPointCount, mSize);
+        }
+        return mOutline;
+    }
+
+    /**
+     * 座標ごとの太さを持つ線の輪郭を多角形として求めます。両端は丸めます。
+     *
+     * @param coordinates 軌跡の座標情報。x座標値, y座標値が交互に並んでいます。
+     * @param widths 座標ごとの太さ。
+     * @param nCoordinates 有効な座標情報の数。
+     * @param size 線の最大の太さ。
+     * @return x座標値, y座標値が交互に並んだ輪郭の座標列。
+     */
+    static float[] computeOutline(float[] coordinates, byte[] widths, int nCoordinates,
+            float size) {
+        final int n = nCoordinates;
+        if (n == 0) {
+            return new float[0];
+        }
+        final float[] outline = new float[(n * 2 + (CAP_SEGMENTS - 1) * 2) * 2];
+        final int rightEnd = outline.length - (CAP_SEGMENTS - 1) * 2;
+        int left = 0;
+        int right = rightEnd; // 右側の輪郭は後ろから詰める
+        float nx = 0.0F;
+        float ny = -1.0F;
+        float startAngle = 0.0F;
+        for (int i = 0; i < n; i++) {
+            final int prev = Math.max(0, i - 1) * 2;
+            final int next = Math.min(n - 1, i + 1) * 2;
+            final float tx = coordinates[next] - coordinates[prev];
+            final float ty = coordinates[next + 1] - coordinates[prev + 1];
+            final float length = (float) Math.sqrt(tx * tx + ty * ty);
+            if (0.0F < length) {
+                // 法線。長さが 0 のときは直前の法線をそのまま使う
+                nx = -ty / length;
+                ny = tx / length;
+            }
+            final float r = size * (widths[i] & 0xff) / 255 / 2;
+            final float x = coordinates[i * 2];
+            final float y = coordinates[i * 2 + 1];
+            outline[left++] = x + nx * r;
+            outline[left++] = y + ny * r;
+            outline[--right] = y - ny * r;
+            outline[--right] = x - nx * r;
+            if (i == 0) {
+                startAngle = (float) Math.atan2(ny, nx);
+            }
+        }
+        // 終端の丸み: 左側から進行方向を通って右側へ
+        final float endAngle = (float) Math.atan2(ny, nx);
+        final float endR = size * (widths[n - 1] & 0xff) / 255 / 2;
+        for (int k = 1; k < CAP_SEGMENTS; k++) {
+            final double angle = endAngle - Math.PI * k / CAP_SEGMENTS;
+            outline[left++] = coordinates[n * 2 - 2] + (float) Math.cos(angle) * endR;
+            outline[left++] = coordinates[n * 2 - 1] + (float) Math.sin(angle) * endR;
+        }
+        // 始端の丸み: 右側から進行方向の反対側を通って左側へ
+        final float startR = size * (widths[0] & 0xff) / 255 / 2;
+        for (int k = 1; k < CAP_SEGMENTS; k++) {
+            final double angle = startAngle + Math.PI - Math.PI * k / CAP_SEGMENTS;
+            outline[rightEnd + (k - 1) * 2] = coordinates[0] + (float) Math.cos(angle)
+                    * startR;
+            outline[rightEnd + (k - 1) * 2 + 1] = coordinates[1] + (float) Math.sin(angle)
+                    * startR;
+        }
+        return outline;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    /**
+     * {@link #toString()} と同じ文字列を追加します。座標を復号した配列や1行分の文字列は作りません。
+     *
+     * @param sb 追加する先。
+     */
+    void appendTo(StringBuilder sb) {
+        sb.append(mColor);
+        sb.append(',').append(mSize);
+        final byte[] packed = mPackedCoordinates;
+        int pos = 0;
+        int x = 0;
+        int y = 0;
+        for (int index = 0; index < mPointCount * 2; index++) {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = packed[pos++];
+                v |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            final int delta = (v >>> 1) ^ -(v & 1);
+            sb.append(',');
+            if ((index & 1) == 0) {
+                x += delta;
+                appendFixedPoint(sb, x);
+            } else {
+                y += delta;
+                appendFixedPoint(sb, y);
+            }
+        }
+        if (mCurves) {
+            sb.append(';').append(CURVES_MARKER);
+        } else if (mWidths != null) {
+            // 座標ごとの太さは ';' のあとに 16進数2桁ずつ並べる
+            sb.append(';');
+            for (int i = 0; i < mWidths.length; i++) {
+                sb.append(Character.forDigit((mWidths[i] >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(mWidths[i] & 0xf, 16));
+            }
+        }
+    }
+
+    /**
+     * 固定小数点の座標値を {@link StringBuilder#append(float)} と同じ表記で追加します。
+     *
+     * <p>
+     * 1/{@link #FIXED_POINT_SCALE} の倍数は小数第4位までで正確に表せるので、 float を経由せずに整数部と小数部を
+     * そのまま書き出します。float の精度が足りなくなる {@link #MAX_EXACT_FIXED_POINT} 以上の値だけは
+     * {@link StringBuilder#append(float)} に任せます。
+     * </p>
+     */
+    static void appendFixedPoint(StringBuilder sb, int fixed) {
+        if (fixed <= -MAX_EXACT_FIXED_POINT || MAX_EXACT_FIXED_POINT <= fixed) {
+            sb.append((float) fixed / FIXED_POINT_SCALE);
+            return;
+        }
+        if (fixed < 0) {
+            sb.append('-');
+        }
+        final int abs = Math.abs(fixed);
+        sb.append(abs / FIXED_POINT_SCALE).append('.');
+        // 1/16 は 0.0625 なので、小数部は 625 倍すると4桁の整数になる
+        int fraction = (abs % FIXED_POINT_SCALE) * 625;
+        if (fraction == 0) {
+            sb.append('0');
+            return;
+        }
+        for (int divisor = 1000; fraction != 0; divisor /= 10) {
+            sb.append((char) ('0' + fraction / divisor));
+            fraction %= divisor;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static String listToString(List<Stroke> strokes) {
+        final StringBuilder sb = new StringBuilder();
+        listToString(sb, strokes);
+        return sb.toString();
+    }
+
+    static void listToString(StringBuilder sb, List<Stroke> strokes) {
+        if (strokes == null) {
+            return;
+        }
+        for (Stroke stroke : strokes) {
+            if (stroke == null) {
+                continue;
+            }
+            stroke.appendTo(sb);
+            sb.append('\n');
+        }
+    }
+
+    public static Stroke fromString(String str) {
+        final int widthsIndex = str.indexOf(';');
+        final StringTokenizer tk = new StringTokenizer(widthsIndex < 0 ? str : str.substring(0,
+                widthsIndex), ",");
+        final int tokens = tk.countTokens();
+        if (tokens < 2 || (tokens & 1) == 1) {
+            return null;
+        }
+        final int color = Integer.parseInt(tk.nextToken());
+        final float width = Float.parseFloat(tk.nextToken());
+        final float[] coordinates = new float[tokens - 2];
+
+        for (int index = 0; tk.hasMoreTokens(); index++) {
+            coordinates[index] = Float.parseFloat(tk.nextToken());
+        }
+        final int pointCount = coordinates.length / 2;
+        if (widthsIndex < 0) {
+            return new Stroke(color, width, pointCount, packCoordinates(coordinates, pointCount),
+                    null);
+        }
+
+        final String widthsStr = str.substring(widthsIndex + 1);
+        if (widthsStr.equals(CURVES_MARKER)) {
+            if (!isValidCurvePointCount(pointCount)) {
+                return null;
+            }
+            return new Stroke(color, width, pointCount, packCoordinates(coordinates, pointCount),
+                    null, true);
+        }
+        if (widthsStr.length() != coordinates.length) {
+            // 16進数2桁ずつなので座標値の数と同じ長さになる
+            return null;
+        }
+        final byte[] widths = new byte[coordinates.length / 2];
+        for (int index = 0; index < widths.length; index++) {
+            final int high = Character.digit(widthsStr.charAt(index * 2), 16);
+            final int low = Character.digit(widthsStr.charAt(index * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            widths[index] = (byte) ((high << 4) | low);
+        }
+        return new Stroke(color, width, pointCount, packCoordinates(coordinates, pointCount),
+                widths);
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.simplepaint;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link BlockStrokeWriter} が書き出したストロークファイルの索引です。
+ *
+ * <p>
+ * 索引を使うと、ブロックを任意の順序で、複数のスレッドから同時に展開できます。
+ * </p>
+ */
+final class StrokeBlockIndex {
+
+    private final File mFile;
+
+    private final int mBgColor;
+
+    private final DrawingMetadata mMetadata;
+
+    private final int[] mOffsets;
+
+    private final int[] mCompressedLengths;
+
+    private final int[] mLengths;
+
+    private StrokeBlockIndex(File file, int bgColor, DrawingMetadata metadata, int[] offsets,
+            int[] compressedLengths, int[] lengths) {
+        super();
+        mFile = file;
+        mBgColor = bgColor;
+        mMetadata = metadata;
+        mOffsets = offsets;
+        mCompressedLengths = compressedLengths;
+        mLengths = lengths;
+    }
+
+    /**
+     * ストロークファイルの索引を読み込みます。
+     *
+     * @param strokeFile ストロークファイル。
+     * @return 索引。ブロックに圧縮した形式でなければ {@code null} を返します。
+     */
+    static StrokeBlockIndex read(File strokeFile) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(strokeFile, "r");
+        try {
+            final long fileLength = file.length();
+            if (fileLength < BlockStrokeWriter.METADATA_OFFSET + 4) {
+                return null;
+            }
+            final byte[] magic = new byte[BlockStrokeWriter.MAGIC.length];
+            file.readFully(magic);
+            if (!Arrays.equals(magic, BlockStrokeWriter.MAGIC)) {
+                return null;
+            }
+            final int version = file.readUnsignedByte();
+            if (version < 1 || BlockStrokeWriter.VERSION < version) {
+                throw new IOException("unsupported stroke file version: " + version);
+            }
+            final int bgColor = file.readInt();
+            DrawingMetadata metadata = null;
+            int headerLength = BlockStrokeWriter.METADATA_OFFSET;
+            if (BlockStrokeWriter.VERSION_METADATA <= version) {
+                headerLength += DrawingMetadata.SIZE;
+                if (fileLength < headerLength + 4) {
+                    throw new IOException("corrupted stroke file");
+                }
+                metadata = DrawingMetadata.read(file);
+            }
+
+            file.seek(fileLength - 4);
+            final int indexOffset = file.readInt();
+            if (indexOffset < headerLength || fileLength - 8 < indexOffset) {
+                throw new IOException("corrupted stroke file");
+            }
+            file.seek(indexOffset);
+            final int count = file.readInt();
+            if (count < 0 || (fileLength - 8 - indexOffset) / 12 < count) {
+                throw new IOException("corrupted stroke file");
+            }
+            final int[] offsets = new int[count];
+            final int[] compressedLengths = new int[count];
+            final int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = file.readInt();
+                compressedLengths[i] = file.readInt();
+                lengths[i] = file.readInt();
+                if (offsets[i] < headerLength || compressedLengths[i] < 0 || lengths[i] < 0
+                        || indexOffset < (long) offsets[i] + compressedLengths[i]) {
+                    throw new IOException("corrupted stroke file");
+                }
+            }
+            return new StrokeBlockIndex(strokeFile, bgColor, metadata, offsets,
+                    compressedLengths, lengths);
+        } finally {
+            file.close();
+        }
+    }
+
+    public int getBgColor() {
+        return mBgColor;
+    }
+
+    /**
+     * 概要を返します。
+     *
+     * @return 概要。バージョン 1 のファイルでは {@code null}。
+     */
+    public DrawingMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    public int getBlockCount() {
+        return mOffsets.length;
+    }
+
+    /**
+     * ブロックを展開してストロークを取り出します。複数のスレッドから同時に呼び出せます。
+     *
+     * @param block ブロックの番号。
+     * @return ブロックに含まれるストローク。
+     */
+    public List<Stroke> decodeBlock(int block) throws IOException {
+        final byte[] compressed = new byte[mCompressedLengths[block]];
+        final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(mOffsets[block]);
+            file.readFully(compressed);
+        } finally {
+            file.close();
+        }
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflate(
+                compressed, mLengths[block])));
+        final List<Stroke> strokes = new ArrayList<Stroke>();
+        for (Stroke stroke = StrokeReader.readRecord(in); stroke != null; stroke = StrokeReader
+                .readRecord(in)) {
+            strokes.add(stroke);
+        }
+        return strokes;
+    }
+
+    /**
+     * 圧縮されたブロックを展開します。
+     *
+     * @param compressed 圧縮されたブロック。
+     * @param length 展開後の長さ。
+     * @return 展開したブロック。
+     */
+    static byte[] inflate(byte[] compressed, int length) throws IOException {
+        final byte[] block = new byte[length];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int inflated = 0;
+            while (inflated < length) {
+                final int n = inflater.inflate(block, inflated, length - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("corrupted stroke file");
+            }
+            return block;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted stroke file", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
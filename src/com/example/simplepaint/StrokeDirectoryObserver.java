@@ -0,0 +1,99 @@
+package com.example.simplepaint;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * ストロークファイルを保存するディレクトリを監視し、作成・変更・削除されたストロークファイルを
+ * {@link GalleryAdapter} に反映させるクラスです。
+ *
+ * <p>
+ * 同期ツールや他のプロセスがファイルを置いた場合でも、ディレクトリ全体を読み直さずに一覧を更新できます。
+ * 保存時のようにイベントが続けて届く場合に一覧を何度も更新しないよう、最後のイベントから
+ * {@link #DEBOUNCE_MILLIS} ミリ秒待ってからまとめて反映させます。
+ * </p>
+ */
+final class StrokeDirectoryObserver extends FileObserver {
+
+    private static final String STROKE_SUFFIX = ".stroke";
+
+    private static final int EVENTS = CREATE | CLOSE_WRITE | DELETE | MOVED_FROM | MOVED_TO;
+
+    /**
+     * イベントをまとめるために待つ時間(ミリ秒)。
+     */
+    private static final long DEBOUNCE_MILLIS = 300L;
+
+    private final File mDir;
+
+    private final GalleryAdapter mAdapter;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * イベントが届いて、まだ一覧に反映させていないストロークファイルの名前。
+     */
+    private final Set<String> mChangedNames = new HashSet<String>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    StrokeDirectoryObserver(File dir, GalleryAdapter adapter) {
+        super(dir.getPath(), EVENTS);
+        mDir = dir;
+        mAdapter = adapter;
+    }
+
+    /**
+     * ファイルのイベントを受け取ります。UI スレッド以外から呼び出されます。
+     */
+    @Override
+    public void onEvent(int event, String path) {
+        if (path == null) {
+            return;
+        }
+        // サムネイルが変わった場合も、対応するストロークファイルの変更として扱う
+        final String strokeName = path.endsWith(STROKE_SUFFIX) ? path : path + STROKE_SUFFIX;
+        synchronized (mChangedNames) {
+            mChangedNames.add(strokeName);
+        }
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, DEBOUNCE_MILLIS);
+    }
+
+    @Override
+    public void stopWatching() {
+        super.stopWatching();
+        mHandler.removeCallbacks(mFlush);
+        synchronized (mChangedNames) {
+            mChangedNames.clear();
+        }
+    }
+
+    /**
+     * 溜まったイベントを {@link GalleryAdapter} に反映させます。UI スレッドで呼び出されます。
+     */
+    private void flush() {
+        final String[] names;
+        synchronized (mChangedNames) {
+            names = mChangedNames.toArray(new String[mChangedNames.size()]);
+            mChangedNames.clear();
+        }
+        final List<File> strokeFiles = new ArrayList<File>(names.length);
+        for (String name : names) {
+            strokeFiles.add(new File(mDir, name));
+        }
+        mAdapter.applyChanges(strokeFiles);
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.simplepaint;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * 確定したストロークの履歴です。ある時点の内容を、コピーせずに別スレッドへ渡せます。
+ *
+ * <p>
+ * ストロークは配列に古いものから順に並べます。末尾への追加では、すでに格納したストロークを書き換えることはありません。
+ * そのため {@link #snapshot()} は配列と要素数を組にするだけで作れて、そのあとに追加されたストロークは見えず、
+ * 以前のストロークはいつまでも変わりません。配列を大きくするときは新しい配列にコピーするので、
+ * スナップショットが持つ配列はそのまま残ります。
+ * </p>
+ * <p>
+ * 途中への挿入と消去は格納済みのストロークを書き換えるので、スナップショットを作ったあとであれば配列をコピーしてから
+ * 行います(コピーオンライト)。途中への挿入は読み込み中にしか行わないので、コピーはまれです。
+ * </p>
+ * <p>
+ * このクラス自体はスレッドセーフではなく、 UI スレッドからだけ変更します。スナップショットはどのスレッドから読んでも構いません。
+ * スナップショットを別スレッドへ渡すときは {@link java.util.concurrent.Executor} などを使い、
+ * 渡す前の書き込みが見えるようにしてください。
+ * </p>
+ */
+final class StrokeHistory extends AbstractList<Stroke> implements RandomAccess {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final Stroke[] EMPTY = new Stroke[0];
+
+    private Stroke[] mStrokes = EMPTY;
+
+    private int mSize = 0;
+
+    /**
+     * {@link #mStrokes} をスナップショットと共有しているかどうか。
+     */
+    private boolean mShared = false;
+
+    StrokeHistory() {
+        super();
+    }
+
+    @Override
+    public Stroke get(int index) {
+        if (index < 0 || mSize <= index) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + mSize);
+        }
+        return mStrokes[index];
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * ストロークを末尾に追加します。スナップショットと配列を共有していてもコピーしません。
+     */
+    @Override
+    public boolean add(Stroke stroke) {
+        ensureCapacity(mSize + 1);
+        mStrokes[mSize++] = stroke;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, Stroke stroke) {
+        addAll(index, Arrays.asList(stroke));
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Stroke> strokes) {
+        return addAll(mSize, strokes);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends Stroke> strokes) {
+        if (index < 0 || mSize < index) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + mSize);
+        }
+        final Stroke[] added = strokes.toArray(new Stroke[strokes.size()]);
+        if (added.length == 0) {
+            return false;
+        }
+        if (index < mSize && mShared) {
+            // 格納済みのストロークを後ろへずらすので、スナップショットと共有している配列は使えない
+            mStrokes = Arrays.copyOf(mStrokes, newCapacity(mSize + added.length));
+            mShared = false;
+        } else {
+            ensureCapacity(mSize + added.length);
+        }
+        System.arraycopy(mStrokes, index, mStrokes, index + added.length, mSize - index);
+        System.arraycopy(added, 0, mStrokes, index, added.length);
+        mSize += added.length;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * すべてのストロークを取り除きます。スナップショットと共有している配列は書き換えません。
+     */
+    @Override
+    public void clear() {
+        if (mShared) {
+            mStrokes = EMPTY;
+            mShared = false;
+        } else {
+            Arrays.fill(mStrokes, 0, mSize, null);
+        }
+        mSize = 0;
+        modCount++;
+    }
+
+    /**
+     * 格納済みのストロークを別のストロークに置き換えます。スナップショットと配列を共有していれば、配列をコピーしてから置き換えるので、
+     * スナップショットの内容は変わりません。
+     *
+     * <p>
+     * 置き換えるストロークは、途中への挿入で位置が変わっていることがあるので、同じインスタンスを末尾から探します。
+     * </p>
+     *
+     * @param stroke 置き換えられるストローク。
+     * @param replacement 新しいストローク。
+     * @return 置き換えた場合は {@code true}。 {@code stroke} が履歴になければ {@code false}。
+     */
+    public boolean replace(Stroke stroke, Stroke replacement) {
+        for (int index = mSize - 1; 0 <= index; index--) {
+            if (mStrokes[index] != stroke) {
+                continue;
+            }
+            if (mShared) {
+                mStrokes = Arrays.copyOf(mStrokes, mStrokes.length);
+                mShared = false;
+            }
+            mStrokes[index] = replacement;
+            modCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 現在の内容のスナップショットを返します。ストロークはコピーしないので、履歴の長さによらず一定の時間で返ります。
+     *
+     * @return 変更できないリスト。このあと履歴を変更しても内容は変わりません。
+     */
+    public List<Stroke> snapshot() {
+        if (mSize == 0) {
+            return new Snapshot(EMPTY, 0, 0);
+        }
+        mShared = true;
+        return new Snapshot(mStrokes, 0, mSize);
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (mStrokes.length < minCapacity) {
+            // 新しい配列に移るので、スナップショットとは共有しなくなる
+            mStrokes = Arrays.copyOf(mStrokes, newCapacity(minCapacity));
+            mShared = false;
+        }
+    }
+
+    private int newCapacity(int minCapacity) {
+        return Math.max(minCapacity, Math.max(INITIAL_CAPACITY, mStrokes.length * 2));
+    }
+
+    /**
+     * 履歴のある時点の内容です。配列の {@code from} から {@code to} の手前までを参照します。
+     */
+    private static final class Snapshot extends AbstractList<Stroke> implements RandomAccess {
+        private final Stroke[] mStrokes;
+        private final int mFrom;
+        private final int mTo;
+
+        Snapshot(Stroke[] strokes, int from, int to) {
+            super();
+            mStrokes = strokes;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        public Stroke get(int index) {
+            if (index < 0 || mTo - mFrom <= index) {
+                throw new IndexOutOfBoundsException("index: " + index + ", size: "
+                        + (mTo - mFrom));
+            }
+            return mStrokes[mFrom + index];
+        }
+
+        @Override
+        public int size() {
+            return mTo - mFrom;
+        }
+
+        /**
+         * 同じ配列を参照する部分リストを返します。元のスナップショットと同じく変更できず、スレッド間で共有できます。
+         */
+        @Override
+        public List<Stroke> subList(int fromIndex, int toIndex) {
+            if (fromIndex < 0 || size() < toIndex || toIndex < fromIndex) {
+                throw new IndexOutOfBoundsException("from: " + fromIndex + ", to: " + toIndex
+                        + ", size: " + size());
+            }
+            return new Snapshot(mStrokes, mFrom + fromIndex, mFrom + toIndex);
+        }
+    }
+}
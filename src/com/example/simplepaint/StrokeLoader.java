@@ -0,0 +1,364 @@
+package com.example.simplepaint;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.AsyncTask;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * ストロークファイルをバックグラウンドで読み込み、読み込んだ順に少しずつ {@link PaintView}
+ * へ渡すタスクです。
+ *
+ * <p>
+ * 解析したストロークはキューに積まれ、UI スレッドでまとめて {@link PaintView} に渡されます。
+ * 最初のバッチはすぐに表示されるよう小さく、以降はバッチサイズを倍々に大きくしていきます。
+ * </p>
+ * <p>
+ * ブロックに圧縮したストロークファイル({@link BlockStrokeWriter})は、CPU のコア数までのスレッドでブロックを並列に
+ * 展開し、先頭のブロックから順に渡します。先頭のブロックは残りのブロックの展開を待たずに表示されます。
+ * 展開したブロックのストロークも、1行ずつ読み込む形式と同じ大きさのバッチに分けて渡します。
+ * </p>
+ */
+final class StrokeLoader extends AsyncTask<File, Void, Boolean> {
+
+    private static final String TAG = StrokeLoader.class.getSimpleName();
+
+    /**
+     * 最初のバッチのストローク数。
+     */
+    private static final int FIRST_BATCH_SIZE = 4;
+
+    /**
+     * バッチのストローク数の上限。
+     */
+    private static final int MAX_BATCH_SIZE = 512;
+
+    /**
+     * これ以上時間が経過したら、バッチサイズに達していなくても UI スレッドへ渡す(ミリ秒)。
+     */
+    private static final long MAX_BATCH_INTERVAL_MS = 16L;
+
+    /**
+     * ブロックを展開するスレッド。 UI スレッドの描画を妨げないよう、優先度を下げて実行します。
+     */
+    private static final ThreadFactory BLOCK_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "StrokeBlockDecoder");
+        }
+    };
+
+    /**
+     * 読み込んだストロークの渡し先。構成変更で {@link PaintView} を作り直しているあいだは {@code null} です。
+     */
+    private PaintView mView;
+
+    /**
+     * 渡し先がないあいだに読み込みが終わった場合の結果。
+     */
+    private Boolean mPendingResult;
+
+    /**
+     * 読み込み済みで、まだ {@link PaintView} に渡していないバッチ。 {@link #publishProgress(Void...)}
+     * 1回につき1つ積まれ、 {@link #onProgressUpdate(Void...)} 1回につき1つ渡します。
+     */
+    private final ConcurrentLinkedQueue<List<Stroke>> mBatches =
+            new ConcurrentLinkedQueue<List<Stroke>>();
+
+    /**
+     * 作成中のバッチ。バックグラウンドのスレッドからだけ参照します。
+     */
+    private List<Stroke> mBatch = new ArrayList<Stroke>(FIRST_BATCH_SIZE);
+
+    private int mBatchSize = FIRST_BATCH_SIZE;
+
+    private long mBatchStarted;
+
+    /**
+     * 背景色(AARRGGBB)。{@link #mBgColorLoaded} が {@code true} になる前にセットされます。
+     */
+    private int mBgColor;
+
+    private volatile boolean mBgColorLoaded = false;
+
+    /**
+     * ストロークファイルの概要。概要を持たない形式の場合は {@code null} です。 {@link #mBgColorLoaded}
+     * が {@code true} になる前にセットされます。
+     */
+    private DrawingMetadata mMetadata;
+
+    private boolean mBgColorApplied = false;
+
+    private boolean mFinished = false;
+
+    StrokeLoader(PaintView view) {
+        super();
+        mView = view;
+    }
+
+    /**
+     * ストロークファイルを順に読み込みます。2つ目以降のファイルのストロークは、前のファイルのストロークのあとに続けます。
+     * 背景色と概要は最初のファイルのものを使います。
+     */
+    @Override
+    protected Boolean doInBackground(File... params) {
+        mBatchStarted = SystemClock.uptimeMillis();
+        for (File strokeFile : params) {
+            if (!load(strokeFile)) {
+                return Boolean.FALSE;
+            }
+        }
+        publishBatch();
+        return Boolean.TRUE;
+    }
+
+    private boolean load(File strokeFile) {
+        StrokeReader reader = null;
+        try {
+            final StrokeBlockIndex blocks = StrokeBlockIndex.read(strokeFile);
+            if (blocks != null) {
+                return loadBlocks(blocks);
+            }
+
+            reader = new StrokeReader(strokeFile);
+            final int bgColor = reader.readBgColor();
+            if (!mBgColorLoaded) {
+                mBgColor = bgColor;
+                mBgColorLoaded = true;
+            }
+
+            while (true) {
+                if (isCancelled()) {
+                    return false;
+                }
+                final Stroke stroke;
+                try {
+                    stroke = reader.readStroke();
+                } catch (StrokeReader.InvalidStrokeException e) {
+                    Log.e(TAG, e.getMessage());
+                    continue;
+                }
+                if (stroke == null) {
+                    break;
+                }
+                offer(stroke);
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "invalid background color: " + strokeFile.getPath(), e);
+            return false;
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "File not found.", e);
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read file", e);
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * ブロックを並列に展開し、先頭のブロックから順に UI スレッドへ渡します。
+     *
+     * @return すべてのブロックを読み込めた場合は {@code true}。
+     */
+    private boolean loadBlocks(final StrokeBlockIndex blocks) throws IOException {
+        if (!mBgColorLoaded) {
+            mBgColor = blocks.getBgColor();
+            mMetadata = blocks.getMetadata();
+            mBgColorLoaded = true;
+        }
+
+        final int blockCount = blocks.getBlockCount();
+        final int threads = Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors(), blockCount));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                BLOCK_THREAD_FACTORY);
+        try {
+            final List<Future<List<Stroke>>> decoded = new ArrayList<Future<List<Stroke>>>(
+                    blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                final int block = i;
+                decoded.add(executor.submit(new Callable<List<Stroke>>() {
+                    @Override
+                    public List<Stroke> call() throws IOException {
+                        return blocks.decodeBlock(block);
+                    }
+                }));
+            }
+            for (Future<List<Stroke>> future : decoded) {
+                if (isCancelled()) {
+                    return false;
+                }
+                if (!future.isDone()) {
+                    // 展開を待つあいだに、作りかけのバッチを表示させる
+                    publishBatch();
+                }
+                for (Stroke stroke : future.get()) {
+                    offer(stroke);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            // 取り消された
+            return false;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("failed to decode block", cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * ストロークを作成中のバッチに加えます。バッチサイズに達するか {@link #MAX_BATCH_INTERVAL_MS}
+     * が経過したら UI スレッドへ渡し、次のバッチサイズを倍にします。
+     */
+    private void offer(Stroke stroke) {
+        mBatch.add(stroke);
+        if (mBatchSize <= mBatch.size()
+                || MAX_BATCH_INTERVAL_MS <= SystemClock.uptimeMillis() - mBatchStarted) {
+            publishBatch();
+            mBatchSize = Math.min(mBatchSize * 2, MAX_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * 作成中のバッチを UI スレッドへ渡します。
+     */
+    private void publishBatch() {
+        if (!mBatch.isEmpty()) {
+            mBatches.add(mBatch);
+            mBatch = new ArrayList<Stroke>(mBatchSize);
+            publishProgress();
+        }
+        mBatchStarted = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * 読み込んだストロークの渡し先を変えます。構成変更で {@link PaintView} を作り直すときに、読み込みを続けたまま引き継ぐのに使います。
+     *
+     * @param view 渡し先。 {@code null} の場合は、次に渡し先がセットされるまで読み込んだストロークを溜めておきます。
+     */
+    void setView(PaintView view) {
+        mView = view;
+        if (view == null) {
+            return;
+        }
+        if (mPendingResult != null) {
+            finish(mPendingResult.booleanValue());
+        } else {
+            // 渡し先がないあいだに溜まったバッチ
+            deliverParsedStrokes(true);
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Void... values) {
+        deliverParsedStrokes(false);
+    }
+
+    @Override
+    protected void onPostExecute(Boolean result) {
+        finish(result.booleanValue());
+    }
+
+    /**
+     * 読み込みの完了を待ち、残りのストロークをすべて {@link PaintView} に渡します。
+     *
+     * <p>
+     * 保存などで全ストロークが必要になったときに UI スレッドから呼び出します。
+     * </p>
+     */
+    void completeNow() {
+        if (mFinished) {
+            return;
+        }
+        boolean succeeded = false;
+        try {
+            succeeded = get().booleanValue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "failed to load strokes", e);
+        } catch (CancellationException e) {
+            return;
+        }
+        finish(succeeded);
+    }
+
+    private void finish(boolean succeeded) {
+        if (mFinished) {
+            return;
+        }
+        if (mView == null) {
+            mPendingResult = Boolean.valueOf(succeeded);
+            return;
+        }
+        deliverParsedStrokes(true);
+        mFinished = true;
+        mView.endProgressiveLoad(this, succeeded);
+    }
+
+    /**
+     * 読み込み済みのストロークを {@link PaintView} に渡します。
+     *
+     * @param all すべてのバッチを渡す場合は {@code true}。 {@code false} の場合は最も古いバッチだけを渡します。
+     */
+    private void deliverParsedStrokes(boolean all) {
+        if (mFinished || isCancelled() || mView == null) {
+            return;
+        }
+        if (!mBgColorApplied && mBgColorLoaded) {
+            mView.setBackgroundColor(mBgColor);
+            if (mMetadata != null && mMetadata.getCreatedMillis() != 0L) {
+                mView.setCreatedMillis(mMetadata.getCreatedMillis());
+            }
+            mBgColorApplied = true;
+        }
+        if (!all) {
+            final List<Stroke> batch = mBatches.poll();
+            if (batch != null) {
+                mView.appendLoadedStrokes(batch);
+            }
+            return;
+        }
+        final List<Stroke> rest = new ArrayList<Stroke>();
+        for (List<Stroke> batch = mBatches.poll(); batch != null; batch = mBatches.poll()) {
+            rest.addAll(batch);
+        }
+        if (!rest.isEmpty()) {
+            mView.appendLoadedStrokes(rest);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.simplepaint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * ストロークファイルを先頭から順に読み込むクラスです。
+ *
+ * <p>
+ * {@link StrokeWriter} が書き出すバイナリ形式、 {@link BlockStrokeWriter} が書き出すブロックに圧縮した形式、
+ * 以前のテキスト形式({@link PaintView#getStrokeString()} と同じ形式)のいずれも読み込めます。
+ * 形式はファイルの先頭で判別します。ブロックを並列に展開する場合は {@link StrokeBlockIndex} を使います。
+ * </p>
+ * <p>
+ * {@link #readBgColor()} で背景色を読んでから、 {@link #readStroke()} が {@code null} を返すまで
+ * ストロークを読み込みます。
+ * </p>
+ */
+final class StrokeReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int FORMAT_TEXT = 0;
+
+    private static final int FORMAT_BINARY = 1;
+
+    private static final int FORMAT_BLOCKS = 2;
+
+    private final InputStream mIn;
+
+    /**
+     * バイナリ形式、またはブロックに圧縮した形式の場合の入力。テキスト形式の場合は {@code null} です。
+     */
+    private final DataInputStream mBinary;
+
+    /**
+     * ブロックに圧縮した形式の場合に、展開したブロックの入力。
+     */
+    private DataInputStream mBlock;
+
+    private final boolean mBlocks;
+
+    private boolean mBlocksEnded = false;
+
+    /**
+     * テキスト形式の場合の入力。バイナリ形式の場合は {@code null} です。
+     */
+    private final BufferedReader mText;
+
+    StrokeReader(File strokeFile) throws IOException {
+        this(new FileInputStream(strokeFile));
+    }
+
+    /**
+     * @param in 読み込むストリーム。 {@link #close()} で閉じます。
+     */
+    StrokeReader(InputStream in) throws IOException {
+        super();
+        mIn = in;
+        final BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        int format = FORMAT_TEXT;
+        try {
+            format = readFormat(buffered);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        mBlocks = format == FORMAT_BLOCKS;
+        if (format != FORMAT_TEXT) {
+            mBinary = new DataInputStream(buffered);
+            mText = null;
+        } else {
+            mBinary = null;
+            mText = new BufferedReader(new InputStreamReader(buffered, "UTF-8"));
+        }
+    }
+
+    /**
+     * ストロークファイルが {@link StrokeWriter} の形式かどうかを返します。
+     *
+     * @param strokeFile ストロークファイル。
+     * @return {@link StrokeWriter} の形式であれば {@code true}。読み込めない場合は {@code false}。
+     */
+    static boolean isBinary(File strokeFile) {
+        try {
+            final StrokeReader reader = new StrokeReader(strokeFile);
+            try {
+                return reader.isBinary() && !reader.mBlocks;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 先頭がマジックナンバーであれば読み飛ばして形式を返します。そうでなければ読む前の位置に戻して
+     * {@link #FORMAT_TEXT} を返します。
+     */
+    private static int readFormat(BufferedInputStream in) throws IOException {
+        final byte[] magic = new byte[StrokeWriter.MAGIC.length];
+        in.mark(magic.length);
+        int read = 0;
+        while (read < magic.length) {
+            final int n = in.read(magic, read, magic.length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        if (read == magic.length) {
+            if (Arrays.equals(magic, StrokeWriter.MAGIC)) {
+                return FORMAT_BINARY;
+            }
+            if (Arrays.equals(magic, BlockStrokeWriter.MAGIC)) {
+                return FORMAT_BLOCKS;
+            }
+        }
+        in.reset();
+        return FORMAT_TEXT;
+    }
+
+    /**
+     * バイナリ形式、またはブロックに圧縮した形式かどうかを返します。
+     *
+     * @return テキスト形式でなければ {@code true}。
+     */
+    public boolean isBinary() {
+        return mBinary != null;
+    }
+
+    /**
+     * 背景色を読み込みます。最初に一度だけ呼び出してください。
+     *
+     * @return 背景色。
+     * @throws EOFException ファイルが空の場合。
+     * @throws NumberFormatException テキスト形式で背景色の行が不正な場合。
+     */
+    public int readBgColor() throws IOException {
+        if (mBinary != null) {
+            final int version = mBinary.readUnsignedByte();
+            if (version < 1
+                    || (mBlocks ? BlockStrokeWriter.VERSION : StrokeWriter.VERSION) < version) {
+                throw new IOException("unsupported stroke file version: " + version);
+            }
+            final int bgColor = mBinary.readInt();
+            if (mBlocks && BlockStrokeWriter.VERSION_METADATA <= version) {
+                // 概要は読み飛ばす
+                mBinary.readFully(new byte[DrawingMetadata.SIZE]);
+            }
+            return bgColor;
+        }
+        final String line = mText.readLine();
+        if (line == null) {
+            throw new EOFException("empty stroke file");
+        }
+        return Integer.parseInt(line.trim());
+    }
+
+    /**
+     * 次のストロークを読み込みます。
+     *
+     * @return ストローク。ファイルの終わりに達した場合は {@code null}。
+     * @throws InvalidStrokeException テキスト形式で不正な行があった場合。その行を読み飛ばして続きを読み込めます。
+     */
+    public Stroke readStroke() throws IOException {
+        if (mBlocks) {
+            return readBlockStroke();
+        }
+        if (mBinary != null) {
+            return readRecord(mBinary);
+        }
+        for (String line = mText.readLine(); line != null; line = mText.readLine()) {
+            if (line.length() == 0) {
+                continue;
+            }
+            final Stroke stroke;
+            try {
+                stroke = Stroke.fromString(line);
+            } catch (NumberFormatException e) {
+                throw new InvalidStrokeException(line);
+            }
+            if (stroke == null) {
+                throw new InvalidStrokeException(line);
+            }
+            return stroke;
+        }
+        return null;
+    }
+
+    private Stroke readBlockStroke() throws IOException {
+        while (!mBlocksEnded) {
+            if (mBlock != null) {
+                final Stroke stroke = readRecord(mBlock);
+                if (stroke != null) {
+                    return stroke;
+                }
+            }
+            final int compressedLength = mBinary.readInt();
+            if (compressedLength == 0) {
+                // 終端。あとには索引が続く
+                mBlocksEnded = true;
+                break;
+            }
+            final int length = mBinary.readInt();
+            if (compressedLength < 0 || length < 0) {
+                throw new IOException("corrupted stroke file");
+            }
+            final byte[] compressed = new byte[compressedLength];
+            mBinary.readFully(compressed);
+            mBlock = new DataInputStream(new ByteArrayInputStream(StrokeBlockIndex.inflate(
+                    compressed, length)));
+        }
+        return null;
+    }
+
+    /**
+     * {@link StrokeWriter#write(Stroke)} で書き出したストロークを1つ読み込みます。
+     *
+     * @param in 入力。
+     * @return ストローク。入力の終わりに達した場合は {@code null}。
+     */
+    static Stroke readRecord(DataInputStream in) throws IOException {
+        final int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        final int pointCount = readVarint(in, first);
+        final int color = in.readInt();
+        final float size = in.readFloat();
+        final int flags = in.readUnsignedByte();
+        final int packedLength = readVarint(in, in.readUnsignedByte());
+        // 1つの値は最大5バイト
+        if (pointCount < 0 || packedLength < 0 || pointCount * 10L < packedLength) {
+            throw new IOException("corrupted stroke file");
+        }
+        final byte[] packed = new byte[packedLength];
+        in.readFully(packed);
+        if (!Stroke.isValidPacking(packed, pointCount)) {
+            throw new IOException("corrupted stroke file");
+        }
+        byte[] widths = null;
+        if ((flags & StrokeWriter.FLAG_WIDTHS) != 0) {
+            widths = new byte[pointCount];
+            in.readFully(widths);
+        }
+        final boolean curves = (flags & StrokeWriter.FLAG_CURVES) != 0;
+        if (curves && (widths != null || !Stroke.isValidCurvePointCount(pointCount))) {
+            throw new IOException("corrupted stroke file");
+        }
+        return new Stroke(color, size, pointCount, packed, widths, curves);
+    }
+
+    private static int readVarint(DataInputStream in, int firstByte) throws IOException {
+        int value = firstByte & 0x7f;
+        int b = firstByte;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if (32 < shift) {
+                throw new IOException("corrupted stroke file");
+            }
+            b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+        }
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * テキスト形式のストロークファイルに不正な行があったことを表す例外です。
+     */
+    static final class InvalidStrokeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        InvalidStrokeException(String line) {
+            super("invalid stroke string: " + line);
+        }
+    }
+}
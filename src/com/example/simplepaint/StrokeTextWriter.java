@@ -0,0 +1,79 @@
+package com.example.simplepaint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * ストローク文字列({@link PaintView#getStrokeString()} と同じ形式)を {@link Writer} に書き出すクラスです。
+ *
+ * <p>
+ * ストロークを1つずつ、使い回すバッファで1行にしてそのまま書き出すので、画全体の文字列は作らず、
+ * 使用するメモリはストロークの数によらず一定です。座標は {@link Stroke#appendTo(StringBuilder)}
+ * が符号化された列から直接書き出します。
+ * </p>
+ * <p>
+ * {@link #writeHeader(int)} 、 {@link #write(Stroke)} 、 {@link #close()} の順に呼び出します。
+ * </p>
+ */
+final class StrokeTextWriter implements Closeable {
+
+    private final Writer mOut;
+
+    private final StringBuilder mLine = new StringBuilder(1024);
+
+    /**
+     * {@link #mLine} を書き出すためのバッファ。 {@link Writer#append(CharSequence)} は行ごとに文字列を作るので使いません。
+     */
+    private char[] mChars = new char[1024];
+
+    /**
+     * @param out 書き出し先。バッファリングは呼び出し側で行ってください。
+     */
+    StrokeTextWriter(Writer out) {
+        super();
+        mOut = out;
+    }
+
+    /**
+     * 背景色の行を書き出します。最初に一度だけ呼び出してください。
+     *
+     * @param bgColor 背景色。
+     */
+    public void writeHeader(int bgColor) throws IOException {
+        final StringBuilder sb = mLine;
+        sb.setLength(0);
+        sb.append(bgColor).append('\n');
+        writeLine();
+    }
+
+    /**
+     * ストロークを1行書き出します。
+     *
+     * @param stroke ストローク。
+     */
+    public void write(Stroke stroke) throws IOException {
+        final StringBuilder sb = mLine;
+        sb.setLength(0);
+        stroke.appendTo(sb);
+        sb.append('\n');
+        writeLine();
+    }
+
+    private void writeLine() throws IOException {
+        final int length = mLine.length();
+        if (mChars.length < length) {
+            mChars = new char[Math.max(length, mChars.length * 2)];
+        }
+        mLine.getChars(0, length, mChars, 0);
+        mOut.write(mChars, 0, length);
+    }
+
+    /**
+     * 書き出し先を閉じます。
+     */
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.simplepaint;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * ストロークをバイナリ形式のストロークファイルに書き出すクラスです。
+ *
+ * <p>
+ * ファイルの形式は次のとおりです。数値はビッグエンディアン、varint は下位7ビットずつ書き出す可変長整数です。
+ * </p>
+ *
+ * <pre>
+ * ヘッダ    : マジックナンバー(4バイト) バージョン(1バイト) 背景色(int)
+ * ストローク: 座標の数(varint) 色(int) 太さ(float) フラグ(1バイト)
+ *             符号化した座標の列の長さ(varint) 符号化した座標の列 [座標ごとの太さ(座標の数バイト)]
+ * </pre>
+ *
+ * <p>
+ * 座標の列は {@link Stroke} がメモリ上で保持しているものをそのまま書き出します。背景色はファイルの先頭から
+ * {@link #BG_COLOR_OFFSET} バイト目に固定長で置くので、ストロークを追記したあとでも書き換えられます。
+ * </p>
+ */
+final class StrokeWriter implements Closeable {
+
+    /**
+     * バイナリ形式のマジックナンバー。テキスト形式のファイルは数字か '-' で始まるので区別できます。
+     */
+    static final byte[] MAGIC = {
+            (byte) 0x89, 'S', 'P', 'S'
+    };
+
+    /**
+     * バージョン 2 から曲線のストローク({@link #FLAG_CURVES})を含みます。
+     */
+    static final int VERSION = 2;
+
+    /**
+     * ファイルの先頭から背景色までのバイト数。
+     */
+    static final int BG_COLOR_OFFSET = MAGIC.length + 1;
+
+    /**
+     * フラグ: 座標ごとの太さを持つ。
+     */
+    static final int FLAG_WIDTHS = 0x01;
+
+    /**
+     * フラグ: 座標の列が3次ベジェ曲線の点({@link Stroke#mCurves})。
+     */
+    static final int FLAG_CURVES = 0x02;
+
+    private final DataOutputStream mOut;
+
+    /**
+     * @param out 書き出し先。バッファリングは呼び出し側で行ってください。
+     */
+    StrokeWriter(OutputStream out) {
+        super();
+        mOut = new DataOutputStream(out);
+    }
+
+    /**
+     * ヘッダを書き出します。ファイルの先頭で一度だけ呼び出してください。
+     *
+     * @param bgColor 背景色。
+     */
+    public void writeHeader(int bgColor) throws IOException {
+        mOut.write(MAGIC);
+        mOut.writeByte(VERSION);
+        mOut.writeInt(bgColor);
+    }
+
+    /**
+     * ストロークを1つ書き出します。
+     *
+     * @param stroke ストローク。
+     */
+    public void write(Stroke stroke) throws IOException {
+        writeVarint(stroke.mPointCount);
+        mOut.writeInt(stroke.mColor);
+        mOut.writeFloat(stroke.mSize);
+        mOut.writeByte((stroke.mWidths == null ? 0 : FLAG_WIDTHS)
+                | (stroke.mCurves ? FLAG_CURVES : 0));
+        writeVarint(stroke.mPackedCoordinates.length);
+        mOut.write(stroke.mPackedCoordinates);
+        if (stroke.mWidths != null) {
+            mOut.write(stroke.mWidths);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void writeVarint(int value) throws IOException {
+        int v = value;
+        while ((v & ~0x7f) != 0) {
+            mOut.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        mOut.writeByte(v);
+    }
+
+    /**
+     * バイナリ形式のストロークファイルの背景色を書き換えます。
+     *
+     * @param file {@link #writeHeader(int)} でヘッダを書き出したファイル。
+     * @param bgColor 背景色。
+     */
+    static void writeBgColor(File file, int bgColor) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(BG_COLOR_OFFSET);
+            raf.writeInt(bgColor);
+        } finally {
+            raf.close();
+        }
+    }
+}
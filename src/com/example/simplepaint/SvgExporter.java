@@ -0,0 +1,249 @@
+package com.example.simplepaint;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * ストロークを SVG として書き出すクラスです。
+ *
+ * <p>
+ * ストロークを1つずつ受け取ってそのまま path 要素として書き出すので、ビットマップを経由せず、
+ * ストロークの数によらず使用するメモリは一定です。線のなめらかさは {@link PaintView}
+ * のオフスクリーンへの描画と同じく、座標の中点をつなぐ2次ベジェ曲線で表します。
+ * 太さが変わるストロークは {@link Stroke#getOutline()} の輪郭を塗りつぶします。
+ * </p>
+ * <p>
+ * {@link #writeHeader(int, int, int)} 、 {@link #write(Stroke)} 、 {@link #close()} の順に呼び出します。
+ * </p>
+ */
+final class SvgExporter implements Closeable {
+
+    private final Writer mOut;
+
+    private final StringBuilder mBuffer = new StringBuilder(1024);
+
+    /**
+     * {@link #mBuffer} を書き出すためのバッファ。 {@link Writer#append(CharSequence)} は要素ごとに文字列を作るので使いません。
+     */
+    private char[] mChars = new char[1024];
+
+    /**
+     * @param out 書き出し先。 UTF-8 で書き出します。
+     */
+    SvgExporter(OutputStream out) throws IOException {
+        super();
+        mOut = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    }
+
+    /**
+     * ストロークファイルを SVG に変換します。ストロークは読み込んだものから順に書き出します。
+     *
+     * @param strokeFile ストロークファイル。
+     * @param width 画像の幅。
+     * @param height 画像の高さ。
+     * @param out 書き出し先。閉じられます。
+     */
+    static void export(File strokeFile, int width, int height, OutputStream out)
+            throws IOException {
+        final SvgExporter exporter = new SvgExporter(out);
+        try {
+            final StrokeReader reader = new StrokeReader(strokeFile);
+            try {
+                exporter.writeHeader(width, height, reader.readBgColor());
+                for (Stroke stroke = reader.readStroke(); stroke != null; stroke = reader
+                        .readStroke()) {
+                    exporter.write(stroke);
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            exporter.close();
+        }
+    }
+
+    /**
+     * SVG の開始タグと背景を書き出します。
+     *
+     * @param width 画像の幅。
+     * @param height 画像の高さ。
+     * @param bgColor 背景色(AARRGGBB)。
+     */
+    public void writeHeader(int width, int height, int bgColor) throws IOException {
+        final StringBuilder sb = mBuffer;
+        sb.setLength(0);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\" width=\"")
+                .append(width).append("\" height=\"").append(height)
+                .append("\" viewBox=\"0 0 ").append(width).append(' ').append(height)
+                .append("\">\n");
+        sb.append("<rect width=\"100%\" height=\"100%\"");
+        appendColor(sb, "fill", bgColor);
+        sb.append("/>\n");
+        writeBuffer();
+    }
+
+    /**
+     * ストロークを path 要素として書き出します。
+     *
+     * @param stroke ストローク。
+     */
+    public void write(Stroke stroke) throws IOException {
+        final StringBuilder sb = mBuffer;
+        sb.setLength(0);
+        sb.append("<path d=\"");
+        if (stroke.mWidths != null) {
+            appendOutline(sb, stroke.getOutline());
+            sb.append('"');
+            appendColor(sb, "fill", stroke.mColor);
+        } else {
+            if (stroke.mCurves) {
+                appendCurves(sb, stroke.getCoordinates());
+            } else {
+                appendSmoothedPath(sb, stroke.getCoordinates());
+            }
+            sb.append("\" fill=\"none\"");
+            appendColor(sb, "stroke", stroke.mColor);
+            sb.append(" stroke-width=\"");
+            appendNumber(sb, stroke.mSize);
+            sb.append("\" stroke-linecap=\"round\" stroke-linejoin=\"round\"");
+        }
+        sb.append("/>\n");
+        writeBuffer();
+    }
+
+    private void writeBuffer() throws IOException {
+        final int length = mBuffer.length();
+        if (mChars.length < length) {
+            mChars = new char[Math.max(length, mChars.length * 2)];
+        }
+        mBuffer.getChars(0, length, mChars, 0);
+        mOut.write(mChars, 0, length);
+    }
+
+    /**
+     * 終了タグを書き出して閉じます。
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mOut.write("</svg>\n");
+        } finally {
+            mOut.close();
+        }
+    }
+
+    /**
+     * {@link PaintView} のオフスクリーンへの描画と同じ手順でパスを組み立てます。
+     */
+    private static void appendSmoothedPath(StringBuilder sb, float[] coordinates) {
+        float prevX = 0f;
+        float prevY = 0f;
+        for (int index = 0; index < coordinates.length - 1; index += 2) {
+            final float x = coordinates[index];
+            final float y = coordinates[index + 1];
+            if (index == 0) {
+                // first coordinate
+                sb.append('M');
+                appendPoint(sb, x, y);
+                sb.append('L');
+                appendPoint(sb, x + 1, y);
+                prevX = x;
+                prevY = y;
+            } else if (index == coordinates.length - 2) {
+                // last coordinate
+                sb.append('M');
+                appendPoint(sb, x, y);
+            } else {
+                sb.append('Q');
+                appendPoint(sb, prevX, prevY);
+                sb.append(' ');
+                appendPoint(sb, (prevX + x) / 2, (prevY + y) / 2);
+                prevX = x;
+                prevY = y;
+            }
+        }
+    }
+
+    /**
+     * 3次ベジェ曲線の点をそのまま C コマンドで書き出します。
+     */
+    private static void appendCurves(StringBuilder sb, float[] curves) {
+        sb.append('M');
+        appendPoint(sb, curves[0], curves[1]);
+        for (int index = 2; index < curves.length - 5; index += 6) {
+            sb.append('C');
+            appendPoint(sb, curves[index], curves[index + 1]);
+            sb.append(' ');
+            appendPoint(sb, curves[index + 2], curves[index + 3]);
+            sb.append(' ');
+            appendPoint(sb, curves[index + 4], curves[index + 5]);
+        }
+    }
+
+    private static void appendOutline(StringBuilder sb, float[] outline) {
+        if (outline.length < 2) {
+            return;
+        }
+        sb.append('M');
+        appendPoint(sb, outline[0], outline[1]);
+        for (int index = 2; index < outline.length - 1; index += 2) {
+            sb.append('L');
+            appendPoint(sb, outline[index], outline[index + 1]);
+        }
+        sb.append('Z');
+    }
+
+    private static void appendPoint(StringBuilder sb, float x, float y) {
+        appendNumber(sb, x);
+        sb.append(' ');
+        appendNumber(sb, y);
+    }
+
+    /**
+     * 数値を書き出します。整数であれば小数点以下を省き、そうでなければ小数第2位までに丸めます。
+     */
+    private static void appendNumber(StringBuilder sb, float value) {
+        final long hundredths = Math.round(value * 100.0);
+        if (hundredths < 0) {
+            sb.append('-');
+        }
+        final long abs = Math.abs(hundredths);
+        sb.append(abs / 100);
+        final long fraction = abs % 100;
+        if (fraction != 0) {
+            sb.append('.');
+            if (fraction < 10) {
+                sb.append('0');
+                sb.append(fraction);
+            } else if (fraction % 10 == 0) {
+                sb.append(fraction / 10);
+            } else {
+                sb.append(fraction);
+            }
+        }
+    }
+
+    /**
+     * ARGB の色を属性として書き出します。不透明でなければ opacity の属性も書き出します。
+     */
+    private static void appendColor(StringBuilder sb, String attribute, int argb) {
+        sb.append(' ').append(attribute).append("=\"#");
+        final int rgb = argb & 0xffffff;
+        for (int shift = 20; 0 <= shift; shift -= 4) {
+            sb.append(Character.forDigit((rgb >> shift) & 0xf, 16));
+        }
+        sb.append('"');
+        final int alpha = (argb >>> 24) & 0xff;
+        if (alpha != 0xff) {
+            sb.append(' ').append(attribute).append("-opacity=\"");
+            appendNumber(sb, alpha / 255.0F);
+            sb.append('"');
+        }
+    }
+}
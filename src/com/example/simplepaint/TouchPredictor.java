@@ -0,0 +1,256 @@
+package com.example.simplepaint;
+
+import java.util.Locale;
+
+/**
+ * 直近のタッチ座標と時刻から、少し先の指の位置を予測するクラスです。
+ *
+ * <p>
+ * ポインタごとに最新の {@link #SAMPLE_COUNT} 個の座標を保持し、 {@link #VELOCITY_WINDOW_MS}
+ * ミリ秒以内の座標から求めた速度で {@link #PREDICTION_MS} ミリ秒先の位置を線形に外挿します。
+ * 予測した位置は表示にだけ使い、ストロークの座標には加えません。
+ * </p>
+ * <p>
+ * 予測した時刻を過ぎた座標が届いたら、その時刻の実際の位置(前後の座標から線形補間したもの)と予測した位置の距離を
+ * 誤差として集計します。
+ * </p>
+ */
+final class TouchPredictor {
+
+    /**
+     * ポインタごとに保持する座標の数。
+     */
+    private static final int SAMPLE_COUNT = 4;
+
+    /**
+     * 速度を求めるのに使う座標の時間の幅(ミリ秒)。
+     */
+    private static final long VELOCITY_WINDOW_MS = 40L;
+
+    /**
+     * 何ミリ秒先を予測するか。
+     */
+    static final long PREDICTION_MS = 16L;
+
+    /**
+     * 予測で進める距離の上限(ピクセル)。急な加速で大きく外れるのを防ぎます。
+     */
+    private static final float MAX_PREDICTION_DISTANCE = 48.0F;
+
+    private final int mMaxPointers;
+
+    /**
+     * ポインタごとの座標のリングバッファ。ポインタ {@code i} の座標は {@code i * SAMPLE_COUNT} から並びます。
+     */
+    private final float[] mSampleX;
+    private final float[] mSampleY;
+    private final long[] mSampleTimes;
+
+    /**
+     * ポインタごとの保持している座標の数。
+     */
+    private final int[] mSampleCounts;
+
+    /**
+     * ポインタごとの最新の座標の位置。
+     */
+    private final int[] mSampleHeads;
+
+    /**
+     * ポインタごとの表示に使う予測した位置。
+     */
+    private final float[] mPredictedX;
+    private final float[] mPredictedY;
+    private final boolean[] mHasPrediction;
+
+    /**
+     * ポインタごとの、誤差をまだ集計していない予測の位置と時刻。
+     */
+    private final float[] mPendingX;
+    private final float[] mPendingY;
+    private final long[] mPendingTimes;
+    private final boolean[] mHasPending;
+
+    private int mErrorCount = 0;
+    private double mErrorSum = 0.0;
+    private float mMaxError = 0.0F;
+
+    TouchPredictor(int maxPointers) {
+        super();
+        mMaxPointers = maxPointers;
+        mSampleX = new float[maxPointers * SAMPLE_COUNT];
+        mSampleY = new float[maxPointers * SAMPLE_COUNT];
+        mSampleTimes = new long[maxPointers * SAMPLE_COUNT];
+        mSampleCounts = new int[maxPointers];
+        mSampleHeads = new int[maxPointers];
+        mPredictedX = new float[maxPointers];
+        mPredictedY = new float[maxPointers];
+        mHasPrediction = new boolean[maxPointers];
+        mPendingX = new float[maxPointers];
+        mPendingY = new float[maxPointers];
+        mPendingTimes = new long[maxPointers];
+        mHasPending = new boolean[maxPointers];
+    }
+
+    /**
+     * ポインタのストロークを開始します。
+     */
+    public void start(int pointerId, float x, float y, long eventTime) {
+        end(pointerId);
+        addSample(pointerId, x, y, eventTime);
+    }
+
+    /**
+     * 実際の座標を追加します。表示に使う予測は破棄します。
+     */
+    public void addSample(int pointerId, float x, float y, long eventTime) {
+        final int base = pointerId * SAMPLE_COUNT;
+        if (0 < mSampleCounts[pointerId]) {
+            final int head = base + mSampleHeads[pointerId];
+            measureError(pointerId, mSampleX[head], mSampleY[head], mSampleTimes[head], x, y,
+                    eventTime);
+        }
+        mHasPrediction[pointerId] = false;
+
+        final int next = (mSampleHeads[pointerId] + 1) % SAMPLE_COUNT;
+        mSampleHeads[pointerId] = next;
+        mSampleX[base + next] = x;
+        mSampleY[base + next] = y;
+        mSampleTimes[base + next] = eventTime;
+        mSampleCounts[pointerId] = Math.min(SAMPLE_COUNT, mSampleCounts[pointerId] + 1);
+    }
+
+    /**
+     * 最新の座標から {@link #PREDICTION_MS} ミリ秒先の位置を予測します。予測は次に
+     * {@link #addSample(int, float, float, long)} を呼び出すまで有効です。
+     *
+     * @return 予測できた場合は {@code true}。
+     */
+    public boolean predict(int pointerId) {
+        mHasPrediction[pointerId] = false;
+        final int count = mSampleCounts[pointerId];
+        if (count < 2) {
+            return false;
+        }
+        final int base = pointerId * SAMPLE_COUNT;
+        final int head = base + mSampleHeads[pointerId];
+        // 時間の幅に収まる最も古い座標を探す
+        int oldest = -1;
+        for (int i = count - 1; 0 < i; i--) {
+            final int index = base + (mSampleHeads[pointerId] - i + SAMPLE_COUNT) % SAMPLE_COUNT;
+            if (mSampleTimes[head] - mSampleTimes[index] <= VELOCITY_WINDOW_MS) {
+                oldest = index;
+                break;
+            }
+        }
+        if (oldest < 0) {
+            return false;
+        }
+        final long elapsed = mSampleTimes[head] - mSampleTimes[oldest];
+        if (elapsed <= 0) {
+            return false;
+        }
+        float dx = (mSampleX[head] - mSampleX[oldest]) * PREDICTION_MS / elapsed;
+        float dy = (mSampleY[head] - mSampleY[oldest]) * PREDICTION_MS / elapsed;
+        final float distance = (float) Math.sqrt(dx * dx + dy * dy);
+        if (MAX_PREDICTION_DISTANCE < distance) {
+            dx *= MAX_PREDICTION_DISTANCE / distance;
+            dy *= MAX_PREDICTION_DISTANCE / distance;
+        }
+        mPredictedX[pointerId] = mSampleX[head] + dx;
+        mPredictedY[pointerId] = mSampleY[head] + dy;
+        mHasPrediction[pointerId] = true;
+        if (!mHasPending[pointerId]) {
+            // 前の予測の誤差を集計し終わるまでは、次の予測を集計の対象にしない
+            mPendingX[pointerId] = mPredictedX[pointerId];
+            mPendingY[pointerId] = mPredictedY[pointerId];
+            mPendingTimes[pointerId] = mSampleTimes[head] + PREDICTION_MS;
+            mHasPending[pointerId] = true;
+        }
+        return true;
+    }
+
+    /**
+     * 予測した位置を返します。
+     *
+     * @param out 予測した x座標値, y座標値を格納する配列。
+     * @return 有効な予測がある場合は {@code true}。
+     */
+    public boolean getPrediction(int pointerId, float[] out) {
+        if (!mHasPrediction[pointerId]) {
+            return false;
+        }
+        out[0] = mPredictedX[pointerId];
+        out[1] = mPredictedY[pointerId];
+        return true;
+    }
+
+    /**
+     * ポインタのストロークを終了し、予測を破棄します。
+     */
+    public void end(int pointerId) {
+        mSampleCounts[pointerId] = 0;
+        mHasPrediction[pointerId] = false;
+        mHasPending[pointerId] = false;
+    }
+
+    /**
+     * すべてのポインタの予測を破棄します。
+     */
+    public void clear() {
+        for (int i = 0; i < mMaxPointers; i++) {
+            end(i);
+        }
+    }
+
+    private void measureError(int pointerId, float prevX, float prevY, long prevTime, float x,
+            float y, long eventTime) {
+        if (!mHasPending[pointerId]) {
+            return;
+        }
+        final long target = mPendingTimes[pointerId];
+        if (eventTime < target) {
+            // 予測した時刻にまだ達していない
+            return;
+        }
+        mHasPending[pointerId] = false;
+        final float ratio = eventTime == prevTime ? 1.0F : (float) (target - prevTime)
+                / (eventTime - prevTime);
+        final float actualX = prevX + (x - prevX) * ratio;
+        final float actualY = prevY + (y - prevY) * ratio;
+        final float ex = mPendingX[pointerId] - actualX;
+        final float ey = mPendingY[pointerId] - actualY;
+        final float error = (float) Math.sqrt(ex * ex + ey * ey);
+        mErrorCount++;
+        mErrorSum += error;
+        mMaxError = Math.max(mMaxError, error);
+    }
+
+    /**
+     * 誤差を集計した予測の数を返します。
+     */
+    public int getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * 予測と実際の位置の距離の平均(ピクセル)を返します。
+     */
+    public float getMeanError() {
+        return mErrorCount == 0 ? 0.0F : (float) (mErrorSum / mErrorCount);
+    }
+
+    /**
+     * 予測と実際の位置の距離の最大値(ピクセル)を返します。
+     */
+    public float getMaxError() {
+        return mMaxError;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "prediction error: n=%d, mean=%.2fpx, max=%.2fpx",
+                Integer.valueOf(mErrorCount), Float.valueOf(getMeanError()),
+                Float.valueOf(mMaxError));
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.simplepaint;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.util.Log;
+import android.view.MotionEvent;
+
+/**
+ * {@link PaintView} がストロークを描くのに使った {@link MotionEvent} を記録するクラスです。
+ * 表示を拡大縮小している場合は、キャンバスの座標に変換したものを記録します。
+ *
+ * <p>
+ * 記録したファイルは {@link ReplayVerifier} で再生し、描画結果を検証するのに使います。
+ * 履歴の座標(getHistoricalX/Y)と時刻も含めて記録するので、再生すると同じストロークが得られます。
+ * ペンの色やサイズ、太さを変えるかどうか、背景色もストロークの結果を変えるので、記録を始めたときと変わったときに
+ * 設定のレコードとして記録します。
+ * </p>
+ *
+ * <pre>
+ * ヘッダ    : マジックナンバー(4バイト) バージョン(1バイト) 幅(int) 高さ(int)
+ * レコード  : 種類(1バイト) 内容
+ * 設定      : ペンの色(int) ペンのサイズ(float) 太さを変えるか(boolean) 背景色(int)
+ * イベント  : アクション(int) ダウン時刻(long) ポインタ数(int) 履歴の数(int)
+ *             ポインタごとの [ID(int)]
+ *             履歴と現在のそれぞれについて [時刻(long) ポインタごとの [x(float) y(float) 筆圧(float)]]
+ * </pre>
+ */
+final class TouchRecorder implements Closeable {
+
+    private static final String TAG = TouchRecorder.class.getSimpleName();
+
+    static final byte[] MAGIC = {
+            (byte) 0x89, 'S', 'P', 'T'
+    };
+
+    static final int VERSION = 2;
+
+    /**
+     * 設定のレコードの種類。
+     */
+    static final int RECORD_SETTINGS = 1;
+
+    /**
+     * イベントのレコードの種類。
+     */
+    static final int RECORD_EVENT = 2;
+
+    private final DataOutputStream mOut;
+
+    private boolean mFailed = false;
+
+    /**
+     * @param out 書き出し先。バッファリングは呼び出し側で行ってください。
+     * @param width 記録する {@link PaintView} の幅。
+     * @param height 記録する {@link PaintView} の高さ。
+     */
+    TouchRecorder(OutputStream out, int width, int height) throws IOException {
+        super();
+        mOut = new DataOutputStream(out);
+        mOut.write(MAGIC);
+        mOut.writeByte(VERSION);
+        mOut.writeInt(width);
+        mOut.writeInt(height);
+    }
+
+    /**
+     * ストロークの結果を変える設定を記録します。書き込みに失敗した場合は、以降のイベントを記録しません。
+     *
+     * @param penColor ペンの色(AARRGGBB)。
+     * @param penSize ペンのサイズ。
+     * @param variableWidth 筆圧と速度に応じて線の太さを変える場合は {@code true}。
+     * @param bgColor 背景色(AARRGGBB)。
+     */
+    public void recordSettings(int penColor, float penSize, boolean variableWidth, int bgColor) {
+        if (mFailed) {
+            return;
+        }
+        try {
+            mOut.writeByte(RECORD_SETTINGS);
+            mOut.writeInt(penColor);
+            mOut.writeFloat(penSize);
+            mOut.writeBoolean(variableWidth);
+            mOut.writeInt(bgColor);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to record settings", e);
+            mFailed = true;
+        }
+    }
+
+    /**
+     * イベントを記録します。書き込みに失敗した場合は、以降のイベントを記録しません。
+     *
+     * @param event イベント。
+     */
+    public void record(MotionEvent event) {
+        if (mFailed) {
+            return;
+        }
+        try {
+            final int pointerCount = event.getPointerCount();
+            final int historySize = event.getHistorySize();
+            mOut.writeByte(RECORD_EVENT);
+            mOut.writeInt(event.getAction());
+            mOut.writeLong(event.getDownTime());
+            mOut.writeInt(pointerCount);
+            mOut.writeInt(historySize);
+            for (int p = 0; p < pointerCount; p++) {
+                mOut.writeInt(event.getPointerId(p));
+            }
+            for (int h = 0; h < historySize; h++) {
+                mOut.writeLong(event.getHistoricalEventTime(h));
+                for (int p = 0; p < pointerCount; p++) {
+                    mOut.writeFloat(event.getHistoricalX(p, h));
+                    mOut.writeFloat(event.getHistoricalY(p, h));
+                    mOut.writeFloat(event.getHistoricalPressure(p, h));
+                }
+            }
+            mOut.writeLong(event.getEventTime());
+            for (int p = 0; p < pointerCount; p++) {
+                mOut.writeFloat(event.getX(p));
+                mOut.writeFloat(event.getY(p));
+                mOut.writeFloat(event.getPressure(p));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to record touch event", e);
+            mFailed = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.simplepaint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.view.MotionEvent;
+
+/**
+ * 負荷試験に使うストロークとタッチイベントを生成するクラスです。
+ *
+ * <p>
+ * 座標は向きを少しずつ変えながら進む乱歩で、画面からはみ出さないように端で折り返します。
+ * 同じシードからは常に同じものを生成するので、結果を比べることができます。
+ * </p>
+ */
+final class WorkloadGenerator {
+
+    /**
+     * タッチイベントの座標の間隔(ミリ秒)。
+     */
+    static final long SAMPLE_INTERVAL_MS = 8L;
+
+    private static final int[] COLORS = {
+            0xff000000, 0xffffffff, 0xffff0000, 0xff00ff00, 0xff0000ff, 0xffffff00,
+            0x80ff00ff, 0x8000ffff
+    };
+
+    private final Random mRandom;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private long mTime = 0L;
+
+    /**
+     * @param seed 乱数のシード。
+     * @param width 座標を生成する範囲の幅。
+     * @param height 座標を生成する範囲の高さ。
+     */
+    WorkloadGenerator(long seed, int width, int height) {
+        super();
+        mRandom = new Random(seed);
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * 確定したストロークを生成します。
+     *
+     * @param strokeCount ストロークの数。
+     * @param pointsPerStroke ストロークあたりの座標の数。
+     * @param variableWidth 太さが変わるストロークにするかどうか。
+     * @return ストロークのリスト。
+     */
+    public List<Stroke> generateStrokes(int strokeCount, int pointsPerStroke,
+            boolean variableWidth) {
+        final List<Stroke> strokes = new ArrayList<Stroke>(strokeCount);
+        final float[] coordinates = new float[pointsPerStroke * 2];
+        final byte[] widths = variableWidth ? new byte[pointsPerStroke] : null;
+        final float[] walk = new float[3];
+        for (int i = 0; i < strokeCount; i++) {
+            startWalk(walk);
+            for (int p = 0; p < pointsPerStroke; p++) {
+                step(walk);
+                coordinates[p * 2] = walk[0];
+                coordinates[p * 2 + 1] = walk[1];
+                if (widths != null) {
+                    widths[p] = Stroke.quantizeWidth(0.3F + 0.7F * mRandom.nextFloat());
+                }
+            }
+            final int color = COLORS[mRandom.nextInt(COLORS.length)];
+            final float size = 2.0F + mRandom.nextInt(30);
+            strokes.add(widths != null ? new Stroke(color, size, coordinates, widths,
+                    pointsPerStroke) : new Stroke(color, size, coordinates, pointsPerStroke));
+        }
+        return strokes;
+    }
+
+    /**
+     * 生成したストロークを {@link PaintView#restore(String)} に渡せるストローク文字列にします。
+     *
+     * @param bgColor 背景色。
+     * @param strokes ストローク。
+     * @return ストローク文字列。
+     */
+    static String toStrokeString(int bgColor, List<Stroke> strokes) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(bgColor).append('\n');
+        Stroke.listToString(sb, strokes);
+        return sb.toString();
+    }
+
+    /**
+     * 複数の指で同時に描く1回分のタッチイベントを生成します。指は順に触れ、一緒に動いてから順に離れます。
+     * 使い終わったイベントは {@link MotionEvent#recycle()} してください。
+     *
+     * @param fingers 指の数(1 から {@link PaintView#MAX_POINTERS})。
+     * @param moves 移動のイベントの数。
+     * @param historySize 移動のイベント1つにまとめる過去の座標の数。
+     * @return タッチイベントのリスト。
+     */
+    public List<MotionEvent> generateGesture(int fingers, int moves, int historySize) {
+        final List<MotionEvent> events = new ArrayList<MotionEvent>(moves + fingers * 2);
+        final float[][] walks = new float[fingers][3];
+        final MotionEvent.PointerProperties[] properties =
+                new MotionEvent.PointerProperties[fingers];
+        final MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[fingers];
+        for (int f = 0; f < fingers; f++) {
+            startWalk(walks[f]);
+            properties[f] = new MotionEvent.PointerProperties();
+            properties[f].id = f;
+            properties[f].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[f] = new MotionEvent.PointerCoords();
+            coords[f].size = 1.0F;
+        }
+        final long downTime = nextTime();
+
+        setCoords(coords, walks, fingers);
+        for (int f = 0; f < fingers; f++) {
+            final int action = f == 0 ? MotionEvent.ACTION_DOWN
+                    : MotionEvent.ACTION_POINTER_DOWN
+                            | (f << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+            events.add(obtain(downTime, f == 0 ? downTime : nextTime(), action, f + 1,
+                    properties, coords));
+        }
+        for (int m = 0; m < moves; m++) {
+            MotionEvent event = null;
+            for (int h = 0; h <= historySize; h++) {
+                for (int f = 0; f < fingers; f++) {
+                    step(walks[f]);
+                }
+                setCoords(coords, walks, fingers);
+                if (event == null) {
+                    event = obtain(downTime, nextTime(), MotionEvent.ACTION_MOVE, fingers,
+                            properties, coords);
+                } else {
+                    event.addBatch(nextTime(), coords, 0);
+                }
+            }
+            events.add(event);
+        }
+        for (int f = fingers - 1; 0 <= f; f--) {
+            final int action = f == 0 ? MotionEvent.ACTION_UP
+                    : MotionEvent.ACTION_POINTER_UP
+                            | (f << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+            events.add(obtain(downTime, nextTime(), action, f + 1, properties, coords));
+        }
+        return events;
+    }
+
+    private static MotionEvent obtain(long downTime, long eventTime, int action,
+            int pointerCount, MotionEvent.PointerProperties[] properties,
+            MotionEvent.PointerCoords[] coords) {
+        return MotionEvent.obtain(downTime, eventTime, action, pointerCount, properties, coords,
+                0, 0, 1.0F, 1.0F, 0, 0, 0, 0);
+    }
+
+    private void setCoords(MotionEvent.PointerCoords[] coords, float[][] walks, int fingers) {
+        for (int f = 0; f < fingers; f++) {
+            coords[f].x = walks[f][0];
+            coords[f].y = walks[f][1];
+            coords[f].pressure = 0.2F + 0.8F * mRandom.nextFloat();
+        }
+    }
+
+    private long nextTime() {
+        mTime += SAMPLE_INTERVAL_MS;
+        return mTime;
+    }
+
+    /**
+     * 乱歩の開始位置と向きを決めます。
+     *
+     * @param walk x座標値, y座標値, 向き(ラジアン)を格納する配列。
+     */
+    private void startWalk(float[] walk) {
+        walk[0] = mRandom.nextFloat() * mWidth;
+        walk[1] = mRandom.nextFloat() * mHeight;
+        walk[2] = (float) (mRandom.nextFloat() * Math.PI * 2);
+    }
+
+    /**
+     * 向きを少し変えて進みます。画面の端では反対向きに折り返します。
+     */
+    private void step(float[] walk) {
+        walk[2] += (float) (mRandom.nextGaussian() * 0.3);
+        final float distance = 2.0F + mRandom.nextFloat() * 6.0F;
+        float x = walk[0] + distance * (float) Math.cos(walk[2]);
+        float y = walk[1] + distance * (float) Math.sin(walk[2]);
+        if (x < 0 || mWidth <= x || y < 0 || mHeight <= y) {
+            walk[2] += (float) Math.PI;
+            x = Math.max(0, Math.min(mWidth - 1, x));
+            y = Math.max(0, Math.min(mHeight - 1, y));
+        }
+        walk[0] = x;
+        walk[1] = y;
+    }
+}
@@ -0,0 +1,450 @@
+package com.example.simplepaint;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * ストロークファイルをまとめて PNG 画像とサムネイルに変換するコマンドラインツールです。
+ *
+ * <p>
+ * 端末から集めたストロークファイルのディレクトリを受け取り、
+ * CPU のコア数だけのスレッドで並列に描画します。同時に処理するファイル数を制限しているので、
+ * ファイルの数が多くても使用するメモリは一定です。ストロークの読み込みには {@link StrokeReader} をそのまま使うので、
+ * どの形式のストロークファイルも変換できます。
+ * </p>
+ * <p>
+ * {@code --svg} を指定すると、画像を描画せずに {@link SvgExporter} でストロークファイルから SVG
+ * へ直接変換します。 SVG はどの大きさにも拡大できるので、サムネイルは作りません。
+ * </p>
+ *
+ * <pre>
+ * javac -encoding UTF-8 -d out src/com/example/simplepaint/Stroke.java \
+ *     src/com/example/simplepaint/StrokeReader.java src/com/example/simplepaint/StrokeWriter.java \
+ *     src/com/example/simplepaint/BlockStrokeWriter.java \
+ *     src/com/example/simplepaint/StrokeBlockIndex.java src/com/example/simplepaint/DrawingMetadata.java \
+ *     src/com/example/simplepaint/CurveFitter.java src/com/example/simplepaint/SvgExporter.java \
+ *     tools/src/com/example/simplepaint/BatchExport.java
+ * java -cp out com.example.simplepaint.BatchExport [options] &lt;input-dir&gt; &lt;output-dir&gt;
+ * </pre>
+ */
+public final class BatchExport {
+
+    private static final String STROKE_SUFFIX = ".stroke";
+
+    private static final String PNG_SUFFIX = ".png";
+
+    private static final String SVG_SUFFIX = ".svg";
+
+    /**
+     * 端末のサムネイルと同じ 150dp を mdpi で換算した大きさ。
+     */
+    private static final int DEFAULT_THUMBNAIL_SIZE = 150;
+
+    /**
+     * 何ファイルごとに進捗を表示するか。
+     */
+    private static final int REPORT_INTERVAL = 100;
+
+    /**
+     * ストロークファイルから求めた画像の幅と高さの上限。壊れた座標や概要が1つあるだけで巨大な画像を作り、
+     * 全スレッドが同時にメモリを使い果たすことがないよう、これを超えるファイルは失敗として扱います。
+     */
+    private static final int MAX_IMAGE_SIZE = 8192;
+
+    private final File mOutputDir;
+
+    private final int mThumbnailSize;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final boolean mSvg;
+
+    private final AtomicInteger mSucceeded = new AtomicInteger();
+
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    private long mStartedNanos;
+
+    private BatchExport(File outputDir, int thumbnailSize, int width, int height, boolean svg) {
+        super();
+        mOutputDir = outputDir;
+        mThumbnailSize = thumbnailSize;
+        mWidth = width;
+        mHeight = height;
+        mSvg = svg;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int thumbnailSize = DEFAULT_THUMBNAIL_SIZE;
+        int width = 0;
+        int height = 0;
+        boolean svg = false;
+        final List<String> paths = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if ("--threads".equals(arg)) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("--thumbnail-size".equals(arg)) {
+                    thumbnailSize = Integer.parseInt(args[++i]);
+                } else if ("--width".equals(arg)) {
+                    width = Integer.parseInt(args[++i]);
+                } else if ("--height".equals(arg)) {
+                    height = Integer.parseInt(args[++i]);
+                } else if ("--svg".equals(arg)) {
+                    svg = true;
+                } else if (arg.startsWith("--")) {
+                    usage("unknown option: " + arg);
+                    return;
+                } else {
+                    paths.add(arg);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            usage("missing option value");
+            return;
+        } catch (NumberFormatException e) {
+            usage("invalid number: " + e.getMessage());
+            return;
+        }
+        if (paths.size() != 2 || threads <= 0) {
+            usage(null);
+            return;
+        }
+
+        final File inputDir = new File(paths.get(0));
+        final File outputDir = new File(paths.get(1));
+        final File[] strokeFiles = inputDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File pathname) {
+                return pathname.isFile() && pathname.getName().endsWith(STROKE_SUFFIX);
+            }
+        });
+        if (strokeFiles == null) {
+            usage("not a directory: " + inputDir.getPath());
+            return;
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            usage("cannot create directory: " + outputDir.getPath());
+            return;
+        }
+
+        final BatchExport export = new BatchExport(outputDir, thumbnailSize, width, height,
+                svg);
+        export.run(strokeFiles, threads);
+    }
+
+    private static void usage(String message) {
+        if (message != null) {
+            System.err.println(message);
+        }
+        System.err.println("usage: BatchExport [--threads N] [--thumbnail-size PX]"
+                + " [--width PX --height PX] [--svg] <input-dir> <output-dir>");
+        System.exit(2);
+    }
+
+    private void run(File[] strokeFiles, int threads) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // 処理待ちのファイルを溜め込まないよう、同時に扱うファイル数を制限する
+        final Semaphore inFlight = new Semaphore(threads * 2);
+
+        mStartedNanos = System.nanoTime();
+        for (final File strokeFile : strokeFiles) {
+            inFlight.acquire();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        export(strokeFile);
+                        mSucceeded.incrementAndGet();
+                    } catch (IOException e) {
+                        mFailed.incrementAndGet();
+                        System.err.println("failed to export " + strokeFile.getPath() + ": "
+                                + e.getMessage());
+                    } catch (RuntimeException e) {
+                        mFailed.incrementAndGet();
+                        System.err.println("failed to export " + strokeFile.getPath() + ": " + e);
+                    } finally {
+                        inFlight.release();
+                        final int processed = mSucceeded.get() + mFailed.get();
+                        if (processed % REPORT_INTERVAL == 0) {
+                            report(processed);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        final double seconds = (System.nanoTime() - mStartedNanos) / 1e9;
+        System.out.println(String.format("exported %d files, %d failed (%.1f files/s)",
+                Integer.valueOf(mSucceeded.get()), Integer.valueOf(mFailed.get()),
+                Double.valueOf(seconds <= 0 ? 0 : strokeFiles.length / seconds)));
+        if (0 < mFailed.get()) {
+            System.exit(1);
+        }
+    }
+
+    private void report(int processed) {
+        final double seconds = (System.nanoTime() - mStartedNanos) / 1e9;
+        System.out.println(String.format("%d files in %.1f s (%.1f files/s)",
+                Integer.valueOf(processed), Double.valueOf(seconds),
+                Double.valueOf(seconds <= 0 ? 0 : processed / seconds)));
+    }
+
+    /**
+     * ストロークファイル1つを画像とサムネイルに変換します。
+     */
+    private void export(File strokeFile) throws IOException {
+        if (mSvg) {
+            exportSvg(strokeFile);
+            return;
+        }
+        final StrokeReader reader = new StrokeReader(strokeFile);
+        final int bgColor;
+        final List<Stroke> strokes = new ArrayList<Stroke>();
+        try {
+            bgColor = reader.readBgColor();
+            for (Stroke stroke = reader.readStroke(); stroke != null; stroke = reader
+                    .readStroke()) {
+                strokes.add(stroke);
+            }
+        } finally {
+            reader.close();
+        }
+
+        int width = mWidth;
+        int height = mHeight;
+        if (width <= 0 || height <= 0) {
+            int[] size = readCanvasSize(strokeFile);
+            if (size == null) {
+                // キャンバスの大きさが保存されていない形式なので、すべてのストロークが収まる大きさにする
+                size = new int[] {
+                        1, 1
+                };
+                for (Stroke stroke : strokes) {
+                    extendSize(size, stroke);
+                }
+                checkImageSize(size);
+            }
+            width = size[0];
+            height = size[1];
+        }
+
+        final BufferedImage image = render(bgColor, strokes, width, height);
+        final String baseName = baseName(strokeFile.getName());
+        ImageIO.write(image, "png", new File(mOutputDir, baseName + PNG_SUFFIX));
+
+        if (0 < mThumbnailSize) {
+            final BufferedImage thumbnail = scale(image, Math.min((float) mThumbnailSize / width,
+                    (float) mThumbnailSize / height));
+            ImageIO.write(thumbnail, "png", new File(mOutputDir, baseName + "-thumbnail"
+                    + PNG_SUFFIX));
+        }
+    }
+
+    /**
+     * ストロークファイル1つを SVG に変換します。ストロークは読み込んだものから順に書き出すので、ファイル全体は読み込みません。
+     */
+    private void exportSvg(File strokeFile) throws IOException {
+        int width = mWidth;
+        int height = mHeight;
+        if (width <= 0 || height <= 0) {
+            int[] size = readCanvasSize(strokeFile);
+            if (size == null) {
+                // キャンバスの大きさが保存されていない形式なので、一度読み流してすべてのストロークが収まる大きさを求める
+                size = new int[] {
+                        1, 1
+                };
+                final StrokeReader reader = new StrokeReader(strokeFile);
+                try {
+                    reader.readBgColor();
+                    for (Stroke stroke = reader.readStroke(); stroke != null; stroke = reader
+                            .readStroke()) {
+                        extendSize(size, stroke);
+                    }
+                } finally {
+                    reader.close();
+                }
+                checkImageSize(size);
+            }
+            width = size[0];
+            height = size[1];
+        }
+        final File svgFile = new File(mOutputDir, baseName(strokeFile.getName()) + SVG_SUFFIX);
+        SvgExporter.export(strokeFile, width, height, new BufferedOutputStream(
+                new FileOutputStream(svgFile)));
+    }
+
+    /**
+     * ストロークファイルの概要( {@link DrawingMetadata} )に記録されたキャンバスの大きさを返します。
+     *
+     * @return 幅と高さ。概要を持たない形式(バージョン1のバイナリ形式やテキスト形式)の場合は {@code null}。
+     */
+    private static int[] readCanvasSize(File strokeFile) throws IOException {
+        final DrawingMetadata metadata = DrawingMetadata.read(strokeFile);
+        if (metadata == null || metadata.getCanvasWidth() <= 0
+                || metadata.getCanvasHeight() <= 0) {
+            return null;
+        }
+        final int[] size = {
+                metadata.getCanvasWidth(), metadata.getCanvasHeight()
+        };
+        checkImageSize(size);
+        return size;
+    }
+
+    /**
+     * 幅と高さを、ストロークが太さも含めて収まる大きさに広げます。
+     *
+     * @param size 幅と高さ。
+     */
+    private static void extendSize(int[] size, Stroke stroke) {
+        final float margin = stroke.mSize / 2;
+        final float[] coordinates = stroke.getCoordinates();
+        for (int index = 0; index < coordinates.length - 1; index += 2) {
+            size[0] = Math.max(size[0], (int) Math.ceil(coordinates[index] + margin));
+            size[1] = Math.max(size[1], (int) Math.ceil(coordinates[index + 1] + margin));
+        }
+    }
+
+    private static void checkImageSize(int[] size) throws IOException {
+        if (MAX_IMAGE_SIZE < size[0] || MAX_IMAGE_SIZE < size[1]) {
+            throw new IOException("image size out of range: " + size[0] + "x" + size[1]
+                    + " exceeds " + MAX_IMAGE_SIZE + "x" + MAX_IMAGE_SIZE);
+        }
+    }
+
+    /**
+     * {@code thumbnail-<時刻>.png.stroke} から {@code thumbnail-<時刻>} を取り出します。
+     */
+    private static String baseName(String strokeFileName) {
+        String name = strokeFileName.substring(0,
+                strokeFileName.length() - STROKE_SUFFIX.length());
+        if (name.endsWith(PNG_SUFFIX)) {
+            name = name.substring(0, name.length() - PNG_SUFFIX.length());
+        }
+        return name;
+    }
+
+    /**
+     * ストロークを描画します。{@link PaintView} のオフスクリーンへの描画と同じ方法で線をなめらかにします。
+     */
+    static BufferedImage render(int bgColor, List<Stroke> strokes, int width,
+            int height) {
+        final BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+                    RenderingHints.VALUE_STROKE_PURE);
+            g.setColor(new Color(bgColor, true));
+            g.fillRect(0, 0, width, height);
+
+            for (Stroke stroke : strokes) {
+                g.setColor(new Color(stroke.mColor, true));
+                if (stroke.mWidths != null) {
+                    g.fill(outlineToPath(stroke.getOutline()));
+                    continue;
+                }
+                g.setStroke(new BasicStroke(stroke.mSize, BasicStroke.CAP_ROUND,
+                        BasicStroke.JOIN_ROUND));
+                g.draw(stroke.mCurves ? curvesToPath(stroke.getCoordinates()) : toPath(stroke
+                        .getCoordinates()));
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static Path2D.Float toPath(float[] coordinates) {
+        final Path2D.Float path = new Path2D.Float();
+        float prevX = 0f;
+        float prevY = 0f;
+        for (int index = 0; index < coordinates.length - 1; index += 2) {
+            final float x = coordinates[index];
+            final float y = coordinates[index + 1];
+            if (index == 0) {
+                // first coordinate
+                path.moveTo(x, y);
+                path.lineTo(x + 1, y);
+                prevX = x;
+                prevY = y;
+            } else if (index == coordinates.length - 2) {
+                // last coordinate
+                path.moveTo(x, y);
+            } else {
+                path.quadTo(prevX, prevY, (prevX + x) / 2, (prevY + y) / 2);
+                prevX = x;
+                prevY = y;
+            }
+        }
+        return path;
+    }
+
+    private static Path2D.Float curvesToPath(float[] curves) {
+        final Path2D.Float path = new Path2D.Float();
+        path.moveTo(curves[0], curves[1]);
+        for (int index = 2; index < curves.length - 5; index += 6) {
+            path.curveTo(curves[index], curves[index + 1], curves[index + 2],
+                    curves[index + 3], curves[index + 4], curves[index + 5]);
+        }
+        return path;
+    }
+
+    private static Path2D.Float outlineToPath(float[] outline) {
+        final Path2D.Float path = new Path2D.Float();
+        if (outline.length < 2) {
+            return path;
+        }
+        path.moveTo(outline[0], outline[1]);
+        for (int index = 2; index < outline.length - 1; index += 2) {
+            path.lineTo(outline[index], outline[index + 1]);
+        }
+        path.closePath();
+        return path;
+    }
+
+    static BufferedImage scale(BufferedImage image, float scale) {
+        final int width = Math.max(1, (int) (image.getWidth() * scale));
+        final int height = Math.max(1, (int) (image.getHeight() * scale));
+        final BufferedImage scaled = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+}
@@ -0,0 +1,499 @@
+package com.example.simplepaint;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * {@link PaintView#save()} の各段階にかかる時間を、ストロークの数を変えながら計測するコマンドラインツールです。
+ *
+ * <p>
+ * 保存は、概要とハッシュ値の集計( {@link DrawingFiles#createMetadata} )、読み込んだファイルの背景色の更新
+ * ( {@code updateSavedStrokeFile} )、保存済みの同じ画の検索( {@link DrawingFiles#findSavedCopy} )、
+ * ファイル名の決定( {@link FileNames} )、サムネイルの縮小と PNG への書き出し( {@link PngEncoder} )、
+ * ストロークファイルの書き出しと索引の更新( {@link DrawingFiles#writeStrokeFile} 、 {@link SavedDrawingIndex} )
+ * からなります。このツールはそれぞれを順に実行し、段階ごとの時間と、すべてを続けて行った時間( {@code total} )の
+ * 中央値、最小値、最大値を CSV に書き出します。1回の保存でこれらがすべて行われるわけではないので、
+ * {@code total} は保存にかかる時間の上限の目安です。
+ * </p>
+ * <p>
+ * 背景色の更新と検索は、 {@code --saved} 個の画を保存したディレクトリで行います。背景色の更新は、
+ * 前の回に保存したファイルを読み込んで背景色だけを変えたものとして毎回行い、検索は必ず見つかる場合を計測します。
+ * 端末の {@code Canvas} の代わりに {@link BatchExport} と同じ Java2D で描くので、
+ * サムネイルの縮小にかかる時間は端末とは異なります。オフスクリーンへの描画は保存の前に済んでいるので計測しません。
+ * </p>
+ * <p>
+ * {@code --baseline} に以前の結果の CSV を渡すと、最小値が基準より {@code --tolerance} の割合
+ * (かつ {@link #MIN_REGRESSION_MILLIS} ミリ秒)を超えて遅くなった段階を表示し、終了コード 1 で終了します。
+ * 中央値や最大値と違い、最小値は GC やほかのプロセスの影響をほとんど受けないので、回数が少なくても安定します。
+ * {@code --max-save-ms} を渡すと、 {@code total} の中央値がその時間を超えた場合も終了コード 1 で終了します。
+ * </p>
+ *
+ * <pre>
+ * javac -encoding UTF-8 -d out src/com/example/simplepaint/Stroke.java \
+ *     src/com/example/simplepaint/StrokeReader.java src/com/example/simplepaint/StrokeWriter.java \
+ *     src/com/example/simplepaint/BlockStrokeWriter.java \
+ *     src/com/example/simplepaint/StrokeBlockIndex.java src/com/example/simplepaint/DrawingMetadata.java \
+ *     src/com/example/simplepaint/CurveFitter.java src/com/example/simplepaint/PngEncoder.java \
+ *     src/com/example/simplepaint/FileNames.java src/com/example/simplepaint/DrawingFiles.java \
+ *     src/com/example/simplepaint/SavedDrawingIndex.java \
+ *     tools/src/com/example/simplepaint/BatchExport.java \
+ *     tools/src/com/example/simplepaint/SaveBenchmark.java
+ * java -cp out com.example.simplepaint.SaveBenchmark [--sizes N,N,...] [--iterations N] \
+ *     [--saved N] [--output results.csv] [--baseline baseline.csv] [--tolerance 0.5] \
+ *     [--max-save-ms MS]
+ * </pre>
+ */
+public final class SaveBenchmark {
+
+    private static final String[] STAGES = {
+            "metadata", "update", "lookup", "filename", "thumbnail", "strokes", "total"
+    };
+
+    private static final int[] DEFAULT_SIZES = {
+            100, 500, 2000, 8000
+    };
+
+    private static final int DEFAULT_ITERATIONS = 15;
+
+    /**
+     * ディレクトリにあらかじめ保存しておく画の数。
+     */
+    private static final int DEFAULT_SAVED_COUNT = 500;
+
+    /**
+     * あらかじめ保存しておく画のストロークの数。
+     */
+    private static final int SAVED_STROKE_COUNT = 20;
+
+    /**
+     * 計測する前に、すべての大きさについて捨てる回数。 JIT のコンパイルが済むのを待つ。
+     * 大きさごとに捨てるだけでは、最初の大きさを計測するときにまだ済んでいない。
+     */
+    private static final int WARMUP_ITERATIONS = 5;
+
+    /**
+     * 基準からの遅れの許容値。同じマシンでも、 JIT のコンパイルが済んだあとの最小値が回によって 1.5 倍ほどまでぶれる。
+     */
+    private static final double DEFAULT_TOLERANCE = 0.5;
+
+    /**
+     * これより小さい差は、割合が大きくても誤差とみなす(ミリ秒)。
+     * 数ミリ秒で終わる段階は割合で見ると大きくぶれるので、それらが誤って失敗にならない大きさにしておく。
+     */
+    private static final double MIN_REGRESSION_MILLIS = 5.0;
+
+    private static final int WIDTH = 1280;
+
+    private static final int HEIGHT = 800;
+
+    /**
+     * 端末のサムネイルと同じ 150dp を mdpi で換算した大きさ。
+     */
+    private static final int THUMBNAIL_SIZE = 150;
+
+    private static final int BG_COLOR = 0xffffffff;
+
+    /**
+     * 背景色の更新で、 {@link #BG_COLOR} と交互に使う背景色。
+     */
+    private static final int OTHER_BG_COLOR = 0xffffff45;
+
+    private SaveBenchmark() {
+        // not instantiable
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        int[] sizes = DEFAULT_SIZES;
+        int iterations = DEFAULT_ITERATIONS;
+        int savedCount = DEFAULT_SAVED_COUNT;
+        File output = new File("save-benchmark.csv");
+        File baseline = null;
+        double tolerance = DEFAULT_TOLERANCE;
+        double maxSaveMillis = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if ("--sizes".equals(arg)) {
+                    final String[] values = args[++i].split(",");
+                    sizes = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        sizes[j] = Integer.parseInt(values[j].trim());
+                    }
+                } else if ("--iterations".equals(arg)) {
+                    iterations = Integer.parseInt(args[++i]);
+                } else if ("--saved".equals(arg)) {
+                    savedCount = Integer.parseInt(args[++i]);
+                } else if ("--output".equals(arg)) {
+                    output = new File(args[++i]);
+                } else if ("--baseline".equals(arg)) {
+                    baseline = new File(args[++i]);
+                } else if ("--tolerance".equals(arg)) {
+                    tolerance = Double.parseDouble(args[++i]);
+                } else if ("--max-save-ms".equals(arg)) {
+                    maxSaveMillis = Double.parseDouble(args[++i]);
+                } else {
+                    usage("unknown option: " + arg);
+                    return;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            usage("missing option value");
+            return;
+        } catch (NumberFormatException e) {
+            usage("invalid number: " + e.getMessage());
+            return;
+        }
+        if (iterations <= 0 || savedCount < 0 || tolerance < 0) {
+            usage(null);
+            return;
+        }
+
+        // 基準は結果を書き出す前に読む。同じファイルを指定されても比べられるように
+        final Map<String, Double> expected = baseline == null ? null : readResults(baseline);
+
+        final File dir = File.createTempFile("save-benchmark", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("cannot create directory: " + dir.getPath());
+        }
+        final Map<String, double[]> results = new HashMap<String, double[]>();
+        try {
+            final SavedDrawingIndex index = new SavedDrawingIndex(dir);
+            prepareSavedDrawings(savedCount, dir, index);
+            for (int strokeCount : sizes) {
+                measure(strokeCount, WARMUP_ITERATIONS, dir, index, null);
+            }
+            for (int strokeCount : sizes) {
+                measure(strokeCount, iterations, dir, index, results);
+            }
+        } finally {
+            deleteAll(dir);
+        }
+        writeResults(output, sizes, results);
+        System.out.println("results written to " + output.getPath());
+
+        boolean failed = false;
+        for (int strokeCount : sizes) {
+            for (String stage : STAGES) {
+                final String key = key(strokeCount, stage);
+                final double median = results.get(key)[0];
+                final double min = results.get(key)[1];
+                if (expected != null && expected.containsKey(key)) {
+                    final double base = expected.get(key).doubleValue();
+                    if (base * (1 + tolerance) < min && MIN_REGRESSION_MILLIS < min - base) {
+                        System.err.println(String.format(Locale.US,
+                                "regression: %s with %d strokes took at least %.2f ms"
+                                        + " (baseline %.2f ms)", stage,
+                                Integer.valueOf(strokeCount), Double.valueOf(min),
+                                Double.valueOf(base)));
+                        failed = true;
+                    }
+                }
+                if (0 < maxSaveMillis && "total".equals(stage) && maxSaveMillis < median) {
+                    System.err.println(String.format(Locale.US,
+                            "save with %d strokes took %.2f ms (limit %.2f ms)",
+                            Integer.valueOf(strokeCount), Double.valueOf(median),
+                            Double.valueOf(maxSaveMillis)));
+                    failed = true;
+                }
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static void usage(String message) {
+        if (message != null) {
+            System.err.println(message);
+        }
+        System.err.println("usage: SaveBenchmark [--sizes N,N,...] [--iterations N] [--saved N]"
+                + " [--output FILE] [--baseline FILE] [--tolerance RATIO] [--max-save-ms MS]");
+        System.exit(2);
+    }
+
+    /**
+     * 背景色の更新と検索を行うディレクトリに、 {@code savedCount} 個の画を保存して索引に加えます。
+     * 検索にはサムネイルがあることしか使わないので、サムネイルは空のファイルにします。
+     */
+    private static void prepareSavedDrawings(int savedCount, File dir, SavedDrawingIndex index)
+            throws IOException {
+        for (int i = 0; i < savedCount; i++) {
+            final List<Stroke> strokes = randomDrawing(new Random(i), SAVED_STROKE_COUNT);
+            final DrawingMetadata metadata = DrawingFiles.createMetadata(strokes, WIDTH, HEIGHT,
+                    System.currentTimeMillis());
+            final File thumbnailFile = new File(dir, "saved-" + i + ".png");
+            new FileOutputStream(thumbnailFile).close();
+            final File strokeFile = DrawingFiles.toStrokeFile(thumbnailFile);
+            DrawingFiles.writeStrokeFile(strokeFile, BG_COLOR, metadata, strokes);
+            index.put(metadata.getContentHashString(), strokeFile);
+        }
+    }
+
+    /**
+     * ストロークの数が {@code strokeCount} の画を繰り返し保存し、段階ごとの中央値、最小値、最大値(ミリ秒)を
+     * {@code results} に格納します。
+     *
+     * @param results 結果を格納する先。 {@code null} の場合は結果を捨てます。
+     */
+    private static void measure(int strokeCount, int iterations, File dir,
+            SavedDrawingIndex index, Map<String, double[]> results) throws IOException {
+        final List<Stroke> strokes = randomDrawing(new Random(1975L + strokeCount), strokeCount);
+        // 端末ではオフスクリーンは保存の前に描かれているので、計測しない
+        final BufferedImage offScreen = BatchExport.render(0, strokes, WIDTH, HEIGHT);
+        final float scale = Math.min((float) THUMBNAIL_SIZE / WIDTH,
+                (float) THUMBNAIL_SIZE / HEIGHT);
+        final long createdMillis = System.currentTimeMillis();
+
+        // 背景色の更新と検索の対象になる、前の回に保存したファイル
+        File saved = save(strokes, DrawingFiles.createMetadata(strokes, WIDTH, HEIGHT,
+                createdMillis), BG_COLOR, BatchExport.scale(offScreen, scale), dir, index);
+
+        final long[][] nanos = new long[STAGES.length][iterations];
+        for (int i = 0; i < iterations; i++) {
+            // 毎回背景色を変えるので、背景色の更新では必ずサムネイルと背景色を書き換える
+            final int bgColor = (i & 1) == 0 ? OTHER_BG_COLOR : BG_COLOR;
+
+            final long started = System.nanoTime();
+            final DrawingMetadata metadata = DrawingFiles.createMetadata(strokes, WIDTH, HEIGHT,
+                    createdMillis);
+            final long metadataDone = System.nanoTime();
+
+            updateSavedStrokeFile(saved, metadata, bgColor, BatchExport.scale(offScreen, scale),
+                    index);
+            final long updateDone = System.nanoTime();
+
+            if (!saved.equals(DrawingFiles.findSavedCopy(index, metadata, bgColor))) {
+                throw new IllegalStateException("saved copy not found: " + saved.getPath());
+            }
+            final long lookupDone = System.nanoTime();
+
+            final File thumbnailFile = FileNames.createForNew(dir, "thumbnail-", "png");
+            final long filenameDone = System.nanoTime();
+
+            writeThumbnail(BatchExport.scale(offScreen, scale), bgColor, thumbnailFile);
+            final long thumbnailDone = System.nanoTime();
+
+            saved = DrawingFiles.toStrokeFile(thumbnailFile);
+            DrawingFiles.writeStrokeFile(saved, bgColor, metadata, strokes);
+            index.put(metadata.getContentHashString(), saved);
+            final long strokesDone = System.nanoTime();
+
+            nanos[0][i] = metadataDone - started;
+            nanos[1][i] = updateDone - metadataDone;
+            nanos[2][i] = lookupDone - updateDone;
+            nanos[3][i] = filenameDone - lookupDone;
+            nanos[4][i] = thumbnailDone - filenameDone;
+            nanos[5][i] = strokesDone - thumbnailDone;
+            nanos[6][i] = strokesDone - started;
+        }
+        if (results == null) {
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%6d strokes:", Integer.valueOf(strokeCount)));
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            final long[] times = nanos[stage];
+            Arrays.sort(times);
+            final double median = median(times) / 1e6;
+            final double min = times[0] / 1e6;
+            final double max = times[times.length - 1] / 1e6;
+            results.put(key(strokeCount, STAGES[stage]), new double[] {
+                    median, min, max
+            });
+            sb.append(String.format(Locale.US, " %s %.2f ms", STAGES[stage],
+                    Double.valueOf(median)));
+        }
+        System.out.println(sb);
+    }
+
+    /**
+     * 計測の対象にならない保存です。サムネイルとストロークファイルを書き出し、索引に加えます。
+     *
+     * @return ストロークファイル。
+     */
+    private static File save(List<Stroke> strokes, DrawingMetadata metadata, int bgColor,
+            BufferedImage thumbnail, File dir, SavedDrawingIndex index) throws IOException {
+        final File thumbnailFile = FileNames.createForNew(dir, "thumbnail-", "png");
+        writeThumbnail(thumbnail, bgColor, thumbnailFile);
+        final File strokeFile = DrawingFiles.toStrokeFile(thumbnailFile);
+        DrawingFiles.writeStrokeFile(strokeFile, bgColor, metadata, strokes);
+        index.put(metadata.getContentHashString(), strokeFile);
+        return strokeFile;
+    }
+
+    /**
+     * {@code PaintView.Saving#updateSavedStrokeFile} と同じく、ストロークが同じであれば背景色を合わせ、
+     * サムネイルを書き出し直します。
+     */
+    private static void updateSavedStrokeFile(File strokeFile, DrawingMetadata metadata,
+            int bgColor, BufferedImage thumbnail, SavedDrawingIndex index) throws IOException {
+        final DrawingMetadata saved = DrawingFiles.readIfSameContent(strokeFile, metadata);
+        if (saved == null) {
+            throw new IllegalStateException("content differs: " + strokeFile.getPath());
+        }
+        if (saved.getBgColor() != bgColor) {
+            writeThumbnail(thumbnail, bgColor, DrawingFiles.toThumbnailFile(strokeFile));
+            DrawingMetadata.writeBgColor(strokeFile, bgColor, System.currentTimeMillis());
+        }
+        index.put(saved.getContentHashString(), strokeFile);
+    }
+
+    private static double median(long[] sorted) {
+        final int middle = sorted.length / 2;
+        if (sorted.length % 2 == 1) {
+            return sorted[middle];
+        }
+        return (sorted[middle - 1] + sorted[middle]) / 2.0;
+    }
+
+    /**
+     * 指でなぞったような軌跡を並べた画を作ります。 {@link PaintView} と同じく、太さが変わらないストロークは曲線に近似します。
+     */
+    private static List<Stroke> randomDrawing(Random random, int strokeCount) {
+        final List<Stroke> strokes = new ArrayList<Stroke>(strokeCount);
+        for (int i = 0; i < strokeCount; i++) {
+            final int n = 2 + random.nextInt(150);
+            final float[] coordinates = new float[n * 2];
+            float x = random.nextFloat() * WIDTH;
+            float y = random.nextFloat() * HEIGHT;
+            float dx = 0F;
+            float dy = 0F;
+            for (int j = 0; j < n; j++) {
+                dx = dx * 0.9F + (random.nextFloat() - 0.5F) * 4;
+                dy = dy * 0.9F + (random.nextFloat() - 0.5F) * 4;
+                x += dx;
+                y += dy;
+                coordinates[j * 2] = x;
+                coordinates[j * 2 + 1] = y;
+            }
+            final int color = 0xff000000 | random.nextInt(0x1000000);
+            final float size = 1 + random.nextInt(30);
+            if (random.nextInt(4) == 0) {
+                final byte[] widths = new byte[n];
+                for (int j = 0; j < n; j++) {
+                    widths[j] = Stroke.quantizeWidth(random.nextFloat());
+                }
+                strokes.add(new Stroke(color, size, coordinates, widths, n));
+            } else {
+                strokes.add(Stroke.fitCurves(color, size, coordinates, n,
+                        CurveFitter.DEFAULT_TOLERANCE));
+            }
+        }
+        return strokes;
+    }
+
+    /**
+     * {@code PaintView.Saving#writeThumbnail(File)} と同じく、縮小した画像を背景色と合成しながら書き出します。
+     */
+    private static void writeThumbnail(BufferedImage thumbnail, int bgColor, File file)
+            throws IOException {
+        final int width = thumbnail.getWidth();
+        final PngEncoder encoder = new PngEncoder(new BufferedOutputStream(new FileOutputStream(
+                file)), width, thumbnail.getHeight(), bgColor);
+        try {
+            final int[] row = new int[width];
+            for (int y = 0; y < thumbnail.getHeight(); y++) {
+                thumbnail.getRGB(0, y, width, 1, row, 0, width);
+                encoder.writeRow(row);
+            }
+        } finally {
+            encoder.close();
+        }
+    }
+
+    private static String key(int strokeCount, String stage) {
+        return strokeCount + "/" + stage;
+    }
+
+    /**
+     * 結果を {@code strokes,stage,median_ms,min_ms,max_ms} の CSV で書き出します。
+     */
+    private static void writeResults(File file, int[] sizes, Map<String, double[]> results)
+            throws IOException {
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+                file), "UTF-8"));
+        try {
+            out.println("strokes,stage,median_ms,min_ms,max_ms");
+            for (int strokeCount : sizes) {
+                for (String stage : STAGES) {
+                    final double[] result = results.get(key(strokeCount, stage));
+                    out.println(String.format(Locale.US, "%d,%s,%.3f,%.3f,%.3f",
+                            Integer.valueOf(strokeCount), stage, Double.valueOf(result[0]),
+                            Double.valueOf(result[1]), Double.valueOf(result[2])));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("failed to write " + file.getPath());
+        }
+    }
+
+    /**
+     * {@link #writeResults(File, int[], Map)} で書き出した CSV から最小値を読み込みます。
+     */
+    private static Map<String, Double> readResults(File file) throws IOException {
+        final Map<String, Double> results = new HashMap<String, Double>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(
+                file), "UTF-8"));
+        try {
+            // 1行目は見出し。最小値を記録していない古い形式は比べられない
+            final String header = in.readLine();
+            final int column = header == null ? -1 : Arrays.asList(header.split(",")).indexOf(
+                    "min_ms");
+            if (column < 0) {
+                throw new IOException("no min_ms column in " + file.getPath()
+                        + "; run the benchmark again to create a new baseline");
+            }
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                final String[] fields = line.split(",");
+                if (fields.length <= column) {
+                    continue;
+                }
+                try {
+                    results.put(key(Integer.parseInt(fields[0]), fields[1]),
+                            Double.valueOf(fields[column]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid line in " + file.getPath() + ": " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    private static void deleteAll(File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                // 索引のディレクトリも消す
+                if (file.isDirectory()) {
+                    deleteAll(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,402 @@
+package com.example.simplepaint;
+
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ストロークの座標の量子化と、バイナリ形式のストロークファイルを検証・計測するコマンドラインツールです。
+ *
+ * <p>
+ * 乱数で作ったストロークについて、量子化の誤差が {@link Stroke#MAX_QUANTIZATION_ERROR} 以下であること、
+ * バイナリ形式とテキスト形式のどちらを経由しても同じ座標に戻ることを確かめ、テキスト形式と比べたファイルの大きさと
+ * 読み込みの速さ、 float 配列と比べたメモリ上の大きさを表示します。ブロックに圧縮した形式についても、
+ * 大きさと、先頭から順に読む場合と索引を使って並列に展開する場合の読み込みの速さを表示します。
+ * 太さが変わらないストロークを3次ベジェ曲線に近似した場合の、パスの要素の数とファイルの大きさも表示します。
+ * 曲線の近似は、手の震えのような細かい揺れを含む軌跡と、なめらかな軌跡の2通りで計測します。なめらかな軌跡で
+ * パスの要素の数が {@link #MIN_SMOOTH_ELEMENT_RATIO} 分の1以下に、座標の大きさが {@link #MAX_SMOOTH_PACKED_RATIO}
+ * 以下にならない場合は失敗とします。
+ * 検証に失敗した場合は終了コード 1 で終了します。
+ * </p>
+ *
+ * <pre>
+ * javac -encoding UTF-8 -d out src/com/example/simplepaint/Stroke.java \
+ *     src/com/example/simplepaint/StrokeReader.java src/com/example/simplepaint/StrokeWriter.java \
+ *     src/com/example/simplepaint/BlockStrokeWriter.java \
+ *     src/com/example/simplepaint/StrokeBlockIndex.java src/com/example/simplepaint/DrawingMetadata.java \
+ *     src/com/example/simplepaint/CurveFitter.java \
+ *     tools/src/com/example/simplepaint/StrokeFormatBenchmark.java
+ * java -cp out com.example.simplepaint.StrokeFormatBenchmark [strokes] [iterations]
+ * </pre>
+ */
+public final class StrokeFormatBenchmark {
+
+    private static final int DEFAULT_STROKES = 2000;
+
+    private static final int DEFAULT_ITERATIONS = 20;
+
+    private static final int BG_COLOR = 0xffffffff;
+
+    /**
+     * なめらかな軌跡を曲線に近似したときに、パスの要素の数が少なくともこの比率で減ること。
+     */
+    private static final double MIN_SMOOTH_ELEMENT_RATIO = 2.5;
+
+    /**
+     * なめらかな軌跡を曲線に近似したときの、符号化した座標の大きさの上限(近似前に対する比率)。
+     */
+    private static final double MAX_SMOOTH_PACKED_RATIO = 0.6;
+
+    private StrokeFormatBenchmark() {
+        // not instantiable
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException,
+            ExecutionException {
+        final int strokeCount = 0 < args.length ? Integer.parseInt(args[0]) : DEFAULT_STROKES;
+        final int iterations = 1 < args.length ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+        final Random random = new Random(1975L);
+        final List<float[]> originals = new ArrayList<float[]>(strokeCount);
+        final List<Stroke> strokes = new ArrayList<Stroke>(strokeCount);
+        long floatBytes = 0;
+        long packedBytes = 0;
+        for (int i = 0; i < strokeCount; i++) {
+            final float[] coordinates = randomWalk(random);
+            final int n = coordinates.length / 2;
+            byte[] widths = null;
+            if (random.nextBoolean()) {
+                widths = new byte[n];
+                for (int j = 0; j < n; j++) {
+                    widths[j] = Stroke.quantizeWidth(random.nextFloat());
+                }
+            }
+            originals.add(coordinates);
+            strokes.add(new Stroke(random.nextInt(), 1 + random.nextInt(30), coordinates,
+                    widths, n));
+            floatBytes += coordinates.length * 4;
+            packedBytes += strokes.get(i).mPackedCoordinates.length;
+        }
+
+        // メモリ上の表現の誤差
+        float maxError = 0F;
+        for (int i = 0; i < strokeCount; i++) {
+            final float[] original = originals.get(i);
+            final float[] decoded = strokes.get(i).getCoordinates();
+            for (int j = 0; j < original.length; j++) {
+                maxError = Math.max(maxError, Math.abs(original[j] - decoded[j]));
+            }
+        }
+
+        final byte[] text = toText(strokes);
+        final byte[] binary = toBinary(strokes);
+
+        // ファイルを経由しても座標が変わらないこと
+        final boolean textMatches = sameStrokes(strokes, read(text));
+        final boolean binaryMatches = sameStrokes(strokes, read(binary));
+
+        final File blockFile = File.createTempFile("strokes", ".stroke");
+        blockFile.deleteOnExit();
+        writeBlocks(strokes, blockFile);
+        final StrokeBlockIndex index = StrokeBlockIndex.read(blockFile);
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final boolean blocksMatch = sameStrokes(strokes, read(blockFile))
+                && sameStrokes(strokes, readParallel(index, executor));
+
+        // 太さが変わらないストロークを曲線に近似する
+        final List<Stroke> fitted = new ArrayList<Stroke>(strokeCount);
+        long pathElements = 0;
+        long fittedPathElements = 0;
+        for (int i = 0; i < strokeCount; i++) {
+            final Stroke stroke = strokes.get(i);
+            final float[] original = originals.get(i);
+            final Stroke fittedStroke = stroke.mWidths != null ? stroke : Stroke.fitCurves(
+                    stroke.mColor, stroke.mSize, original, original.length / 2,
+                    CurveFitter.DEFAULT_TOLERANCE);
+            fitted.add(fittedStroke);
+            if (stroke.mWidths == null) {
+                pathElements += stroke.mPointCount;
+                fittedPathElements += fittedStroke.mCurves ? (fittedStroke.mPointCount - 1) / 3
+                        + 1 : fittedStroke.mPointCount;
+            }
+        }
+        final byte[] fittedBinary = toBinary(fitted);
+        final boolean fittedMatches = sameStrokes(fitted, read(fittedBinary))
+                && sameStrokes(fitted, read(toText(fitted)));
+
+        // なめらかな軌跡を曲線に近似する
+        final List<Stroke> smoothFitted = new ArrayList<Stroke>(strokeCount);
+        long smoothElements = 0;
+        long smoothFittedElements = 0;
+        long smoothPacked = 0;
+        long smoothFittedPacked = 0;
+        for (int i = 0; i < strokeCount; i++) {
+            final float[] coordinates = smoothWalk(random);
+            final int n = coordinates.length / 2;
+            final Stroke stroke = new Stroke(BG_COLOR, 1 + random.nextInt(30), coordinates, n);
+            final Stroke fittedStroke = Stroke.fitCurves(stroke.mColor, stroke.mSize,
+                    coordinates, n, CurveFitter.DEFAULT_TOLERANCE);
+            smoothFitted.add(fittedStroke);
+            smoothElements += stroke.mPointCount;
+            smoothFittedElements += fittedStroke.mCurves ? (fittedStroke.mPointCount - 1) / 3 + 1
+                    : fittedStroke.mPointCount;
+            smoothPacked += stroke.mPackedCoordinates.length;
+            smoothFittedPacked += fittedStroke.mPackedCoordinates.length;
+        }
+        final boolean smoothFittedMatches = sameStrokes(smoothFitted,
+                read(toBinary(smoothFitted)));
+        final double smoothElementRatio = (double) smoothElements / smoothFittedElements;
+        final double smoothPackedRatio = (double) smoothFittedPacked / smoothPacked;
+
+        // 読み込みの速さ。1回目は JIT のウォームアップとして捨てる
+        read(text);
+        read(binary);
+        final long textNanos = timeReads(text, iterations);
+        final long binaryNanos = timeReads(binary, iterations);
+        long started = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            read(blockFile);
+        }
+        final long blockNanos = (System.nanoTime() - started) / iterations;
+        started = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            readParallel(index, executor);
+        }
+        final long parallelNanos = (System.nanoTime() - started) / iterations;
+        executor.shutdown();
+
+        System.out.println(String.format("strokes: %d, points: %d", Integer.valueOf(strokeCount),
+                Long.valueOf(floatBytes / 8)));
+        System.out.println(String.format("max quantization error: %.6f px (bound %.6f px)",
+                Float.valueOf(maxError), Float.valueOf(Stroke.MAX_QUANTIZATION_ERROR)));
+        System.out.println(String.format("in memory: float[] %d bytes, packed %d bytes (%.1f%%)",
+                Long.valueOf(floatBytes), Long.valueOf(packedBytes),
+                Double.valueOf(100.0 * packedBytes / floatBytes)));
+        System.out.println(String.format("on disk: text %d bytes, binary %d bytes (%.1f%%)",
+                Integer.valueOf(text.length), Integer.valueOf(binary.length),
+                Double.valueOf(100.0 * binary.length / text.length)));
+        System.out.println(String.format("decode: text %.2f ms, binary %.2f ms (%.1fx)",
+                Double.valueOf(textNanos / 1e6), Double.valueOf(binaryNanos / 1e6),
+                Double.valueOf((double) textNanos / binaryNanos)));
+        System.out.println(String.format("blocks: %d blocks, %d bytes (%.1f%% of binary)",
+                Integer.valueOf(index.getBlockCount()), Long.valueOf(blockFile.length()),
+                Double.valueOf(100.0 * blockFile.length() / binary.length)));
+        System.out.println(String.format(
+                "decode blocks: sequential %.2f ms, parallel on %d threads %.2f ms (%.1fx)",
+                Double.valueOf(blockNanos / 1e6), Integer.valueOf(threads),
+                Double.valueOf(parallelNanos / 1e6),
+                Double.valueOf((double) blockNanos / parallelNanos)));
+
+        System.out.println(String.format(
+                "curves (tolerance %.2f px): path elements %d -> %d, binary %d bytes (%.1f%%)",
+                Float.valueOf(CurveFitter.DEFAULT_TOLERANCE), Long.valueOf(pathElements),
+                Long.valueOf(fittedPathElements), Integer.valueOf(fittedBinary.length),
+                Double.valueOf(100.0 * fittedBinary.length / binary.length)));
+        System.out.println(String.format(
+                "curves on smooth walks: path elements %d -> %d (%.1fx fewer),"
+                        + " packed %d -> %d bytes (%.1f%%)",
+                Long.valueOf(smoothElements), Long.valueOf(smoothFittedElements),
+                Double.valueOf(smoothElementRatio), Long.valueOf(smoothPacked),
+                Long.valueOf(smoothFittedPacked), Double.valueOf(100.0 * smoothPackedRatio)));
+
+        boolean failed = false;
+        if (Stroke.MAX_QUANTIZATION_ERROR < maxError) {
+            System.err.println("quantization error exceeds the bound");
+            failed = true;
+        }
+        if (!textMatches) {
+            System.err.println("text round trip changed the strokes");
+            failed = true;
+        }
+        if (!binaryMatches) {
+            System.err.println("binary round trip changed the strokes");
+            failed = true;
+        }
+        if (!blocksMatch) {
+            System.err.println("block round trip changed the strokes");
+            failed = true;
+        }
+        if (!fittedMatches || !smoothFittedMatches) {
+            System.err.println("curve round trip changed the strokes");
+            failed = true;
+        }
+        if (smoothElementRatio < MIN_SMOOTH_ELEMENT_RATIO
+                || MAX_SMOOTH_PACKED_RATIO < smoothPackedRatio) {
+            System.err.println("curve fitting no longer shrinks smooth strokes");
+            failed = true;
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 指でなぞったような、サブピクセルの座標を持つ軌跡を作ります。
+     */
+    private static float[] randomWalk(Random random) {
+        final int n = 2 + random.nextInt(300);
+        final float[] coordinates = new float[n * 2];
+        float x = random.nextFloat() * 1280;
+        float y = random.nextFloat() * 800;
+        float dx = 0F;
+        float dy = 0F;
+        for (int i = 0; i < n; i++) {
+            dx = dx * 0.8F + (random.nextFloat() - 0.5F) * 6;
+            dy = dy * 0.8F + (random.nextFloat() - 0.5F) * 6;
+            x += dx;
+            y += dy;
+            coordinates[i * 2] = x;
+            coordinates[i * 2 + 1] = y;
+        }
+        return coordinates;
+    }
+
+    /**
+     * ペンを滑らせたような、曲がり具合がゆっくり変わるなめらかな軌跡を作ります。
+     */
+    private static float[] smoothWalk(Random random) {
+        final int n = 20 + random.nextInt(280);
+        final float[] coordinates = new float[n * 2];
+        float x = random.nextFloat() * 1280;
+        float y = random.nextFloat() * 800;
+        double angle = random.nextDouble() * Math.PI * 2;
+        double turn = 0.0;
+        final float step = 3 + random.nextFloat() * 3;
+        for (int i = 0; i < n; i++) {
+            turn = turn * 0.9 + (random.nextDouble() - 0.5) * 0.08;
+            angle += turn;
+            x += (float) Math.cos(angle) * step;
+            y += (float) Math.sin(angle) * step;
+            // タッチパネルの座標のわずかな揺れ
+            coordinates[i * 2] = x + (random.nextFloat() - 0.5F) * 0.5F;
+            coordinates[i * 2 + 1] = y + (random.nextFloat() - 0.5F) * 0.5F;
+        }
+        return coordinates;
+    }
+
+    private static byte[] toText(List<Stroke> strokes) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(BG_COLOR).append('\n');
+        Stroke.listToString(sb, strokes);
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] toBinary(List<Stroke> strokes) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final StrokeWriter writer = new StrokeWriter(out);
+        try {
+            writer.writeHeader(BG_COLOR);
+            for (Stroke stroke : strokes) {
+                writer.write(stroke);
+            }
+        } finally {
+            writer.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeBlocks(List<Stroke> strokes, File file) throws IOException {
+        final BlockStrokeWriter writer = new BlockStrokeWriter(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            writer.writeHeader(BG_COLOR);
+            for (Stroke stroke : strokes) {
+                writer.write(stroke);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * 索引を使ってブロックを並列に展開します。座標の復号も含みます。
+     */
+    private static List<Stroke> readParallel(final StrokeBlockIndex index,
+            ExecutorService executor) throws InterruptedException, ExecutionException {
+        final List<Future<List<Stroke>>> decoded = new ArrayList<Future<List<Stroke>>>();
+        for (int i = 0; i < index.getBlockCount(); i++) {
+            final int block = i;
+            decoded.add(executor.submit(new Callable<List<Stroke>>() {
+                @Override
+                public List<Stroke> call() throws IOException {
+                    final List<Stroke> strokes = index.decodeBlock(block);
+                    for (Stroke stroke : strokes) {
+                        stroke.getCoordinates();
+                    }
+                    return strokes;
+                }
+            }));
+        }
+        final List<Stroke> strokes = new ArrayList<Stroke>();
+        for (Future<List<Stroke>> future : decoded) {
+            strokes.addAll(future.get());
+        }
+        return strokes;
+    }
+
+    private static List<Stroke> read(File file) throws IOException {
+        return read(new StrokeReader(new FileInputStream(file)));
+    }
+
+    private static List<Stroke> read(byte[] file) throws IOException {
+        return read(new StrokeReader(new ByteArrayInputStream(file)));
+    }
+
+    /**
+     * 描画できる状態まで読み込みます。座標の復号も含みます。
+     */
+    private static List<Stroke> read(StrokeReader reader) throws IOException {
+        final List<Stroke> strokes = new ArrayList<Stroke>();
+        try {
+            if (reader.readBgColor() != BG_COLOR) {
+                throw new IOException("background color changed");
+            }
+            for (Stroke stroke = reader.readStroke(); stroke != null; stroke = reader
+                    .readStroke()) {
+                stroke.getCoordinates();
+                strokes.add(stroke);
+            }
+        } finally {
+            reader.close();
+        }
+        return strokes;
+    }
+
+    private static long timeReads(byte[] file, int iterations) throws IOException {
+        final long started = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            read(file);
+        }
+        return (System.nanoTime() - started) / iterations;
+    }
+
+    private static boolean sameStrokes(List<Stroke> expected, List<Stroke> actual) {
+        if (expected.size() != actual.size()) {
+            return false;
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            final Stroke e = expected.get(i);
+            final Stroke a = actual.get(i);
+            if (e.mColor != a.mColor || e.mSize != a.mSize || e.mCurves != a.mCurves
+                    || !Arrays.equals(e.getCoordinates(), a.getCoordinates())
+                    || !Arrays.equals(e.mWidths, a.mWidths)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}